@@ -0,0 +1,786 @@
+package com.majeur.ars;
+
+import java.awt.Color;
+import java.io.BufferedInputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.BufferedReader;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStream;
+import java.net.InetAddress;
+import java.net.ServerSocket;
+import java.net.Socket;
+import java.net.SocketException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.ConcurrentHashMap;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Stand-in adb server emulating devices on localhost, so capture and input throughput can be measured
+ * without hardware. It speaks the host and transport protocols used by ddmlib and {@link AdbClient}:
+ * devices serve synthetic framebuffers through {@code framebuffer:} and screencap, and record the
+ * {@code input} and {@code sendevent} commands they receive with a configurable latency and bandwidth.
+ * Files pushed through {@code sync:} are kept in memory and can be run with {@code sh}.
+ * <p>
+ * Point the application at it by exporting ANDROID_ADB_SERVER_PORT, then run for instance
+ * {@code FakeAdbServer --port 5038 --devices 4 --size 1080x1920 --format rgbx8888 --change-fps 30}.
+ */
+public class FakeAdbServer implements Closeable {
+
+    private static final String ADB_VERSION = "0029";
+    private static final String SCREENCAP_LOOP = ExecOutCaptureBackend.SCREENCAP_LOOP;
+    private static final long STATS_INTERVAL = 5000;
+
+    /** Pixel layouts a fake device can serve, by Android PixelFormat value. */
+    enum Format {
+        RGBA_8888(1, 32, 0, 8, 16, 24, 8),
+        RGBX_8888(2, 32, 0, 8, 16, 24, 0),
+        RGB_565(4, 16, 11, 5, 0, 0, 0),
+        BGRA_8888(5, 32, 16, 8, 0, 24, 8);
+
+        final int value, bpp;
+        final int redOffset, greenOffset, blueOffset, alphaOffset, alphaLength;
+
+        Format(int value, int bpp, int redOffset, int greenOffset, int blueOffset, int alphaOffset, int alphaLength) {
+            this.value = value;
+            this.bpp = bpp;
+            this.redOffset = redOffset;
+            this.greenOffset = greenOffset;
+            this.blueOffset = blueOffset;
+            this.alphaOffset = alphaOffset;
+            this.alphaLength = alphaLength;
+        }
+
+        static Format fromString(String name) {
+            for (Format format : values()) {
+                if (format.name().replace("_", "").equalsIgnoreCase(name.replace("_", ""))) {
+                    return format;
+                }
+            }
+            throw new IllegalArgumentException("Unknown format " + name);
+        }
+
+        void encode(int argb, byte[] dst, int offset) {
+            int r = (argb >> 16) & 0xFF, g = (argb >> 8) & 0xFF, b = argb & 0xFF;
+            if (bpp == 16) {
+                int v = (r >> 3) << 11 | (g >> 2) << 5 | (b >> 3);
+                dst[offset] = (byte) v;
+                dst[offset + 1] = (byte) (v >> 8);
+                return;
+            }
+            int v = r << redOffset | g << greenOffset | b << blueOffset | 0xFF << alphaOffset;
+            dst[offset] = (byte) v;
+            dst[offset + 1] = (byte) (v >> 8);
+            dst[offset + 2] = (byte) (v >> 16);
+            dst[offset + 3] = (byte) (v >> 24);
+        }
+    }
+
+    /** What an emulated device looks like and how fast it answers. */
+    static class DeviceConfig {
+        String serialNumber = "fake-0";
+        int width = 1080;
+        int height = 1920;
+        Format format = Format.RGBX_8888;
+        int apiLevel = 28;
+        int orientation = 0;
+        /** Screen content changes per second, 0 for a static screen. */
+        int changeFps = 30;
+        /** Time each input command takes on the device. */
+        long inputLatency = 0;
+        /** Bytes per second sent to the client, 0 for unlimited. */
+        long bandwidth = 0;
+
+        DeviceConfig copy(String serialNumber) {
+            DeviceConfig copy = new DeviceConfig();
+            copy.serialNumber = serialNumber;
+            copy.width = width;
+            copy.height = height;
+            copy.format = format;
+            copy.apiLevel = apiLevel;
+            copy.orientation = orientation;
+            copy.changeFps = changeFps;
+            copy.inputLatency = inputLatency;
+            copy.bandwidth = bandwidth;
+            return copy;
+        }
+    }
+
+    /** An input command received by a device. */
+    static final class InputRecord {
+        final String serialNumber;
+        final String command;
+        final long timestamp;
+
+        InputRecord(String serialNumber, String command, long timestamp) {
+            this.serialNumber = serialNumber;
+            this.command = command;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final ServerSocket mServerSocket;
+    private final Map<String, FakeDevice> mDevices = new LinkedHashMap<>();
+    private final List<InputRecord> mInputLog = new ArrayList<>();
+    private final List<Socket> mClients = new ArrayList<>();
+    private long mDevicesVersion;
+    private volatile boolean mClosed;
+
+    /**
+     * Starts listening on the given port of the loopback interface, 0 picks a free port.
+     */
+    FakeAdbServer(int port) throws IOException {
+        mServerSocket = new ServerSocket(port, 50, InetAddress.getLoopbackAddress());
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                acceptClients();
+            }
+        }, "fake-adb-accept");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    int getPort() {
+        return mServerSocket.getLocalPort();
+    }
+
+    /**
+     * Plugs a device in, clients tracking devices are notified.
+     */
+    void addDevice(DeviceConfig config) {
+        synchronized (mDevices) {
+            mDevices.put(config.serialNumber, new FakeDevice(config));
+            mDevicesVersion++;
+            mDevices.notifyAll();
+        }
+    }
+
+    /**
+     * Unplugs a device, clients tracking devices are notified.
+     */
+    void removeDevice(String serialNumber) {
+        synchronized (mDevices) {
+            if (mDevices.remove(serialNumber) != null) {
+                mDevicesVersion++;
+                mDevices.notifyAll();
+            }
+        }
+    }
+
+    /**
+     * Returns the input commands received so far, in arrival order.
+     */
+    List<InputRecord> getInputLog() {
+        synchronized (mInputLog) {
+            return new ArrayList<>(mInputLog);
+        }
+    }
+
+    void clearInputLog() {
+        synchronized (mInputLog) {
+            mInputLog.clear();
+        }
+    }
+
+    private FakeDevice getDevice(String serialNumber) {
+        synchronized (mDevices) {
+            if (serialNumber == null) {
+                return mDevices.isEmpty() ? null : mDevices.values().iterator().next();
+            }
+            return mDevices.get(serialNumber);
+        }
+    }
+
+    private String listDevices() {
+        synchronized (mDevices) {
+            StringBuilder builder = new StringBuilder();
+            for (String serialNumber : mDevices.keySet()) {
+                builder.append(serialNumber).append("\tdevice\n");
+            }
+            return builder.toString();
+        }
+    }
+
+    private void acceptClients() {
+        while (!mClosed) {
+            final Socket socket;
+            try {
+                socket = mServerSocket.accept();
+                socket.setTcpNoDelay(true);
+            } catch (IOException e) {
+                if (!mClosed) {
+                    e.printStackTrace();
+                }
+                return;
+            }
+            synchronized (mClients) {
+                mClients.add(socket);
+            }
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        new Session(socket).run();
+                    } catch (EOFException | SocketException e) {
+                        // Client went away
+                    } catch (IOException e) {
+                        e.printStackTrace();
+                    } catch (InterruptedException e) {
+                        Thread.currentThread().interrupt();
+                    } finally {
+                        closeClient(socket);
+                    }
+                }
+            }, "fake-adb-client");
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
+
+    private void closeClient(Socket socket) {
+        synchronized (mClients) {
+            mClients.remove(socket);
+        }
+        try {
+            socket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+    }
+
+    @Override
+    public void close() {
+        mClosed = true;
+        try {
+            mServerSocket.close();
+        } catch (IOException e) {
+            e.printStackTrace();
+        }
+        List<Socket> clients;
+        synchronized (mClients) {
+            clients = new ArrayList<>(mClients);
+        }
+        for (Socket socket : clients) {
+            closeClient(socket);
+        }
+        synchronized (mDevices) {
+            mDevicesVersion++;
+            mDevices.notifyAll();
+        }
+    }
+
+    /**
+     * One client connection: host requests until a transport is picked, then a single device service.
+     */
+    private class Session {
+
+        private final Socket mSocket;
+        private final DataInputStream mInput;
+        private final OutputStream mOutput;
+        private FakeDevice mDevice;
+        private long mSentBytes;
+        private long mSendStart;
+
+        Session(Socket socket) throws IOException {
+            mSocket = socket;
+            mInput = new DataInputStream(new BufferedInputStream(socket.getInputStream()));
+            mOutput = socket.getOutputStream();
+        }
+
+        void run() throws IOException, InterruptedException {
+            while (true) {
+                String request = readRequest();
+                if (mDevice == null) {
+                    if (!handleHostRequest(request)) {
+                        return;
+                    }
+                } else {
+                    handleDeviceRequest(request);
+                    return;
+                }
+            }
+        }
+
+        /**
+         * Returns true if the connection stays open for another request.
+         */
+        private boolean handleHostRequest(String request) throws IOException, InterruptedException {
+            if (request.equals("host:version")) {
+                okay();
+                writeString(ADB_VERSION);
+                return false;
+            } else if (request.equals("host:devices") || request.equals("host:devices-l")) {
+                okay();
+                writeString(listDevices());
+                return false;
+            } else if (request.equals("host:track-devices")) {
+                okay();
+                trackDevices();
+                return false;
+            } else if (request.equals("host:features") || request.startsWith("host-serial:")
+                    && request.endsWith(":features")) {
+                okay();
+                writeString("");
+                return false;
+            } else if (request.startsWith("host:transport:") || request.equals("host:transport-any")
+                    || request.equals("host:transport-usb")) {
+                String serialNumber = request.startsWith("host:transport:")
+                        ? request.substring("host:transport:".length()) : null;
+                mDevice = getDevice(serialNumber);
+                if (mDevice == null) {
+                    fail("device '" + serialNumber + "' not found");
+                    return false;
+                }
+                okay();
+                return true;
+            }
+            fail("unknown host service");
+            return false;
+        }
+
+        private void trackDevices() throws IOException, InterruptedException {
+            long version = -1;
+            while (!mClosed) {
+                String devices;
+                synchronized (mDevices) {
+                    while (version == mDevicesVersion && !mClosed) {
+                        mDevices.wait();
+                    }
+                    version = mDevicesVersion;
+                    devices = listDevices();
+                }
+                writeString(devices);
+            }
+        }
+
+        private void handleDeviceRequest(String request) throws IOException, InterruptedException {
+            if (request.equals("framebuffer:")) {
+                okay();
+                sendFramebuffer();
+            } else if (request.startsWith("exec:") || request.startsWith("shell:")) {
+                String command = request.substring(request.indexOf(':') + 1).trim();
+                okay();
+                if (command.isEmpty() || command.equals("sh")) {
+                    runInteractiveShell();
+                } else if (command.equals(SCREENCAP_LOOP)) {
+                    while (!mClosed) {
+                        sendScreencap();
+                    }
+                } else if (command.equals("screencap")) {
+                    sendScreencap();
+                } else {
+                    write(mDevice.execute(command).getBytes(StandardCharsets.UTF_8));
+                }
+            } else if (request.equals("sync:")) {
+                okay();
+                runSync();
+            } else {
+                fail("unknown service");
+            }
+        }
+
+        /**
+         * Serves file transfers, files are kept in memory by the device.
+         */
+        private void runSync() throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            while (true) {
+                mInput.readFully(header.array());
+                String id = new String(header.array(), 0, 4, StandardCharsets.US_ASCII);
+                int length = header.getInt(4);
+                if (id.equals("QUIT")) {
+                    return;
+                }
+                byte[] argument = new byte[length];
+                mInput.readFully(argument);
+                String path = new String(argument, StandardCharsets.UTF_8);
+
+                if (id.equals("SEND")) {
+                    ByteArrayOutputStream content = new ByteArrayOutputStream();
+                    while (true) {
+                        mInput.readFully(header.array());
+                        String chunk = new String(header.array(), 0, 4, StandardCharsets.US_ASCII);
+                        if (chunk.equals("DONE")) {
+                            break;
+                        }
+                        byte[] data = new byte[header.getInt(4)];
+                        mInput.readFully(data);
+                        content.write(data);
+                    }
+                    int comma = path.lastIndexOf(',');
+                    mDevice.mFiles.put(comma < 0 ? path : path.substring(0, comma), content.toByteArray());
+                    writeSyncHeader("OKAY", 0);
+                } else if (id.equals("STAT")) {
+                    byte[] file = mDevice.mFiles.get(path);
+                    ByteBuffer stat = ByteBuffer.allocate(16).order(ByteOrder.LITTLE_ENDIAN);
+                    stat.put("STAT".getBytes(StandardCharsets.US_ASCII)).putInt(file != null ? 0100644 : 0)
+                            .putInt(file != null ? file.length : 0).putInt(0);
+                    mOutput.write(stat.array());
+                } else if (id.equals("RECV")) {
+                    byte[] file = mDevice.mFiles.get(path);
+                    if (file == null) {
+                        byte[] message = "No such file or directory".getBytes(StandardCharsets.UTF_8);
+                        writeSyncHeader("FAIL", message.length);
+                        mOutput.write(message);
+                    } else {
+                        for (int offset = 0; offset < file.length; offset += 64 * 1024) {
+                            int count = Math.min(64 * 1024, file.length - offset);
+                            writeSyncHeader("DATA", count);
+                            mOutput.write(file, offset, count);
+                        }
+                        writeSyncHeader("DONE", 0);
+                    }
+                } else {
+                    writeSyncHeader("FAIL", 0);
+                    return;
+                }
+                mOutput.flush();
+            }
+        }
+
+        private void writeSyncHeader(String id, int length) throws IOException {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(id.getBytes(StandardCharsets.US_ASCII)).putInt(length);
+            mOutput.write(header.array());
+        }
+
+        private void sendFramebuffer() throws IOException {
+            DeviceConfig config = mDevice.mConfig;
+            Format format = config.format;
+            int length = format.bpp == 16 ? 5 : 8;
+            ByteBuffer header = ByteBuffer.allocate(13 * 4).order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(1)
+                    .putInt(format.bpp)
+                    .putInt(config.width * config.height * format.bpp / 8)
+                    .putInt(config.width)
+                    .putInt(config.height)
+                    .putInt(format.redOffset).putInt(length)
+                    .putInt(format.blueOffset).putInt(length)
+                    .putInt(format.greenOffset).putInt(format.bpp == 16 ? 6 : 8)
+                    .putInt(format.alphaOffset).putInt(format.alphaLength);
+            write(header.array());
+            // Wait for the nudge before sending pixels
+            mInput.readByte();
+            write(mDevice.nextFrame());
+        }
+
+        private void sendScreencap() throws IOException {
+            DeviceConfig config = mDevice.mConfig;
+            ByteBuffer header = ByteBuffer.allocate(ExecOutCaptureBackend.getHeaderSize(config.apiLevel))
+                    .order(ByteOrder.LITTLE_ENDIAN);
+            header.putInt(config.width).putInt(config.height).putInt(config.format.value);
+            write(header.array());
+            write(mDevice.nextFrame());
+        }
+
+        /**
+         * Runs commands read line by line from the client, as an interactive shell without terminal.
+         */
+        private void runInteractiveShell() throws IOException, InterruptedException {
+            BufferedReader reader = new BufferedReader(new InputStreamReader(mInput, StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                line = line.trim();
+                if (line.equals("exit")) {
+                    return;
+                }
+                if (!line.isEmpty()) {
+                    write(mDevice.execute(line).getBytes(StandardCharsets.UTF_8));
+                }
+            }
+        }
+
+        private String readRequest() throws IOException {
+            byte[] length = new byte[4];
+            mInput.readFully(length);
+            byte[] request = new byte[Integer.parseInt(new String(length, StandardCharsets.US_ASCII), 16)];
+            mInput.readFully(request);
+            return new String(request, StandardCharsets.UTF_8);
+        }
+
+        private void okay() throws IOException {
+            mOutput.write("OKAY".getBytes(StandardCharsets.US_ASCII));
+        }
+
+        private void fail(String message) throws IOException {
+            mOutput.write("FAIL".getBytes(StandardCharsets.US_ASCII));
+            writeString(message);
+        }
+
+        private void writeString(String message) throws IOException {
+            byte[] bytes = message.getBytes(StandardCharsets.UTF_8);
+            mOutput.write(String.format("%04x", bytes.length).getBytes(StandardCharsets.US_ASCII));
+            mOutput.write(bytes);
+            mOutput.flush();
+        }
+
+        /**
+         * Writes service data, throttled to the device bandwidth.
+         */
+        private void write(byte[] data) throws IOException {
+            long bandwidth = mDevice.mConfig.bandwidth;
+            if (bandwidth <= 0) {
+                mOutput.write(data);
+                mOutput.flush();
+                mDevice.mBytesServed.addAndGet(data.length);
+                return;
+            }
+
+            if (mSendStart == 0) {
+                mSendStart = System.nanoTime();
+            }
+            int chunk = (int) Math.max(1024, Math.min(64 * 1024, bandwidth / 100));
+            for (int offset = 0; offset < data.length; offset += chunk) {
+                int count = Math.min(chunk, data.length - offset);
+                mOutput.write(data, offset, count);
+                mSentBytes += count;
+                long due = mSendStart + mSentBytes * 1000000000L / bandwidth;
+                long delay = due - System.nanoTime();
+                if (delay > 0) {
+                    Utils.sleep(delay / 1000000);
+                }
+            }
+            mOutput.flush();
+            mDevice.mBytesServed.addAndGet(data.length);
+        }
+    }
+
+    /**
+     * Emulated device: a synthetic screen with a square moving at the configured rate, and a minimal
+     * shell answering the commands the application sends.
+     */
+    private class FakeDevice {
+
+        private static final int SQUARE_SIZE = 96;
+
+        final DeviceConfig mConfig;
+        final AtomicLong mFramesServed = new AtomicLong();
+        final AtomicLong mBytesServed = new AtomicLong();
+        final AtomicLong mInputs = new AtomicLong();
+        final Map<String, byte[]> mFiles = new ConcurrentHashMap<>();
+
+        private final int mPixelSize;
+        private byte[] mBackground;
+        private byte[] mFrame;
+        private long mChanges;
+        private long mLastChangeTime;
+
+        FakeDevice(DeviceConfig config) {
+            mConfig = config;
+            mPixelSize = config.format.bpp / 8;
+        }
+
+        /**
+         * Returns the pixels of the current screen, updated if a change is due. Callers must not
+         * modify the returned array.
+         */
+        synchronized byte[] nextFrame() {
+            long now = System.nanoTime();
+            if (mFrame == null) {
+                mBackground = createBackground();
+                mFrame = mBackground;
+                mLastChangeTime = now;
+            } else if (mConfig.changeFps > 0 && now - mLastChangeTime >= 1000000000L / mConfig.changeFps) {
+                mLastChangeTime = now;
+                mChanges++;
+                mFrame = drawSquare(mChanges);
+            }
+            mFramesServed.incrementAndGet();
+            return mFrame;
+        }
+
+        private byte[] createBackground() {
+            int width = mConfig.width, height = mConfig.height;
+            byte[] pixels = new byte[width * height * mPixelSize];
+            for (int y = 0; y < height; y++) {
+                int color = 0xFF000000 | (y * 255 / height) << 8 | 0x40;
+                for (int x = 0; x < width; x++) {
+                    mConfig.format.encode(color | (x * 255 / width) << 16, pixels, (y * width + x) * mPixelSize);
+                }
+            }
+            return pixels;
+        }
+
+        /**
+         * Copies the background with a square at a position derived from the change count, so only
+         * a small region differs from the previous frame.
+         */
+        private byte[] drawSquare(long change) {
+            int width = mConfig.width, height = mConfig.height;
+            int size = Math.min(SQUARE_SIZE, Math.min(width, height));
+            int columns = Math.max(1, width - size), rows = Math.max(1, height - size);
+            int left = (int) (change * 16 % columns);
+            int top = (int) (change * 16 / columns * size % rows);
+            byte[] pixels = mBackground.clone();
+            int color = Color.HSBtoRGB((change % 64) / 64f, 0.8f, 0.9f);
+            for (int y = top; y < top + size; y++) {
+                for (int x = left; x < left + size; x++) {
+                    mConfig.format.encode(color, pixels, (y * width + x) * mPixelSize);
+                }
+            }
+            return pixels;
+        }
+
+        /**
+         * Runs a non interactive shell command line and returns its output.
+         */
+        String execute(String commandLine) throws InterruptedException {
+            StringBuilder output = new StringBuilder();
+            for (String command : commandLine.split(";")) {
+                command = command.trim();
+                if (command.isEmpty()) {
+                    continue;
+                }
+                if (command.startsWith("input ") || command.startsWith("sendevent ")) {
+                    synchronized (mInputLog) {
+                        mInputLog.add(new InputRecord(mConfig.serialNumber, command, System.nanoTime()));
+                    }
+                    mInputs.incrementAndGet();
+                    if (mConfig.inputLatency > 0) {
+                        Thread.sleep(mConfig.inputLatency);
+                    }
+                } else if (command.startsWith("sleep ")) {
+                    Thread.sleep((long) (Double.parseDouble(command.substring(6).trim()) * 1000));
+                } else if (command.startsWith("sh ") && mFiles.containsKey(command.substring(3).trim())) {
+                    String script = new String(mFiles.get(command.substring(3).trim()), StandardCharsets.UTF_8);
+                    for (String line : script.split("\n")) {
+                        if (!line.startsWith("#")) {
+                            output.append(execute(line));
+                        }
+                    }
+                } else if (command.startsWith("echo")) {
+                    output.append(command.substring(4).replace("\"", "").trim()).append('\n');
+                } else if (command.equals("getprop")) {
+                    for (Map.Entry<String, String> property : getProperties().entrySet()) {
+                        output.append('[').append(property.getKey()).append("]: [").append(property.getValue())
+                                .append("]\n");
+                    }
+                } else if (command.startsWith("getprop ")) {
+                    String value = getProperties().get(command.substring(8).trim());
+                    output.append(value != null ? value : "").append('\n');
+                } else if (command.equals("getevent -p")) {
+                    output.append("add device 1: /dev/input/event1\n")
+                            .append("  name:     \"fake_touchscreen\"\n")
+                            .append("  events:\n")
+                            .append("    KEY (0001): 014a\n")
+                            .append("    ABS (0003): 0035  : value 0, min 0, max ").append(mConfig.width - 1)
+                            .append(", fuzz 0, flat 0, resolution 0\n")
+                            .append("                0036  : value 0, min 0, max ").append(mConfig.height - 1)
+                            .append(", fuzz 0, flat 0, resolution 0\n")
+                            .append("                0039  : value 0, min 0, max 65535, fuzz 0, flat 0, resolution 0\n");
+                } else if (command.equals("wm size")) {
+                    output.append("Physical size: ").append(mConfig.width).append('x').append(mConfig.height)
+                            .append('\n');
+                } else if (command.startsWith("dumpsys input")) {
+                    output.append("    SurfaceOrientation: ").append(mConfig.orientation).append('\n');
+                } else {
+                    output.append("/system/bin/sh: ").append(command.split("\\s+")[0]).append(": not found\n");
+                }
+            }
+            return output.toString();
+        }
+
+        private Map<String, String> getProperties() {
+            Map<String, String> properties = new LinkedHashMap<>();
+            properties.put("ro.build.version.sdk", String.valueOf(mConfig.apiLevel));
+            properties.put("ro.product.manufacturer", "Fake");
+            properties.put("ro.product.model", "FakeDevice " + mConfig.width + "x" + mConfig.height);
+            properties.put("ro.serialno", mConfig.serialNumber);
+            return properties;
+        }
+    }
+
+    /**
+     * Applies a command line option describing the emulated devices, e.g. {@code --size 1080x1920}.
+     *
+     * @return false if the option is not a device option
+     */
+    static boolean parseDeviceOption(DeviceConfig config, String option, String value) {
+        switch (option) {
+        case "--size":
+            String[] size = value.split("x");
+            config.width = Integer.parseInt(size[0]);
+            config.height = Integer.parseInt(size[1]);
+            return true;
+        case "--format":
+            config.format = Format.fromString(value);
+            return true;
+        case "--api":
+            config.apiLevel = Integer.parseInt(value);
+            return true;
+        case "--orientation":
+            config.orientation = Integer.parseInt(value);
+            return true;
+        case "--change-fps":
+            config.changeFps = Integer.parseInt(value);
+            return true;
+        case "--input-latency":
+            config.inputLatency = Long.parseLong(value);
+            return true;
+        case "--bandwidth":
+            config.bandwidth = Long.parseLong(value);
+            return true;
+        default:
+            return false;
+        }
+    }
+
+    public static void main(String[] args) throws IOException {
+        int port = AdbClient.DEFAULT_PORT;
+        int deviceCount = 1;
+        DeviceConfig config = new DeviceConfig();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--port":
+                port = Integer.parseInt(value);
+                break;
+            case "--devices":
+                deviceCount = Integer.parseInt(value);
+                break;
+            default:
+                if (!parseDeviceOption(config, args[i], value)) {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        FakeAdbServer server = new FakeAdbServer(port);
+        for (int i = 0; i < deviceCount; i++) {
+            server.addDevice(config.copy("fake-" + i));
+        }
+        Logger.i("Fake adb server listening on port %d with %d device(s)", server.getPort(), deviceCount);
+
+        Map<String, long[]> last = new LinkedHashMap<>();
+        while (true) {
+            Utils.sleep(STATS_INTERVAL);
+            List<FakeDevice> devices;
+            synchronized (server.mDevices) {
+                devices = new ArrayList<>(server.mDevices.values());
+            }
+            for (FakeDevice device : devices) {
+                long frames = device.mFramesServed.get(), bytes = device.mBytesServed.get();
+                long inputs = device.mInputs.get();
+                long[] previous = last.get(device.mConfig.serialNumber);
+                if (previous != null) {
+                    Logger.i("%s: %.1f fps, %.1f MB/s, %.1f inputs/s", device.mConfig.serialNumber,
+                            (frames - previous[0]) * 1000.0 / STATS_INTERVAL,
+                            (bytes - previous[1]) / 1024.0 / 1024.0 * 1000.0 / STATS_INTERVAL,
+                            (inputs - previous[2]) * 1000.0 / STATS_INTERVAL);
+                }
+                last.put(device.mConfig.serialNumber, new long[] { frames, bytes, inputs });
+            }
+        }
+    }
+}
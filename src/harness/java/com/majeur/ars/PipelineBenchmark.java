@@ -0,0 +1,137 @@
+package com.majeur.ars;
+
+import java.io.File;
+import java.io.IOException;
+import java.util.Arrays;
+
+/**
+ * Runs the {@link CapturePipeline} against a {@link FakeAdbServer} for a while and prints the frame
+ * rate reaching the renderer, how many captured frames were dropped on the way and the latency from
+ * capture to render. Frames are released right away, painting is not measured.
+ * <p>
+ * The fake server listens on the port of ANDROID_ADB_SERVER_PORT, which the adb bridge also reads.
+ * Run with {@code gradlew pipelineBenchmark}, options are passed with -PbenchArgs="...": the
+ * {@link FakeAdbServer} device options, {@code --duration} and {@code --warmup} in seconds,
+ * {@code --fps} and {@code --backend} overriding the configuration, {@code --config} file.
+ */
+class PipelineBenchmark implements CapturePipeline.Listener {
+
+    private static final long CONNECT_TIMEOUT = 10000;
+
+    /** Latencies of the frames rendered since the end of the warm up, in milliseconds. */
+    private long[] mLatencies = new long[1024];
+    private int mCount;
+    private long mFirstSequence, mLastSequence;
+    private boolean mMeasuring;
+
+    @Override
+    public void onFrame(Frame frame) {
+        long latency = System.currentTimeMillis() - frame.timestamp;
+        synchronized (this) {
+            if (mMeasuring) {
+                if (mCount == 0) {
+                    mFirstSequence = frame.sequence;
+                }
+                if (mCount == mLatencies.length) {
+                    mLatencies = Arrays.copyOf(mLatencies, mCount * 2);
+                }
+                mLatencies[mCount++] = latency;
+                mLastSequence = frame.sequence;
+            }
+        }
+        frame.release();
+    }
+
+    @Override
+    public void onCaptureStateChanged(CapturePipeline pipeline, CaptureSession.State state) {
+    }
+
+    private synchronized void startMeasuring() {
+        mMeasuring = true;
+    }
+
+    private synchronized void stopMeasuring(long elapsedMillis) {
+        mMeasuring = false;
+        if (mCount == 0) {
+            System.out.println("Pipeline benchmark: no frame rendered");
+            return;
+        }
+        long[] latencies = Arrays.copyOf(mLatencies, mCount);
+        Arrays.sort(latencies);
+        long captured = mLastSequence - mFirstSequence + 1;
+        System.out.printf("Pipeline benchmark: %.1f fps, %d frames rendered, %d dropped, "
+                + "capture to render latency p50 %d ms, p90 %d ms, p99 %d ms, max %d ms%n",
+                mCount * 1000.0 / elapsedMillis, mCount, captured - mCount, percentile(latencies, 50),
+                percentile(latencies, 90), percentile(latencies, 99), latencies[latencies.length - 1]);
+    }
+
+    private static long percentile(long[] sorted, int percent) {
+        return sorted[Math.min(sorted.length - 1, sorted.length * percent / 100)];
+    }
+
+    public static void main(String[] args) throws IOException {
+        long duration = 10, warmup = 2;
+        int fps = 0;
+        String backend = null;
+        File configFile = new File("local.properties");
+        FakeAdbServer.DeviceConfig device = new FakeAdbServer.DeviceConfig();
+        for (int i = 0; i + 1 < args.length; i += 2) {
+            String value = args[i + 1];
+            switch (args[i]) {
+            case "--duration":
+                duration = Long.parseLong(value);
+                break;
+            case "--warmup":
+                warmup = Long.parseLong(value);
+                break;
+            case "--fps":
+                fps = Integer.parseInt(value);
+                break;
+            case "--backend":
+                backend = value;
+                break;
+            case "--config":
+                configFile = new File(value);
+                break;
+            default:
+                if (!FakeAdbServer.parseDeviceOption(device, args[i], value)) {
+                    System.err.println("Unknown option " + args[i]);
+                    System.exit(1);
+                }
+            }
+        }
+
+        Config config = new Config();
+        config.load(configFile);
+        if (fps > 0) {
+            config.setTargetFps(fps);
+        }
+        FakeAdbServer server = new FakeAdbServer(AdbClient.getLocalServerPort());
+        server.addDevice(device);
+
+        AdbHelper helper = new AdbHelper(null);
+        helper.setPreferredCaptureBackend(backend != null ? backend : config.getCaptureBackend());
+        long deadline = System.currentTimeMillis() + CONNECT_TIMEOUT;
+        while (helper.getConnectedDevices().length == 0) {
+            if (System.currentTimeMillis() > deadline) {
+                System.err.println(helper.isBridgeConnected() ? "Fake device not listed by the adb bridge"
+                        : "Adb bridge not connected to the fake server, is ANDROID_ADB_SERVER_PORT set?");
+                System.exit(1);
+            }
+            Utils.sleep(50);
+        }
+        helper.setTargetDevice(device.serialNumber);
+
+        PipelineBenchmark benchmark = new PipelineBenchmark();
+        CapturePipeline pipeline = new CapturePipeline(helper, config, benchmark);
+        pipeline.start();
+        Utils.sleep(warmup * 1000);
+        benchmark.startMeasuring();
+        long start = System.currentTimeMillis();
+        Utils.sleep(duration * 1000);
+        benchmark.stopMeasuring(System.currentTimeMillis() - start);
+        pipeline.stop();
+        server.close();
+        System.exit(0);
+    }
+}
@@ -0,0 +1,107 @@
+package com.majeur.ars;
+
+import java.nio.ByteBuffer;
+import java.util.Random;
+import java.util.concurrent.TimeUnit;
+
+import org.openjdk.jmh.annotations.Benchmark;
+import org.openjdk.jmh.annotations.BenchmarkMode;
+import org.openjdk.jmh.annotations.Fork;
+import org.openjdk.jmh.annotations.Measurement;
+import org.openjdk.jmh.annotations.Mode;
+import org.openjdk.jmh.annotations.OutputTimeUnit;
+import org.openjdk.jmh.annotations.Param;
+import org.openjdk.jmh.annotations.Scope;
+import org.openjdk.jmh.annotations.Setup;
+import org.openjdk.jmh.annotations.State;
+import org.openjdk.jmh.annotations.Warmup;
+
+import com.android.ddmlib.RawImage;
+
+/**
+ * Converts a full frame of random pixels with the specialized {@link PixelConverter} loops, on one
+ * core and split in bands, against the per pixel {@link RawImage#getARGB(int)} of ddmlib. Run with
+ * {@code gradlew jmh}.
+ */
+@State(Scope.Benchmark)
+@BenchmarkMode(Mode.AverageTime)
+@OutputTimeUnit(TimeUnit.MILLISECONDS)
+@Warmup(iterations = 5, time = 1)
+@Measurement(iterations = 10, time = 1)
+@Fork(1)
+public class PixelConverterBenchmark {
+
+    /** RGBX 8888 or RGB 565, the layouts of most devices. */
+    @Param({ "32", "16" })
+    public int bpp;
+
+    @Param({ "1080x1920", "1440x2560" })
+    public String size;
+
+    private RawImage mImage;
+    private ByteBuffer mPixels;
+    private PixelConverter mConverter;
+    private int[] mDst;
+
+    @Setup
+    public void setUp() {
+        int separator = size.indexOf('x');
+        mImage = new RawImage();
+        mImage.version = 1;
+        mImage.bpp = bpp;
+        mImage.width = Integer.parseInt(size.substring(0, separator));
+        mImage.height = Integer.parseInt(size.substring(separator + 1));
+        mImage.size = mImage.width * mImage.height * (bpp >> 3);
+        if (bpp == 16) {
+            setChannels(mImage, 11, 5, 5, 6, 0, 5, 0, 0);
+        } else {
+            setChannels(mImage, 0, 8, 8, 8, 16, 8, 0, 0);
+        }
+        mImage.data = new byte[mImage.size];
+        new Random(42).nextBytes(mImage.data);
+
+        mPixels = ByteBuffer.wrap(mImage.data);
+        mConverter = PixelConverter.forImage(mImage);
+        mDst = new int[mImage.width * mImage.height];
+    }
+
+    private static void setChannels(RawImage image, int redOffset, int redLength, int greenOffset, int greenLength,
+            int blueOffset, int blueLength, int alphaOffset, int alphaLength) {
+        image.red_offset = redOffset;
+        image.red_length = redLength;
+        image.green_offset = greenOffset;
+        image.green_length = greenLength;
+        image.blue_offset = blueOffset;
+        image.blue_length = blueLength;
+        image.alpha_offset = alphaOffset;
+        image.alpha_length = alphaLength;
+    }
+
+    @Benchmark
+    public int[] sequential() {
+        mConverter.convert(mImage, mPixels, mDst, Rotation.ROTATE_0, false);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] banded() {
+        mConverter.convert(mImage, mPixels, mDst, Rotation.ROTATE_0, true);
+        return mDst;
+    }
+
+    @Benchmark
+    public int[] rotated() {
+        mConverter.convert(mImage, mPixels, mDst, Rotation.ROTATE_90, true);
+        return mDst;
+    }
+
+    /** What the application did before the specialized converters. */
+    @Benchmark
+    public int[] rawImageGetArgb() {
+        int step = bpp >> 3;
+        for (int i = 0, index = 0; i < mDst.length; i++, index += step) {
+            mDst[i] = mImage.getARGB(index);
+        }
+        return mDst;
+    }
+}
@@ -0,0 +1,137 @@
+package com.majeur.ars;
+
+import java.io.ByteArrayOutputStream;
+import java.io.IOException;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Minimal adb client talking to the adb server directly over NIO sockets, for the services on the
+ * capture and input hot paths: {@code framebuffer:}, {@code shell:} and {@code exec:}.
+ */
+class AdbClient {
+
+    static final int DEFAULT_PORT = 5037;
+
+    /** Default bound of connections and of each transfer on them, in milliseconds. */
+    static final long DEFAULT_TIMEOUT = 5000;
+
+    private final InetSocketAddress mAddress;
+    private volatile long mTimeout = DEFAULT_TIMEOUT;
+
+    AdbClient(InetSocketAddress address) {
+        mAddress = address;
+    }
+
+    /**
+     * Returns a client for the local adb server, on the port ANDROID_ADB_SERVER_PORT points to if set.
+     */
+    static AdbClient forLocalServer() {
+        return new AdbClient(new InetSocketAddress("127.0.0.1", getLocalServerPort()));
+    }
+
+    /**
+     * Returns the port of the local adb server, the one ANDROID_ADB_SERVER_PORT points to if set.
+     */
+    static int getLocalServerPort() {
+        String env = System.getenv("ANDROID_ADB_SERVER_PORT");
+        if (env != null) {
+            try {
+                return Integer.parseInt(env.trim());
+            } catch (NumberFormatException e) {
+                Logger.e("Invalid ANDROID_ADB_SERVER_PORT '%s'", env);
+            }
+        }
+        return DEFAULT_PORT;
+    }
+
+    /**
+     * Sets how long connections and each transfer on them may take before failing, 0 for no bound.
+     */
+    void setTimeout(long timeoutMillis) {
+        mTimeout = Math.max(0, timeoutMillis);
+    }
+
+    long getTimeout() {
+        return mTimeout;
+    }
+
+    /**
+     * Opens a connection to {@code service} on the given device. The caller owns the connection.
+     */
+    AdbConnection openService(String serialNumber, String service) throws IOException {
+        AdbConnection connection = connect();
+        try {
+            request(connection, serialNumber, service);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Opens a connection to the adb server, for callers that need to hold it, e.g. to close it from
+     * another thread, before requesting a service with {@link #request(AdbConnection, String, String)}.
+     */
+    AdbConnection connect() throws IOException {
+        return AdbConnection.open(mAddress, mTimeout);
+    }
+
+    /**
+     * Switches a fresh connection to {@code service} on the given device.
+     */
+    void request(AdbConnection connection, String serialNumber, String service) throws IOException {
+        connection.transport(serialNumber);
+        connection.send(service);
+    }
+
+    /**
+     * Opens a raw, binary safe stream running {@code command} on the device.
+     */
+    AdbConnection openExec(String serialNumber, String command) throws IOException {
+        return openService(serialNumber, "exec:" + command);
+    }
+
+    /**
+     * Opens a shell; an empty command starts an interactive shell.
+     */
+    AdbConnection openShell(String serialNumber, String command) throws IOException {
+        return openService(serialNumber, "shell:" + command);
+    }
+
+    /**
+     * Runs a shell command and returns its output once it completes, within the client timeout.
+     */
+    String shell(String serialNumber, String command) throws IOException {
+        return shell(serialNumber, command, mTimeout);
+    }
+
+    /**
+     * Runs a shell command and returns its output once it completes.
+     *
+     * @param timeoutMillis bound of the whole command, 0 for none
+     * @throws SocketTimeoutException if the command didn't complete in time
+     */
+    String shell(String serialNumber, String command, long timeoutMillis) throws IOException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        try (AdbConnection connection = openShell(serialNumber, command)) {
+            ByteArrayOutputStream output = new ByteArrayOutputStream();
+            ByteBuffer buffer = ByteBuffer.allocate(4096);
+            while (true) {
+                long remaining = timeoutMillis > 0 ? deadline - System.currentTimeMillis() : 0;
+                if (timeoutMillis > 0 && remaining <= 0) {
+                    throw new SocketTimeoutException("'" + command + "' timed out");
+                }
+                buffer.clear();
+                if (connection.read(buffer, remaining) < 0) {
+                    break;
+                }
+                output.write(buffer.array(), 0, buffer.position());
+            }
+            return new String(output.toByteArray(), StandardCharsets.UTF_8);
+        }
+    }
+}
@@ -0,0 +1,178 @@
+package com.majeur.ars;
+
+import java.io.EOFException;
+import java.io.IOException;
+import java.io.InputStream;
+import java.io.OutputStream;
+import java.net.InetSocketAddress;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.channels.Channels;
+import java.nio.channels.ClosedChannelException;
+import java.nio.channels.SocketChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.concurrent.ScheduledFuture;
+
+/**
+ * One smart socket connection to the adb server. Requests are sent as a 4 hex digits length followed
+ * by the service name, the server answers OKAY or FAIL followed by a message. Once switched to a
+ * device with {@code host:transport}, the connection carries the data of the requested service.
+ * <p>
+ * Channel reads and writes ignore socket timeouts, so each one is bounded by a {@link Watchdog}
+ * closing the connection, making a stalled transfer fail instead of blocking its thread forever.
+ * Streams returned by {@link #getInputStream()} are not bounded, for shells idle between commands.
+ */
+class AdbConnection implements AutoCloseable {
+
+    private final SocketChannel mChannel;
+    private final ByteBuffer mStatus = ByteBuffer.allocate(4);
+    private final long mTimeout;
+    private volatile boolean mTimedOut;
+
+    private final Runnable mTimeoutAction = new Runnable() {
+        @Override
+        public void run() {
+            mTimedOut = true;
+            close();
+        }
+    };
+
+    private AdbConnection(SocketChannel channel, long timeoutMillis) {
+        mChannel = channel;
+        mTimeout = timeoutMillis;
+    }
+
+    /**
+     * @param timeoutMillis bound of the connection and of each read or write, 0 for none
+     */
+    static AdbConnection open(InetSocketAddress address, long timeoutMillis) throws IOException {
+        SocketChannel channel = SocketChannel.open();
+        try {
+            channel.socket().setTcpNoDelay(true);
+            channel.socket().connect(address, (int) Math.min(Integer.MAX_VALUE, timeoutMillis));
+        } catch (IOException e) {
+            channel.close();
+            throw e;
+        }
+        return new AdbConnection(channel, timeoutMillis);
+    }
+
+    /**
+     * Sends a request and waits for the server to accept it.
+     *
+     * @throws IOException if the server refuses the request, with its message
+     */
+    void send(String request) throws IOException {
+        byte[] payload = request.getBytes(StandardCharsets.UTF_8);
+        ByteBuffer buffer = ByteBuffer.allocate(4 + payload.length);
+        buffer.put(String.format("%04x", payload.length).getBytes(StandardCharsets.US_ASCII));
+        buffer.put(payload);
+        buffer.flip();
+        write(buffer);
+
+        mStatus.clear();
+        readFully(mStatus);
+        String status = new String(mStatus.array(), StandardCharsets.US_ASCII);
+        if (!"OKAY".equals(status)) {
+            throw new IOException("'" + request + "' rejected: " + ("FAIL".equals(status) ? readMessage() : status));
+        }
+    }
+
+    /**
+     * Switches the connection to the given device.
+     */
+    void transport(String serialNumber) throws IOException {
+        send("host:transport:" + serialNumber);
+    }
+
+    private String readMessage() throws IOException {
+        mStatus.clear();
+        readFully(mStatus);
+        int length = Integer.parseInt(new String(mStatus.array(), StandardCharsets.US_ASCII), 16);
+        ByteBuffer message = ByteBuffer.allocate(length);
+        readFully(message);
+        return new String(message.array(), StandardCharsets.UTF_8);
+    }
+
+    /**
+     * Fills the remaining space of {@code buffer}, within the connection timeout.
+     *
+     * @throws EOFException if the connection ends first
+     * @throws SocketTimeoutException if the timeout passes first, the connection is then closed
+     */
+    void readFully(ByteBuffer buffer) throws IOException {
+        ScheduledFuture<?> deadline = Watchdog.arm(mTimeoutAction, mTimeout);
+        try {
+            while (buffer.hasRemaining()) {
+                if (mChannel.read(buffer) < 0) {
+                    throw new EOFException("Connection closed by adb");
+                }
+            }
+        } catch (ClosedChannelException e) {
+            throw timeoutOr(e);
+        } finally {
+            Watchdog.disarm(deadline);
+        }
+    }
+
+    /**
+     * Reads what is available into {@code buffer}, waiting at most {@code timeoutMillis} for it.
+     *
+     * @return the number of bytes read, -1 at the end of the stream
+     * @throws SocketTimeoutException if nothing came in time, the connection is then closed
+     */
+    int read(ByteBuffer buffer, long timeoutMillis) throws IOException {
+        ScheduledFuture<?> deadline = Watchdog.arm(mTimeoutAction, timeoutMillis);
+        try {
+            return mChannel.read(buffer);
+        } catch (ClosedChannelException e) {
+            throw timeoutOr(e);
+        } finally {
+            Watchdog.disarm(deadline);
+        }
+    }
+
+    /**
+     * Writes all of {@code buffer}, within the connection timeout.
+     */
+    void write(ByteBuffer buffer) throws IOException {
+        ScheduledFuture<?> deadline = Watchdog.arm(mTimeoutAction, mTimeout);
+        try {
+            while (buffer.hasRemaining()) {
+                mChannel.write(buffer);
+            }
+        } catch (ClosedChannelException e) {
+            throw timeoutOr(e);
+        } finally {
+            Watchdog.disarm(deadline);
+        }
+    }
+
+    private IOException timeoutOr(ClosedChannelException e) {
+        return mTimedOut ? new SocketTimeoutException("adb transfer timed out") : e;
+    }
+
+    InputStream getInputStream() {
+        return Channels.newInputStream(mChannel);
+    }
+
+    OutputStream getOutputStream() {
+        return Channels.newOutputStream(mChannel);
+    }
+
+    boolean isOpen() {
+        return mChannel.isOpen();
+    }
+
+    /**
+     * Closes the connection, from any thread. A read or write blocked on it fails right away.
+     */
+    @Override
+    public void close() {
+        try {
+            mChannel.close();
+        } catch (IOException e) {
+            Logger.e("Unable to close adb connection: %s", e.getMessage());
+        }
+    }
+}
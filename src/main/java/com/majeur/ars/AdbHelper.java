@@ -2,54 +2,182 @@ package com.majeur.ars;
 
 import com.android.ddmlib.*;
 
-import javax.imageio.ImageIO;
 import javax.swing.*;
-import java.awt.*;
-import java.awt.image.BufferedImage;
 import java.io.File;
+import java.io.FileOutputStream;
 import java.io.IOException;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.net.SocketTimeoutException;
+import java.nio.charset.StandardCharsets;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.util.ArrayList;
 import java.util.Arrays;
+import java.util.Collection;
+import java.util.Collections;
+import java.util.HashMap;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.List;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.CopyOnWriteArrayList;
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
 
 public class AdbHelper {
-    private DevicesWatcher mDevicesWatcher;
+    private static final Pattern ORIENTATION_PATTERN = Pattern.compile("SurfaceOrientation:\\s*(\\d)");
+
+    static final String CAPTURE_BACKEND_AUTO = "auto";
+    private static final String MACRO_SCRIPT_PATH = "/data/local/tmp/ars_macro.sh";
+
+    /** How long to wait for the bridge to reach the adb server, which it may have to start. */
+    private static final long BRIDGE_TIMEOUT = 10000;
+    /** Wait before connecting the bridge again after a failure, doubling with every failure. */
+    private static final long BRIDGE_MIN_RETRY_DELAY = 2000;
+    private static final long BRIDGE_MAX_RETRY_DELAY = 60000;
+
+    private volatile DevicesWatcher mDevicesWatcher;
     private final String mAdbPath;
 
-    private IDevice mDevice;
-    private final AndroidDebugBridge adb;
-    private final BufferedImage buffy;
-    private IDevice[] devices;
+    private volatile IDevice mDevice;
+    /** Serial number of the device chosen by the user, kept while it is disconnected. */
+    private volatile String mTargetSerialNumber;
+    /** Null until the bridge is connected. */
+    private volatile AndroidDebugBridge adb;
+    private final Object mBridgeLock = new Object();
+    private boolean mBridgeRetryNow;
+    private final AdbClient mAdbClient = AdbClient.forLocalServer();
+    private volatile String mPreferredCaptureBackend = CAPTURE_BACKEND_AUTO;
+    private CaptureBackend mCaptureBackend;
+    /** Whether the current backend delivered a frame, failures are then not its fault. */
+    private boolean mCaptureBackendWorked;
+    /** Input paths of the target and broadcast devices, by serial number. */
+    private final Map<String, DeviceInput> mInputs = new HashMap<>();
+    private volatile Set<String> mBroadcastDevices = Collections.emptySet();
+    private int mInputQueueSize = 64;
+    private long mInputTimeout = 5000;
+    private long mInputBatchWindow = 15;
+    private String mTouchMode = TouchInjector.MODE_AUTO;
+    private long mTouchMoveInterval = 1000 / 30;
+    private volatile TouchInjector mTouchInjector;
+    /** Injector of the gesture in progress, event thread only. */
+    private TouchInjector mGestureInjector;
+    private long mLastTouchMoveTime;
+    private volatile int mDisplayOrientation;
+    private volatile Macro mRecordingMacro;
+    /** Turns gestures into portable taps and swipes for macros and broadcast, event thread only. */
+    private TouchInjector mPortableInjector;
+    private long mPortableTouchTime;
+    private final FramePool mFramePool = new FramePool();
+    private volatile PixelConverter mConverter;
+    private volatile IDevice[] devices = new IDevice[0];
+    private final List<OnInputListener> mInputListeners = new CopyOnWriteArrayList<>();
+    private final List<OnTargetAttachedListener> mTargetListeners = new CopyOnWriteArrayList<>();
 
-    public AdbHelper(String path, int width, int height) {
+    /**
+     * Returns right away, the bridge to the adb server comes up in the background. Devices are
+     * reported to the {@link OnDevicesChangedListener} once it is connected.
+     *
+     * @param path adb executable, or null to use an adb server already running
+     */
+    public AdbHelper(String path) {
         mAdbPath = path;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                connectBridge();
+            }
+        }, "ars-adb-init");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Connects the bridge, retrying with a backoff until the adb server answers. Each failure is
+     * reported to the {@link OnDevicesChangedListener}.
+     */
+    private void connectBridge() {
         AndroidDebugBridge.init(false);
-        adb = AndroidDebugBridge.createBridge(mAdbPath, true);
+        long retryDelay = BRIDGE_MIN_RETRY_DELAY;
+        while (true) {
+            // Without a path, connect to a server that is already running, e.g. a FakeAdbServer
+            AndroidDebugBridge bridge = mAdbPath != null ? AndroidDebugBridge.createBridge(mAdbPath, true)
+                    : AndroidDebugBridge.createBridge();
 
-        int trials = 10;
-        while (trials > 0) {
-            try {
-                Thread.sleep(50);
-            } catch (InterruptedException e) {
-                e.printStackTrace();
+            long deadline = System.currentTimeMillis() + BRIDGE_TIMEOUT;
+            while (!(bridge.isConnected() && bridge.hasInitialDeviceList()) && System.currentTimeMillis() < deadline) {
+                Utils.sleep(20);
             }
-            if (adb.isConnected()) {
+            if (bridge.isConnected()) {
+                adb = bridge;
                 break;
             }
-            trials--;
+
+            Logger.e("Couldn't connect to ADB server, retrying in %d s", retryDelay / 1000);
+            DevicesWatcher watcher = mDevicesWatcher;
+            if (watcher != null) {
+                watcher.reportBridgeUnavailable();
+            }
+            if (!awaitBridgeRetry(retryDelay)) {
+                return;
+            }
+            retryDelay = Math.min(BRIDGE_MAX_RETRY_DELAY, retryDelay * 2);
+        }
+
+        StartupMetrics.reached(StartupMetrics.BRIDGE_READY);
+        DevicesWatcher watcher = mDevicesWatcher;
+        if (watcher != null) {
+            watcher.scheduleUpdate();
+        }
+    }
+
+    /**
+     * Waits before connecting the bridge again, returning early on {@link #retryBridgeNow()}.
+     *
+     * @return false if interrupted
+     */
+    private boolean awaitBridgeRetry(long delay) {
+        long deadline = System.currentTimeMillis() + delay;
+        synchronized (mBridgeLock) {
+            long remaining;
+            while (!mBridgeRetryNow && (remaining = deadline - System.currentTimeMillis()) > 0) {
+                try {
+                    mBridgeLock.wait(remaining);
+                } catch (InterruptedException e) {
+                    return false;
+                }
+            }
+            mBridgeRetryNow = false;
         }
+        return true;
+    }
 
-        if (!adb.isConnected()) {
-            System.out.println("Couldn't connect to ADB server");
+    /**
+     * Ends the wait before the next attempt to connect the bridge, if it is not connected.
+     */
+    public void retryBridgeNow() {
+        synchronized (mBridgeLock) {
+            mBridgeRetryNow = true;
+            mBridgeLock.notifyAll();
         }
+    }
 
-        GraphicsEnvironment env = GraphicsEnvironment.getLocalGraphicsEnvironment();
-        GraphicsDevice device2 = env.getDefaultScreenDevice();
-        GraphicsConfiguration config = device2.getDefaultConfiguration();
-        buffy = config.createCompatibleImage(width, height, BufferedImage.TYPE_INT_ARGB);
+    /**
+     * Returns whether the bridge reached the adb server. Until then no device is listed, which
+     * doesn't mean none is connected.
+     */
+    public boolean isBridgeConnected() {
+        return adb != null;
     }
 
     public void registerDevicesChangedListener(OnDevicesChangedListener listener) {
         mDevicesWatcher = new DevicesWatcher(listener);
-        mDevicesWatcher.startWach();
+        mDevicesWatcher.startWatch();
     }
 
     public void unregisterDevicesChangedListener() {
@@ -57,12 +185,164 @@ public class AdbHelper {
         mDevicesWatcher = null;
     }
 
+    void addTargetAttachedListener(OnTargetAttachedListener listener) {
+        mTargetListeners.add(listener);
+    }
+
+    void removeTargetAttachedListener(OnTargetAttachedListener listener) {
+        mTargetListeners.remove(listener);
+    }
+
+    public void addInputListener(OnInputListener listener) {
+        mInputListeners.add(listener);
+    }
+
+    public void removeInputListener(OnInputListener listener) {
+        mInputListeners.remove(listener);
+    }
+
+    /**
+     * Sets the capture backend to use: {@link #CAPTURE_BACKEND_AUTO}, {@link NioCaptureBackend#NAME},
+     * {@link ExecOutCaptureBackend#NAME} or {@link DdmlibCaptureBackend#NAME}.
+     */
+    public void setPreferredCaptureBackend(String name) {
+        mPreferredCaptureBackend = name;
+        closeCaptureBackend();
+    }
+
+    /**
+     * Sets the device to capture and send input to. If it disconnects, it is attached again as soon
+     * as a device with the same serial number comes back.
+     */
     public void setTargetDevice(String deviceName) {
-        for (IDevice device : devices) {
-            if (device.getSerialNumber().equals(deviceName)) {
-                mDevice = device;
+        mTargetSerialNumber = deviceName;
+        attachTarget();
+    }
+
+    /**
+     * Points at the connected device matching the target serial number, which is a new
+     * {@link IDevice} after a reconnection, or at none while it is away.
+     */
+    private void attachTarget() {
+        String serialNumber = mTargetSerialNumber;
+        IDevice target = serialNumber != null ? findDevice(serialNumber) : null;
+        boolean reattached;
+        CaptureBackend previous;
+        synchronized (this) {
+            if (target == mDevice) {
+                return;
+            }
+            reattached = target != null && mDevice == null;
+            previous = detachCaptureBackend();
+            mTouchInjector = null;
+            mDisplayOrientation = 0;
+            if (target != null) {
+                probeTouchInjector(target);
+            }
+            mDevice = target;
+            closeUnusedInputs();
+        }
+        closeInBackground(previous);
+        if (reattached) {
+            Logger.i("Device %s attached", serialNumber);
+            for (OnTargetAttachedListener listener : mTargetListeners) {
+                listener.onTargetAttached(serialNumber);
+            }
+        }
+    }
+
+    /**
+     * Returns the serial number of the target device, even while it is disconnected.
+     */
+    String getTargetSerialNumber() {
+        return mTargetSerialNumber;
+    }
+
+    /**
+     * Sets the devices that also receive the keys, text and gestures sent to the target device, each
+     * scaled to its own display. Gestures reach them as taps and swipes once released.
+     */
+    public synchronized void setBroadcastDevices(Collection<String> serialNumbers) {
+        mBroadcastDevices = Collections.unmodifiableSet(new HashSet<>(serialNumbers));
+        closeUnusedInputs();
+        for (String serialNumber : mBroadcastDevices) {
+            IDevice device = findDevice(serialNumber);
+            if (device != null) {
+                // Learn display sizes before the first input
+                getDeviceInput(device);
             }
         }
+        if (!serialNumbers.isEmpty()) {
+            Logger.i("Broadcasting input to %d devices", serialNumbers.size());
+        }
+    }
+
+    /**
+     * Describes the input sent to a device, or returns null if none was.
+     */
+    public synchronized String getInputStats(String serialNumber) {
+        DeviceInput input = mInputs.get(serialNumber);
+        return input != null ? input.getStats() : null;
+    }
+
+    /**
+     * Sets how gestures are sent, one of the {@link TouchInjector} modes, and how many moves per second
+     * may be sent while dragging.
+     */
+    public synchronized void setTouchMode(String mode, int moveRate) {
+        mTouchMode = mode;
+        mTouchMoveInterval = 1000 / Math.max(1, moveRate);
+        mTouchInjector = null;
+        if (mDevice != null) {
+            probeTouchInjector(mDevice);
+        }
+    }
+
+    private void probeTouchInjector(final IDevice device) {
+        final String mode = mTouchMode;
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                String probe = TouchInjector.MODE_SWIPE.equals(mode) ? null
+                        : executeShellQuery(device, TouchInjector.CMD_PROBE_TOUCHSCREEN);
+                TouchInjector injector = TouchInjector.create(mode, getApiLevel(device), probe);
+                synchronized (AdbHelper.this) {
+                    if (device == mDevice && mode.equals(mTouchMode)) {
+                        mTouchInjector = injector;
+                        Logger.i("Sending touch input to %s through %s", device.getSerialNumber(), injector.getName());
+                    }
+                }
+            }
+        }, "ars-touch-probe");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sets how many input commands may wait for the device, for how long before being dropped, and
+     * for how long key events and text wait for the next ones to be sent together.
+     */
+    public synchronized void setInputQueueLimits(int size, long timeoutMillis, long batchWindowMillis) {
+        mInputQueueSize = size;
+        mInputTimeout = timeoutMillis;
+        mInputBatchWindow = batchWindowMillis;
+        closeInputs();
+    }
+
+    /**
+     * Number of input commands waiting to be sent to the target device.
+     */
+    public synchronized int getInputQueueDepth() {
+        DeviceInput input = mDevice != null ? mInputs.get(mDevice.getSerialNumber()) : null;
+        return input != null ? input.getQueueDepth() : 0;
+    }
+
+    /**
+     * Average time between an input and the target device running it, in milliseconds.
+     */
+    public synchronized double getInputLatencyMillis() {
+        DeviceInput input = mDevice != null ? mInputs.get(mDevice.getSerialNumber()) : null;
+        return input != null ? input.getLatencyMillis() : 0;
     }
 
     public void performInputKey(AndroidKey key) {
@@ -75,51 +355,332 @@ public class AdbHelper {
         executeDeviceShellCommand(String.format(Constants.Adb.CMD_KEY, keyCode));
     }
 
+    /**
+     * Types arbitrary text, using as few commands as possible. Characters the device can't type
+     * through adb are skipped.
+     *
+     * @return the skipped characters, see {@link TextInput#getSkipped()}, empty if there are none
+     */
+    public String performInputText(String text) {
+        TextInput input = new TextInput(text);
+        List<String> commands = input.getCommands();
+        if (!commands.isEmpty()) {
+            // Don't log the text itself, it is often a password
+            Logger.i("Typing %d characters", text.length());
+            for (String command : commands) {
+                executeDeviceShellCommand(command);
+            }
+        }
+        return input.getSkipped();
+    }
+
+    /**
+     * Taps at device coordinates, on the target and the broadcast devices.
+     */
     public void performClick(double x, double y) {
         Logger.i("Click at %.1f %.1f", x, y);
         executeDeviceShellCommand(String.format(Constants.Adb.CMD_TAP, x, y).replace(',', '.'));
     }
 
-    public void performSwipe(double x1, double y1, double x2, double y2, long duration) {
-        Logger.i("Swipe from %.0f %.0f to %.0f %.0f during %d ms", x1, y1, x2, y2, duration);
-        executeDeviceShellCommand(String.format(Constants.Adb.CMD_SWIPE, x1, y1, x2, y2, duration));
+    /**
+     * Sends a pointer event at display coordinates, from the event thread. Gestures are streamed as
+     * they happen when the device allows it, moves being limited to the configured rate.
+     */
+    public void performTouch(TouchInjector.Action action, double x, double y, int displayWidth, int displayHeight) {
+        if (action == TouchInjector.Action.DOWN || mGestureInjector == null) {
+            mGestureInjector = mTouchInjector;
+            if (mGestureInjector == null) {
+                // Not probed yet, replaying on release works everywhere
+                mGestureInjector = TouchInjector.create(TouchInjector.MODE_SWIPE, 0, null);
+            }
+        }
+
+        if (action == TouchInjector.Action.MOVE) {
+            long now = System.currentTimeMillis();
+            if (now - mLastTouchMoveTime < mTouchMoveInterval) {
+                return;
+            }
+            mLastTouchMoveTime = now;
+        }
+
+        if (mRecordingMacro != null || !mBroadcastDevices.isEmpty()) {
+            onPortableTouch(action, x, y);
+        }
+
+        String command = mGestureInjector.onTouch(action, x, y, displayWidth, displayHeight, mDisplayOrientation);
+        if (command != null) {
+            executeDeviceShellCommand(command, action == TouchInjector.Action.MOVE ? "touch-move" : null);
+        }
+        if (action == TouchInjector.Action.UP) {
+            Logger.i("Touch released at %.0f %.0f", x, y);
+            mGestureInjector = null;
+        }
     }
 
-    private void executeDeviceShellCommand(String command) {
-        if (mDevice == null) {
-            Logger.e("No device selected, unable to execute '%s' command", command);
+    /**
+     * Records and broadcasts gestures as taps and swipes, which unlike sendevent writes can be replayed
+     * on any device.
+     */
+    private void onPortableTouch(TouchInjector.Action action, double x, double y) {
+        if (action == TouchInjector.Action.DOWN || mPortableInjector == null) {
+            mPortableInjector = TouchInjector.create(TouchInjector.MODE_SWIPE, 0, null);
+            mPortableTouchTime = System.currentTimeMillis();
+        }
+        String command = mPortableInjector.onTouch(action, x, y, 0, 0, 0);
+        if (command != null) {
+            // The gesture is known once released, but it replays from when it was pressed
+            onPortableInput(command, mPortableTouchTime);
+        }
+    }
+
+    private void onPortableInput(String command) {
+        onPortableInput(command, System.currentTimeMillis());
+    }
+
+    /**
+     * Records a command that any device understands and sends it to the broadcast devices.
+     *
+     * @param time when the command took effect, for macros
+     */
+    private void onPortableInput(String command, long time) {
+        Macro macro = mRecordingMacro;
+        if (macro != null) {
+            macro.record(command, time);
+        }
+        if (!mBroadcastDevices.isEmpty()) {
+            broadcastInput(command);
+        }
+    }
+
+    /**
+     * Queues a command on every broadcast device but the target, where the caller sends it. Each
+     * device has its own queue, they all receive it at once.
+     */
+    private synchronized void broadcastInput(String command) {
+        IDevice source = mDevice;
+        DeviceInput sourceInput = source != null ? getDeviceInput(source) : null;
+        for (String serialNumber : mBroadcastDevices) {
+            IDevice device = findDevice(serialNumber);
+            if (device == null || device == source) {
+                continue;
+            }
+            DeviceInput input = getDeviceInput(device);
+            input.submit(sourceInput != null ? input.scaleFrom(sourceInput, mDisplayOrientation, command) : command,
+                    null);
+        }
+    }
+
+    /**
+     * Starts recording the input sent to devices.
+     */
+    public void startMacroRecording() {
+        mRecordingMacro = new Macro();
+        Logger.i("Recording macro");
+    }
+
+    /**
+     * Stops recording and returns the macro, or null if none was being recorded.
+     */
+    public Macro stopMacroRecording() {
+        Macro macro = mRecordingMacro;
+        mRecordingMacro = null;
+        if (macro != null) {
+            Logger.i("Recorded macro of %d steps", macro.size());
+        }
+        return macro;
+    }
+
+    /**
+     * Replays a macro in the background on the target device and, at the same relative positions, on
+     * the broadcast devices, all at once. When a device can run it, the macro is pushed as a single
+     * script so that timing doesn't depend on adb round trips. Results show in the input stats of each
+     * device. Input listeners get the target device steps at their times, as for any other input.
+     */
+    public void playMacro(final Macro macro) {
+        final IDevice target = mDevice;
+        if (target == null) {
+            Logger.e("No device selected, unable to play macro");
             return;
         }
-        try {
-            mDevice.executeShellCommand(command, new IShellOutputReceiver() {
+        List<IDevice> targets = new ArrayList<>();
+        targets.add(target);
+        synchronized (this) {
+            for (String serialNumber : mBroadcastDevices) {
+                IDevice device = findDevice(serialNumber);
+                if (device != null && device != target) {
+                    targets.add(device);
+                }
+            }
+        }
+        DeviceInput source = getDeviceInput(target);
+        for (final IDevice device : targets) {
+            final DeviceInput input = getDeviceInput(device);
+            final Macro deviceMacro = device == target ? macro : scaleMacro(macro, source, input);
+            Thread thread = new Thread(new Runnable() {
                 @Override
-                public void addOutput(byte[] bytes, int i, int i1) {
-
+                public void run() {
+                    if (getApiLevel(device) < Macro.SCRIPT_API_LEVEL
+                            || !runMacroScript(device, input, deviceMacro, device == target)) {
+                        replayMacro(device, input, deviceMacro);
+                    }
+                    Logger.i("Macro played on %s", device.getSerialNumber());
                 }
+            }, "ars-macro-" + device.getSerialNumber());
+            thread.setDaemon(true);
+            thread.start();
+        }
+    }
 
-                @Override
-                public void flush() {
+    /**
+     * Returns the macro with its taps and swipes moved from the display of one device to another's.
+     */
+    private Macro scaleMacro(Macro macro, DeviceInput source, DeviceInput input) {
+        Macro scaled = new Macro();
+        for (Macro.Step step : macro.getSteps()) {
+            scaled.add(step.delay, input.scaleFrom(source, mDisplayOrientation, step.command));
+        }
+        return scaled;
+    }
 
-                }
+    /**
+     * @param notify whether input listeners get the steps, at their times while the script runs
+     */
+    private boolean runMacroScript(IDevice device, DeviceInput input, Macro macro, boolean notify) {
+        File script = null;
+        Thread notifier = null;
+        try {
+            script = File.createTempFile("ars_macro", ".sh");
+            try (Writer writer = new OutputStreamWriter(new FileOutputStream(script), StandardCharsets.UTF_8)) {
+                writer.write(macro.toScript());
+            }
+            device.pushFile(script.getAbsolutePath(), MACRO_SCRIPT_PATH);
+            Logger.i("Playing macro of %d steps on %s", macro.size(), device.getSerialNumber());
+            if (notify) {
+                notifier = notifyMacroSteps(macro);
+            }
+            // The script runs for as long as the macro, bound it to that rather than the client timeout
+            mAdbClient.shell(device.getSerialNumber(), "sh " + MACRO_SCRIPT_PATH,
+                    macro.getDuration() + mAdbClient.getTimeout());
+            input.countScript(macro.size(), false);
+            return true;
+        } catch (SocketTimeoutException e) {
+            // The script started, replaying it would send the steps twice
+            Logger.e("Macro script didn't complete in time on %s", device.getSerialNumber());
+            input.countScript(macro.size(), true);
+            return true;
+        } catch (Exception e) {
+            Logger.e("Unable to run macro script on %s, replaying from here: %s", device.getSerialNumber(),
+                    e.getMessage());
+            if (notifier != null) {
+                // The replay notifies the steps it sends
+                notifier.interrupt();
+            }
+            return false;
+        } finally {
+            if (script != null) {
+                script.delete();
+            }
+        }
+    }
 
-                @Override
-                public boolean isCancelled() {
-                    return false;
+    /**
+     * Passes the steps of a macro run by a script to the input listeners, each at its time since now.
+     */
+    private Thread notifyMacroSteps(final Macro macro) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                long due = System.currentTimeMillis();
+                for (Macro.Step step : macro.getSteps()) {
+                    due += step.delay;
+                    long delay = due - System.currentTimeMillis();
+                    if (delay > 0) {
+                        Utils.sleep(delay);
+                    }
+                    if (Thread.currentThread().isInterrupted()) {
+                        return;
+                    }
+                    for (OnInputListener listener : mInputListeners) {
+                        listener.onInput(step.command);
+                    }
                 }
-            });
-        } catch (TimeoutException e) {
-            e.printStackTrace();
-        } catch (AdbCommandRejectedException e) {
-            e.printStackTrace();
-        } catch (ShellCommandUnresponsiveException e) {
-            e.printStackTrace();
-        } catch (IOException e) {
-            e.printStackTrace();
+            }
+        }, "ars-macro-input");
+        thread.setDaemon(true);
+        thread.start();
+        return thread;
+    }
+
+    /**
+     * Sends the macro steps one by one, each at its time since the start. Stops once the device is
+     * neither the target nor broadcast to.
+     */
+    private void replayMacro(IDevice device, DeviceInput input, Macro macro) {
+        long due = System.currentTimeMillis();
+        for (Macro.Step step : macro.getSteps()) {
+            due += step.delay;
+            long delay = due - System.currentTimeMillis();
+            if (delay > 0) {
+                Utils.sleep(delay);
+            }
+            if (Thread.currentThread().isInterrupted()
+                    || device != mDevice && !mBroadcastDevices.contains(device.getSerialNumber())) {
+                return;
+            }
+            if (device == mDevice) {
+                executeDeviceShellCommand(step.command, null);
+            } else {
+                input.submit(step.command, null);
+            }
+        }
+    }
+
+    /**
+     * Swipes between device coordinates, on the target and the broadcast devices.
+     */
+    public void performSwipe(double x1, double y1, double x2, double y2, long duration) {
+        Logger.i("Swipe from %.0f %.0f to %.0f %.0f during %d ms", x1, y1, x2, y2, duration);
+        executeDeviceShellCommand(String.format(Constants.Adb.CMD_SWIPE, x1, y1, x2, y2, duration));
+    }
+
+    /**
+     * Queues an input command for the target device, and the broadcast devices, returns without
+     * waiting for it to be sent.
+     */
+    private void executeDeviceShellCommand(String command) {
+        onPortableInput(command);
+        executeDeviceShellCommand(command, null);
+    }
+
+    private void executeDeviceShellCommand(String command, String coalesceKey) {
+        IDevice device = mDevice;
+        if (device == null) {
+            Logger.e("No device selected, unable to execute '%s' command", command);
+            return;
         }
+        for (OnInputListener listener : mInputListeners) {
+            listener.onInput(command);
+        }
+        getDeviceInput(device).submit(command, coalesceKey);
     }
 
+    /**
+     * Returns the serial numbers of the devices ready to be used, leaving out offline and
+     * unauthorized ones.
+     */
     public String[] getConnectedDevices() {
-        devices = adb.getDevices();
+        AndroidDebugBridge bridge = adb;
+        if (bridge == null) {
+            return new String[0];
+        }
+        List<IDevice> online = new ArrayList<>();
+        for (IDevice device : bridge.getDevices()) {
+            if (device.isOnline()) {
+                online.add(device);
+            }
+        }
+        devices = online.toArray(new IDevice[online.size()]);
+        attachTarget();
         String[] names = new String[devices.length];
         for (int i = 0; i < devices.length; i++) {
             names[i] = devices[i].getSerialNumber();
@@ -127,97 +688,413 @@ public class AdbHelper {
         return names;
     }
 
-    public BufferedImage retrieveScreenShot() {
-        if (mDevice == null) {
+    /**
+     * Retrieves the device framebuffer, or returns null if it is not available. The caller must
+     * release it.
+     *
+     * @param intervalMillis time since the previous capture was requested, see
+     *            {@link CaptureBackend#setCaptureInterval(long)}
+     * @param timeoutMillis time after which a stalled capture is aborted by closing the backend, 0 for
+     *            none. Backends without a stream to close, like ddmlib, rely on their own timeouts.
+     */
+    RawFrame fetchRawFrame(long intervalMillis, long timeoutMillis) {
+        final CaptureBackend backend = getCaptureBackend();
+        if (backend == null) {
             Logger.e("No device selected, screenshot aborted");
             return null;
         }
 
-        RawImage rawImage;
+        boolean worked;
+        synchronized (this) {
+            worked = mCaptureBackendWorked;
+        }
+        final AtomicBoolean timedOut = new AtomicBoolean();
+        ScheduledFuture<?> deadline = Watchdog.arm(new Runnable() {
+            @Override
+            public void run() {
+                timedOut.set(true);
+                backend.close();
+            }
+        }, timeoutMillis);
         try {
-            rawImage = mDevice.getScreenshot();
-        } catch (TimeoutException e) {
-            System.out.println("Unable to get frame buffer: timeout");
-            return null;
-        } catch (Exception ioe) {
-            System.out.println("Unable to get frame buffer: " + ioe.getMessage());
-            return null;
+            backend.setCaptureInterval(intervalMillis);
+            RawFrame frame = backend.capture();
+            if (!worked) {
+                synchronized (this) {
+                    mCaptureBackendWorked = mCaptureBackend == backend;
+                }
+            }
+            return frame;
+        } catch (Exception e) {
+            if (backend instanceof DdmlibCaptureBackend || worked) {
+                // A hiccup of a backend known to work with this device, the capture session retries
+                if (timedOut.get()) {
+                    // Closed by the deadline, open a new one on the next capture
+                    Logger.e("Capture timed out after %d ms", timeoutMillis);
+                    discardCaptureBackend(backend);
+                } else {
+                    Logger.e("Unable to get frame buffer: %s", e.getMessage());
+                }
+                return null;
+            }
+        } finally {
+            Watchdog.disarm(deadline);
         }
-        // device/adb not available?
-        if (rawImage == null)
+
+        // Streaming isn't working with this device, stick to ddmlib from now on
+        Logger.e("%s capture failed, falling back to %s", backend.getName(), DdmlibCaptureBackend.NAME);
+        boolean replaced = false;
+        synchronized (this) {
+            if (mCaptureBackend == backend) {
+                mCaptureBackend = new DdmlibCaptureBackend(mDevice);
+                replaced = true;
+            }
+        }
+        if (replaced) {
+            backend.close();
+        }
+        return fetchRawFrame(intervalMillis, timeoutMillis);
+    }
+
+    private synchronized CaptureBackend getCaptureBackend() {
+        IDevice device = mDevice;
+        if (mCaptureBackend == null && device != null) {
+            mCaptureBackend = createCaptureBackend(device, mPreferredCaptureBackend);
+            mCaptureBackendWorked = false;
+            Logger.i("Capturing %s through %s", device.getSerialNumber(), mCaptureBackend.getName());
+        }
+        return mCaptureBackend;
+    }
+
+    /**
+     * Opens a capture backend on any connected device, independently of the target device. The caller
+     * owns it and must close it.
+     *
+     * @param name backend to use, or null for the preferred one
+     * @return null if the device is not connected
+     */
+    CaptureBackend openCaptureBackend(String serialNumber, String name) {
+        IDevice device = findDevice(serialNumber);
+        if (device == null) {
             return null;
-        // convert raw data to an Image
-        int index = 0;
-        int IndexInc = rawImage.bpp >> 3;
-        for (int y = 0; y < rawImage.height; y++) {
-            for (int x = 0; x < rawImage.width; x++) {
-                int value = rawImage.getARGB(index);
-                index += IndexInc;
-                buffy.setRGB(x, y, value);
+        }
+        return createCaptureBackend(device, name != null ? name : mPreferredCaptureBackend);
+    }
+
+    private CaptureBackend createCaptureBackend(IDevice device, String name) {
+        if (DdmlibCaptureBackend.NAME.equals(name)) {
+            return new DdmlibCaptureBackend(device);
+        }
+
+        int apiLevel = getApiLevel(device);
+        if (ExecOutCaptureBackend.NAME.equals(name)) {
+            return new ExecOutCaptureBackend(mAdbPath, device, apiLevel, mAdbClient.getTimeout());
+        }
+        // Works on any device, a failure falls back to ddmlib
+        return new NioCaptureBackend(mAdbClient, device.getSerialNumber(), apiLevel);
+    }
+
+    private IDevice findDevice(String serialNumber) {
+        for (IDevice device : devices) {
+            if (device.getSerialNumber().equals(serialNumber)) {
+                return device;
             }
         }
-        return buffy;
+        return null;
     }
 
-    public boolean saveScreenShotToFile(File file) {
-        if (mDevice == null) {
-            return false;
+    private synchronized DeviceInput getDeviceInput(IDevice device) {
+        DeviceInput input = mInputs.get(device.getSerialNumber());
+        if (input == null || input.getDevice() != device) {
+            if (input != null) {
+                input.close();
+            }
+            input = new DeviceInput(mAdbClient, device, mInputQueueSize, mInputTimeout, mInputBatchWindow);
+            mInputs.put(device.getSerialNumber(), input);
+        }
+        return input;
+    }
+
+    /**
+     * Closes the input of devices that are neither the target nor broadcast to.
+     */
+    private synchronized void closeUnusedInputs() {
+        for (Iterator<DeviceInput> iterator = mInputs.values().iterator(); iterator.hasNext();) {
+            DeviceInput input = iterator.next();
+            IDevice device = input.getDevice();
+            if (device != mDevice && !mBroadcastDevices.contains(device.getSerialNumber())) {
+                input.close();
+                iterator.remove();
+            }
+        }
+    }
+
+    private synchronized void closeInputs() {
+        for (DeviceInput input : mInputs.values()) {
+            input.close();
+        }
+        mInputs.clear();
+    }
+
+    /**
+     * Drops the current capture backend, the next capture opens a new one of the preferred kind. The
+     * backend is closed in the background, out of the lock and off the calling thread, as a capture
+     * may be blocked in it.
+     */
+    void closeCaptureBackend() {
+        closeInBackground(detachCaptureBackend());
+    }
+
+    private void discardCaptureBackend(CaptureBackend backend) {
+        synchronized (this) {
+            if (mCaptureBackend != backend) {
+                return;
+            }
+            mCaptureBackend = null;
+        }
+        closeInBackground(backend);
+    }
+
+    private synchronized CaptureBackend detachCaptureBackend() {
+        CaptureBackend backend = mCaptureBackend;
+        mCaptureBackend = null;
+        return backend;
+    }
+
+    private static void closeInBackground(final CaptureBackend backend) {
+        if (backend == null) {
+            return;
+        }
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                backend.close();
+            }
+        }, "ars-capture-close");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    static int getApiLevel(IDevice device) {
+        try {
+            String apiLevel = device.getSystemProperty(IDevice.PROP_BUILD_API_LEVEL).get(5, TimeUnit.SECONDS);
+            return apiLevel != null ? Integer.parseInt(apiLevel.trim()) : -1;
+        } catch (Exception e) {
+            return -1;
+        }
+    }
+
+    void ensureFrameCapacity(int frames) {
+        mFramePool.ensureCapacity(frames);
+    }
+
+    /**
+     * Converts a raw framebuffer to a pooled frame owned by the caller, rotated as asked, and releases
+     * the raw framebuffer. Safe to call from several threads at once.
+     *
+     * @return null if the thread was interrupted, the partially converted frame is released
+     * @throws RuntimeException if the pixel format isn't supported or a band fails, the frame is
+     *             released as well
+     */
+    Frame convertRawFrame(RawFrame raw, Rotation rotation) {
+        try {
+            RawImage header = raw.header;
+            PixelConverter converter = mConverter;
+            if (converter == null || !converter.matches(header)) {
+                mConverter = converter = PixelConverter.forImage(header);
+            }
+            Frame frame = mFramePool.obtain(rotation.rotatedWidth(header.width, header.height),
+                    rotation.rotatedHeight(header.width, header.height));
+            boolean converted = false;
+            try {
+                converted = converter.convert(header, raw.pixels, frame.pixels, rotation);
+            } finally {
+                if (!converted) {
+                    frame.release();
+                }
+            }
+            if (!converted) {
+                return null;
+            }
+            frame.rotation = rotation;
+            return frame;
+        } finally {
+            raw.release();
+        }
+    }
+
+    /**
+     * Returns the device display orientation, from 0 to 3 as in Surface.ROTATION_*, or -1 if unknown.
+     */
+    int queryDisplayOrientation() {
+        String output = executeShellQuery(mDevice, Constants.Adb.CMD_DISPLAY_ORIENTATION);
+        if (output == null) {
+            return -1;
         }
+        Matcher matcher = ORIENTATION_PATTERN.matcher(output);
+        if (!matcher.find()) {
+            return -1;
+        }
+        int orientation = Integer.parseInt(matcher.group(1));
+        mDisplayOrientation = orientation;
+        return orientation;
+    }
 
-        BufferedImage image = retrieveScreenShot();
+    /**
+     * Runs a shell command on the given device and returns its output, or null on failure.
+     */
+    private String executeShellQuery(IDevice device, String command) {
+        if (device == null) {
+            return null;
+        }
         try {
-            return ImageIO.write(image, "png", file);
+            return mAdbClient.shell(device.getSerialNumber(), command);
         } catch (IOException e) {
-            Logger.e(e.getMessage());
-            e.printStackTrace();
-            return false;
+            Logger.e("Unable to reach adb server directly, using ddmlib: %s", e.getMessage());
+        }
+        CollectingOutputReceiver receiver = new CollectingOutputReceiver();
+        try {
+            device.executeShellCommand(command, receiver);
+            return receiver.getOutput();
+        } catch (TimeoutException | AdbCommandRejectedException | ShellCommandUnresponsiveException
+                | IOException e) {
+            Logger.e("Unable to execute '%s': %s", command, e.getMessage());
+            return null;
         }
     }
 
     interface OnDevicesChangedListener {
         void onDevicesChanged(String[] devices);
+
+        /**
+         * Called on the event thread when the adb server couldn't be reached, another attempt is
+         * made after a delay or on {@link AdbHelper#retryBridgeNow()}.
+         */
+        void onBridgeUnavailable();
+    }
+
+    interface OnTargetAttachedListener {
+        /**
+         * Called when the target device comes back after being disconnected.
+         */
+        void onTargetAttached(String serialNumber);
+    }
+
+    interface OnInputListener {
+        /**
+         * Called on the calling thread before an input command is sent to the device.
+         */
+        void onInput(String command);
     }
 
-    private class DevicesWatcher implements Runnable {
+    /**
+     * Follows device connections through ddmlib events, with a slow poll in case an event is missed.
+     * Bursts of events, such as a device going through several states while booting, result in a
+     * single listener call once they settle.
+     */
+    private class DevicesWatcher implements AndroidDebugBridge.IDeviceChangeListener, Runnable {
+
+        private static final int DEBOUNCE_DELAY = 250;
+        private static final long POLL_INTERVAL = 30000;
 
-        Thread mWatchThread;
+        private Thread mPollThread;
         private String[] mOldDevices;
-        private OnDevicesChangedListener mListener;
+        private final OnDevicesChangedListener mListener;
+        private final Timer mDebounceTimer;
 
         public DevicesWatcher(OnDevicesChangedListener listener) {
             mListener = listener;
+            mDebounceTimer = new Timer(DEBOUNCE_DELAY, new ActionListener() {
+                @Override
+                public void actionPerformed(ActionEvent e) {
+                    update();
+                }
+            });
+            mDebounceTimer.setRepeats(false);
         }
 
-        void startWach() {
-            mWatchThread = new Thread(this);
-            mWatchThread.start();
+        void startWatch() {
+            AndroidDebugBridge.addDeviceChangeListener(this);
+            mPollThread = new Thread(this, "ars-devices-poll");
+            mPollThread.setDaemon(true);
+            mPollThread.start();
+            scheduleUpdate();
         }
 
         void stopWatch() {
-            mWatchThread.interrupt();
-            mWatchThread = null;
+            AndroidDebugBridge.removeDeviceChangeListener(this);
+            mPollThread.interrupt();
+            mPollThread = null;
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    mDebounceTimer.stop();
+                }
+            });
         }
 
         @Override
-        public void run() {
-            while (!Thread.interrupted()) {
-                final String[] newDevices = getConnectedDevices();
-                if (!Arrays.equals(newDevices, mOldDevices)) {
-                    mOldDevices = newDevices;
-                    SwingUtilities.invokeLater(new Runnable() {
-                        @Override
-                        public void run() {
-                            mListener.onDevicesChanged(newDevices);
-                        }
-                    });
-                }
+        public void deviceConnected(IDevice device) {
+            scheduleUpdate();
+        }
+
+        @Override
+        public void deviceDisconnected(IDevice device) {
+            scheduleUpdate();
+        }
+
+        @Override
+        public void deviceChanged(IDevice device, int changeMask) {
+            // Such as unauthorized to online, property changes don't matter here
+            if ((changeMask & IDevice.CHANGE_STATE) != 0) {
+                scheduleUpdate();
+            }
+        }
 
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
                 try {
-                    Thread.sleep(5000);
+                    Thread.sleep(POLL_INTERVAL);
                 } catch (InterruptedException e) {
-                    e.printStackTrace();
+                    return;
+                }
+                scheduleUpdate();
+            }
+        }
+
+        void reportBridgeUnavailable() {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    mListener.onBridgeUnavailable();
+                }
+            });
+        }
+
+        void scheduleUpdate() {
+            SwingUtilities.invokeLater(new Runnable() {
+                @Override
+                public void run() {
+                    mDebounceTimer.restart();
                 }
+            });
+        }
+
+        /**
+         * Called on the event thread once events settled.
+         */
+        private void update() {
+            if (adb == null) {
+                // Not connected yet, don't report an empty list before knowing
+                return;
+            }
+            String[] newDevices = getConnectedDevices();
+            if (!Arrays.equals(newDevices, mOldDevices)) {
+                mOldDevices = newDevices;
+                mListener.onDevicesChanged(newDevices);
             }
+            StartupMetrics.reached(StartupMetrics.DEVICES_LISTED);
         }
     }
 }
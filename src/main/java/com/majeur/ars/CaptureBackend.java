@@ -0,0 +1,30 @@
+package com.majeur.ars;
+
+import java.io.IOException;
+
+/**
+ * A way of retrieving device framebuffers. Implementations must support being called from several
+ * capture threads, serializing calls if they have to.
+ */
+interface CaptureBackend {
+
+    String getName();
+
+    /**
+     * Returns the next device framebuffer, blocking until it is available. The caller must release
+     * it once done.
+     */
+    RawFrame capture() throws IOException;
+
+    /**
+     * Tells how far apart captures are requested, in milliseconds, 0 if as soon as possible. Streaming
+     * backends only skip an outdated frame when a capture comes later than that.
+     */
+    void setCaptureInterval(long intervalMillis);
+
+    /**
+     * Releases the resources held by the backend, capture can't be called afterwards. May be called
+     * from any thread while a capture is blocked, which then fails without waiting for its timeout.
+     */
+    void close();
+}
@@ -0,0 +1,360 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicLong;
+
+/**
+ * Runs screen capture as three stages linked by bounded queues: fetching the framebuffer from the
+ * device, converting it to a {@link Frame}, and handing it to the renderer. Captures are paced by a
+ * {@link FrameScheduler}. Fetching frame N+1 overlaps with converting frame N and painting frame
+ * N-1, so throughput is bound by the slowest stage rather than by the sum of all of them. Each stage
+ * runs on its own configurable number of threads; frames overtaken by a newer one on the way are
+ * dropped before rendering.
+ * <p>
+ * The pipeline never gives up on its device: failed captures are retried as decided by a
+ * {@link CaptureSession}, until the device answers again or reconnects.
+ */
+class CapturePipeline {
+
+    interface Listener {
+
+        /**
+         * Called from a render thread with frames in increasing capture order, ownership is passed to
+         * the listener. {@link Frame#dirtyRegions} tells what changed since the previous frame.
+         */
+        void onFrame(Frame frame);
+
+        /**
+         * Called from a capture thread when the capture session state changes, e.g. when the device
+         * stops answering and the pipeline starts reconnecting.
+         */
+        void onCaptureStateChanged(CapturePipeline pipeline, CaptureSession.State state);
+    }
+
+    private static final long ORIENTATION_POLL_INTERVAL = 2000;
+    private static final long ORIENTATION_MAX_POLL_INTERVAL = 30000;
+
+    private final AdbHelper mAdbHelper;
+    private final Listener mListener;
+    private final FrameScheduler mScheduler;
+    private final long mCaptureTimeout;
+    private final int mCaptureThreads, mConvertThreads, mRenderThreads;
+
+    private final BlockingQueue<Capture> mCaptureQueue;
+    private final BlockingQueue<Frame> mFrameQueue;
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    private final AtomicLong mSequence = new AtomicLong();
+    private final CaptureSession mSession;
+    private volatile Rotation mRotation = Rotation.ROTATE_0;
+    private volatile boolean mAutoRotate;
+    private volatile int mDisplayOrientation = -1;
+    private final OrientationWatcher mOrientationWatcher = new OrientationWatcher();
+    private final DirtyRegionTracker mDirtyRegionTracker = new DirtyRegionTracker();
+    private long mLastRenderedSequence;
+
+    private final AdbHelper.OnTargetAttachedListener mTargetListener = new AdbHelper.OnTargetAttachedListener() {
+        @Override
+        public void onTargetAttached(String serialNumber) {
+            mSession.retryNow();
+        }
+    };
+
+    private final AdbHelper.OnInputListener mInputListener = new AdbHelper.OnInputListener() {
+        @Override
+        public void onInput(String command) {
+            mScheduler.onUserInput();
+        }
+    };
+
+    CapturePipeline(AdbHelper helper, Config config, Listener listener) {
+        mAdbHelper = helper;
+        mListener = listener;
+        mSession = new CaptureSession(helper.getTargetSerialNumber(), new CaptureSession.Listener() {
+            @Override
+            public void onStateChanged(CaptureSession.State state) {
+                mListener.onCaptureStateChanged(CapturePipeline.this, state);
+            }
+        });
+        mCaptureThreads = Math.max(1, config.getCaptureThreads());
+        mConvertThreads = Math.max(1, config.getConvertThreads());
+        mRenderThreads = Math.max(1, config.getRenderThreads());
+        mCaptureQueue = new ArrayBlockingQueue<>(Math.max(1, config.getPipelineQueueSize()));
+        mFrameQueue = new ArrayBlockingQueue<>(Math.max(1, config.getPipelineQueueSize()));
+        mScheduler = new FrameScheduler(config.getTargetFps(), config.getMaxIdleDelay(), mCaptureThreads,
+                mConvertThreads);
+        mCaptureTimeout = config.getCaptureTimeout();
+
+        // Frames being converted, queued, rendered, published and painted
+        helper.ensureFrameCapacity(mConvertThreads + mFrameQueue.remainingCapacity() + mRenderThreads + 2);
+    }
+
+    synchronized void start() {
+        mAdbHelper.addInputListener(mInputListener);
+        mAdbHelper.addTargetAttachedListener(mTargetListener);
+        for (int i = 0; i < mCaptureThreads; i++) {
+            startStage(new CaptureStage(), "capture-" + i);
+        }
+        for (int i = 0; i < mConvertThreads; i++) {
+            startStage(new ConvertStage(), "convert-" + i);
+        }
+        for (int i = 0; i < mRenderThreads; i++) {
+            startStage(new RenderStage(), "render-" + i);
+        }
+        startStage(mOrientationWatcher, "orientation");
+    }
+
+    /**
+     * Sets the rotation applied to frames, or lets it follow the device display when {@code auto} is
+     * set.
+     */
+    void setRotation(Rotation rotation, boolean auto) {
+        mRotation = rotation;
+        mAutoRotate = auto;
+        // Don't wait for the screen to change to show the new orientation
+        mScheduler.onUserInput();
+    }
+
+    synchronized void stop() {
+        mAdbHelper.removeInputListener(mInputListener);
+        mAdbHelper.removeTargetAttachedListener(mTargetListener);
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+        mThreads.clear();
+
+        // Stages release what they hold when interrupted, only queued frames are left
+        Capture capture;
+        while ((capture = mCaptureQueue.poll()) != null) {
+            capture.raw.release();
+        }
+        Frame frame;
+        while ((frame = mFrameQueue.poll()) != null) {
+            frame.release();
+        }
+    }
+
+    private void startStage(Runnable stage, String name) {
+        Thread thread = new Thread(stage, "ars-" + name);
+        thread.setDaemon(true);
+        thread.start();
+        mThreads.add(thread);
+    }
+
+    private static final class Capture {
+        final RawFrame raw;
+        final long sequence;
+        final long timestamp;
+
+        Capture(RawFrame raw, long sequence, long timestamp) {
+            this.raw = raw;
+            this.sequence = sequence;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private class CaptureStage implements Runnable {
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            while (!thread.isInterrupted()) {
+                try {
+                    mScheduler.awaitNextCapture();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                long start = System.nanoTime();
+                // The frame waiting in a stream since the previous capture isn't outdated while idle,
+                // a transfer stalled past its interval and the timeout fails like any other capture
+                long interval = TimeUnit.NANOSECONDS.toMillis(mScheduler.getIntervalNanos());
+                RawFrame raw = mAdbHelper.fetchRawFrame(interval,
+                        mCaptureTimeout > 0 ? interval + mCaptureTimeout : 0);
+                if (thread.isInterrupted()) {
+                    if (raw != null) {
+                        raw.release();
+                    }
+                    return;
+                }
+                if (raw == null) {
+                    long delay = mSession.onFailure();
+                    if (mSession.getState() == CaptureSession.State.RECONNECTING) {
+                        // Doesn't wait for captures of other threads, closing fails them right away
+                        mAdbHelper.closeCaptureBackend();
+                    }
+                    try {
+                        mSession.awaitRetry(delay);
+                    } catch (InterruptedException e) {
+                        return;
+                    }
+                    continue;
+                }
+                mSession.onSuccess();
+                mScheduler.onCaptureDone(System.nanoTime() - start);
+
+                try {
+                    mCaptureQueue.put(new Capture(raw, mSequence.incrementAndGet(), System.currentTimeMillis()));
+                } catch (InterruptedException e) {
+                    raw.release();
+                    return;
+                }
+            }
+        }
+    }
+
+    private class ConvertStage implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Capture capture;
+                try {
+                    capture = mCaptureQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                RawFrame raw = capture.raw;
+                mOrientationWatcher.onFrameSize(raw.header.width, raw.header.height);
+                int orientation = mDisplayOrientation;
+                Rotation displayRotation = orientation < 0 ? Rotation.ROTATE_0
+                        : Rotation.forDisplay(orientation, raw.header.width, raw.header.height);
+
+                long start = System.nanoTime();
+                Frame frame;
+                try {
+                    frame = mAdbHelper.convertRawFrame(raw, mAutoRotate ? displayRotation : mRotation);
+                } catch (RuntimeException e) {
+                    // E.g. an unsupported pixel format, both frames are released already. Fails like a
+                    // capture, the session decides when to try again
+                    Logger.e("Unable to convert frame: %s", e);
+                    try {
+                        mSession.awaitRetry(mSession.onFailure());
+                    } catch (InterruptedException interrupted) {
+                        return;
+                    }
+                    continue;
+                }
+                if (frame == null) {
+                    // Interrupted while converting
+                    return;
+                }
+                frame.displayRotation = displayRotation;
+                mScheduler.onConvertDone(System.nanoTime() - start);
+                frame.sequence = capture.sequence;
+                frame.timestamp = capture.timestamp;
+
+                try {
+                    mFrameQueue.put(frame);
+                } catch (InterruptedException e) {
+                    frame.release();
+                    return;
+                }
+            }
+        }
+    }
+
+    private class RenderStage implements Runnable {
+
+        @Override
+        public void run() {
+            while (!Thread.currentThread().isInterrupted()) {
+                Frame frame;
+                try {
+                    frame = mFrameQueue.take();
+                } catch (InterruptedException e) {
+                    return;
+                }
+
+                if (trackChanges(frame)) {
+                    mScheduler.onFrameChanged(!frame.dirtyRegions.isEmpty());
+                    mOrientationWatcher.onFrameChanged(!frame.dirtyRegions.isEmpty());
+                    mListener.onFrame(frame);
+                } else {
+                    // A newer frame already made it through a parallel stage
+                    frame.release();
+                }
+            }
+        }
+
+        /**
+         * Computes the frame dirty regions, or returns false if the frame is older than the last one
+         * rendered.
+         */
+        private boolean trackChanges(Frame frame) {
+            synchronized (mDirtyRegionTracker) {
+                if (frame.sequence <= mLastRenderedSequence) {
+                    return false;
+                }
+                mLastRenderedSequence = frame.sequence;
+                frame.dirtyRegions = mDirtyRegionTracker.update(frame);
+                return true;
+            }
+        }
+    }
+
+    /**
+     * Polls the device display orientation, used to rotate frames automatically and to map input
+     * coordinates. The device is only queried while frames are streaming. Polls back off while the
+     * screen stays still, and a change of the frame size, which often comes with a rotation, triggers
+     * one right away.
+     */
+    private class OrientationWatcher implements Runnable {
+
+        private int mWidth, mHeight;
+        private boolean mCheckNow, mScreenChanged;
+
+        @Override
+        public void run() {
+            Thread thread = Thread.currentThread();
+            long interval = ORIENTATION_POLL_INTERVAL;
+            while (!thread.isInterrupted()) {
+                CaptureSession.State state = mSession.getState();
+                if (state == CaptureSession.State.STREAMING || state == CaptureSession.State.DEGRADED) {
+                    int orientation = mAdbHelper.queryDisplayOrientation();
+                    if (orientation != mDisplayOrientation) {
+                        mDisplayOrientation = orientation;
+                        mScheduler.onUserInput();
+                    }
+                }
+
+                synchronized (this) {
+                    long deadline = System.currentTimeMillis() + interval;
+                    long wait;
+                    while (!mCheckNow && (wait = deadline - System.currentTimeMillis()) > 0) {
+                        try {
+                            wait(wait);
+                        } catch (InterruptedException e) {
+                            return;
+                        }
+                    }
+                    interval = mCheckNow || mScreenChanged ? ORIENTATION_POLL_INTERVAL
+                            : Math.min(interval * 2, ORIENTATION_MAX_POLL_INTERVAL);
+                    mCheckNow = mScreenChanged = false;
+                }
+            }
+        }
+
+        /**
+         * Called for every captured frame, checks the orientation right away when the size changes.
+         */
+        synchronized void onFrameSize(int width, int height) {
+            if (width != mWidth || height != mHeight) {
+                mWidth = width;
+                mHeight = height;
+                mCheckNow = true;
+                notifyAll();
+            }
+        }
+
+        synchronized void onFrameChanged(boolean changed) {
+            mScreenChanged |= changed;
+        }
+    }
+}
@@ -0,0 +1,115 @@
+package com.majeur.ars;
+
+import java.util.concurrent.ThreadLocalRandom;
+
+/**
+ * Health of the capture of one device, deciding when to try again after a failure. Isolated
+ * failures, such as a timeout or a USB hiccup, are retried shortly within a retry budget while the
+ * session is {@link State#DEGRADED}. Once the budget is spent the session is
+ * {@link State#RECONNECTING}: the backend is reopened with an exponential backoff, retried right away
+ * when the device comes back under the same serial number.
+ */
+class CaptureSession {
+
+    enum State {
+        CONNECTING, STREAMING, DEGRADED, RECONNECTING
+    }
+
+    interface Listener {
+
+        /**
+         * Called from the capture thread which changed the state.
+         */
+        void onStateChanged(State state);
+    }
+
+    /** Consecutive failures tolerated before reconnecting. */
+    private static final int RETRY_BUDGET = 3;
+    private static final long RETRY_DELAY = 100;
+    private static final long MIN_BACKOFF = 500;
+    private static final long MAX_BACKOFF = 30000;
+
+    private final String mSerialNumber;
+    private final Listener mListener;
+    private State mState = State.CONNECTING;
+    private int mFailures;
+    private long mBackoff;
+    private long mWakeUps;
+
+    /**
+     * @param listener notified of state changes, may be null
+     */
+    CaptureSession(String serialNumber, Listener listener) {
+        mSerialNumber = serialNumber;
+        mListener = listener;
+    }
+
+    synchronized State getState() {
+        return mState;
+    }
+
+    void onSuccess() {
+        synchronized (this) {
+            mFailures = 0;
+            mBackoff = 0;
+        }
+        setState(State.STREAMING);
+    }
+
+    /**
+     * Records a failed capture and returns how long to wait before the next attempt, in milliseconds.
+     * When the state becomes {@link State#RECONNECTING}, the caller should reopen its backend.
+     */
+    long onFailure() {
+        State state;
+        long delay;
+        synchronized (this) {
+            mFailures++;
+            if (mFailures <= RETRY_BUDGET) {
+                state = mState == State.CONNECTING ? State.CONNECTING : State.DEGRADED;
+                delay = RETRY_DELAY * mFailures;
+            } else {
+                state = State.RECONNECTING;
+                mBackoff = mBackoff == 0 ? MIN_BACKOFF : Math.min(MAX_BACKOFF, mBackoff * 2);
+                // Spread retries of devices sharing a hub that dropped them all at once
+                delay = mBackoff + ThreadLocalRandom.current().nextLong(mBackoff / 4 + 1);
+            }
+        }
+        setState(state);
+        return delay;
+    }
+
+    /**
+     * Ends the current backoff, e.g. when the device is attached again.
+     */
+    synchronized void retryNow() {
+        mBackoff = 0;
+        mWakeUps++;
+        notifyAll();
+    }
+
+    /**
+     * Waits before retrying, returning early on {@link #retryNow()}.
+     */
+    synchronized void awaitRetry(long delay) throws InterruptedException {
+        long wakeUps = mWakeUps;
+        long deadline = System.currentTimeMillis() + delay;
+        long remaining;
+        while (wakeUps == mWakeUps && (remaining = deadline - System.currentTimeMillis()) > 0) {
+            wait(remaining);
+        }
+    }
+
+    private void setState(State state) {
+        synchronized (this) {
+            if (state == mState) {
+                return;
+            }
+            mState = state;
+        }
+        Logger.i("Capture of %s %s", mSerialNumber, state.name().toLowerCase());
+        if (mListener != null) {
+            mListener.onStateChanged(state);
+        }
+    }
+}
@@ -0,0 +1,321 @@
+package com.majeur.ars;
+
+import java.awt.Color;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.Callable;
+import java.util.concurrent.ExecutionException;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.Future;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.Semaphore;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * Exports a frame stream, live from the capture pipeline or read from a recording, to a clip written
+ * by a {@link ClipWriter}. Frames are decimated to the clip frame rate and scaled, then encoded in
+ * parallel by a pool of threads. A mux thread waits for them in submission order and writes them,
+ * each lasting until the next one was captured.
+ */
+class ClipExporter implements FrameObserver {
+
+    /** Frames being encoded or waiting to be written, per encoder thread. */
+    private static final int FRAMES_PER_THREAD = 2;
+
+    private static final Object END = new Object();
+
+    private static class Pending {
+        final Future<byte[]> frame;
+        final long timestamp;
+
+        Pending(Future<byte[]> frame, long timestamp) {
+            this.frame = frame;
+            this.timestamp = timestamp;
+        }
+    }
+
+    private final File mFile;
+    private final double mScale;
+    private final int mFps;
+    private final int mQuality;
+    private final ExecutorService mEncoders;
+    private final Semaphore mSlots;
+    private final BlockingQueue<Object> mMuxQueue = new LinkedBlockingQueue<>();
+    private final Thread mMuxThread;
+    private ClipWriter mWriter;
+    private int mWidth, mHeight;
+    private long mNextDue = Long.MIN_VALUE;
+    private boolean mFinished;
+    private volatile boolean mFailed;
+    private volatile long mSkippedCount, mWrittenCount;
+    private long mStartTime;
+
+    /**
+     * @param scale output size relative to the frames, from 0 to 1
+     * @param quality compression quality from 0 to 100, for formats that support it
+     */
+    ClipExporter(File file, double scale, int fps, int threads, int quality) {
+        mFile = file;
+        mScale = Math.max(0.05, Math.min(1, scale));
+        mFps = Math.max(1, fps);
+        mQuality = quality;
+        mSlots = new Semaphore(threads * FRAMES_PER_THREAD);
+        final AtomicInteger count = new AtomicInteger();
+        mEncoders = Executors.newFixedThreadPool(threads, new ThreadFactory() {
+            @Override
+            public Thread newThread(Runnable runnable) {
+                Thread thread = new Thread(runnable, "ars-export-" + count.incrementAndGet());
+                thread.setDaemon(true);
+                thread.setPriority(Thread.MIN_PRIORITY);
+                return thread;
+            }
+        });
+        mMuxThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                mux();
+            }
+        }, "ars-export-mux");
+        mMuxThread.setDaemon(true);
+        mMuxThread.start();
+    }
+
+    /**
+     * Creates an exporter with the export settings of the configuration, writing an AVI unless the
+     * file name ends with the GIF extension.
+     */
+    static ClipExporter create(File file, Config config) {
+        return new ClipExporter(ClipWriter.withExtension(file), config.getExportScale() / 100.0,
+                config.getExportFps(), config.getExportThreads(), config.getExportQuality());
+    }
+
+    /**
+     * Exports live frames without holding the pipeline back, frames arriving while all encoders are
+     * busy are skipped.
+     */
+    @Override
+    public void onFrame(final Frame frame, List<Rectangle> dirtyRegions) {
+        synchronized (this) {
+            if (!isDue(frame.timestamp) || !prepare(frame.width, frame.height)) {
+                return;
+            }
+            if (!mSlots.tryAcquire()) {
+                mSkippedCount++;
+                return;
+            }
+            frame.retain();
+            submit(new Callable<BufferedImage>() {
+                @Override
+                public BufferedImage call() {
+                    try {
+                        return scale(frame.image);
+                    } finally {
+                        frame.release();
+                    }
+                }
+            }, frame.timestamp);
+        }
+    }
+
+    /**
+     * Exports the frames of a recording, waiting for encoders to keep up. Runs until the end of the
+     * recording, from the calling thread.
+     */
+    void export(SessionPlayer player) throws IOException, InterruptedException {
+        while (!mFailed && player.next()) {
+            BufferedImage image = player.getImage();
+            synchronized (this) {
+                if (!isDue(player.getPosition()) || !prepare(image.getWidth(), image.getHeight())) {
+                    continue;
+                }
+            }
+            // The player image is overwritten by the next frame, scale it right away
+            final BufferedImage scaled = scale(image);
+            mSlots.acquire();
+            synchronized (this) {
+                submit(new Callable<BufferedImage>() {
+                    @Override
+                    public BufferedImage call() {
+                        return scaled;
+                    }
+                }, player.getPosition());
+            }
+        }
+    }
+
+    /**
+     * Writes the frames still being encoded, closes the clip and logs the export rate.
+     */
+    void finish() {
+        synchronized (this) {
+            if (mFinished) {
+                return;
+            }
+            mFinished = true;
+        }
+        mMuxQueue.add(END);
+        try {
+            mMuxThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        mEncoders.shutdown();
+    }
+
+    /**
+     * Decimates frames to the clip frame rate, must hold the lock.
+     */
+    private boolean isDue(long timestamp) {
+        if (mFinished || mFailed) {
+            return false;
+        }
+        long interval = 1000 / mFps;
+        if (mNextDue != Long.MIN_VALUE && timestamp < mNextDue) {
+            return false;
+        }
+        mNextDue = mNextDue == Long.MIN_VALUE || timestamp - mNextDue >= interval ? timestamp + interval
+                : mNextDue + interval;
+        return true;
+    }
+
+    /**
+     * Opens the clip on the first frame, whose size sets the clip size. Must hold the lock.
+     */
+    private boolean prepare(int width, int height) {
+        if (mWriter != null) {
+            return true;
+        }
+        // Even sizes keep video players happy
+        mWidth = Math.max(2, (int) (width * mScale) & ~1);
+        mHeight = Math.max(2, (int) (height * mScale) & ~1);
+        try {
+            mWriter = ClipWriter.create(mFile, mWidth, mHeight, mFps, mQuality);
+        } catch (IOException e) {
+            Logger.e("Unable to export to %s: %s", mFile.getName(), e.getMessage());
+            mFailed = true;
+            return false;
+        }
+        mStartTime = System.nanoTime();
+        return true;
+    }
+
+    /**
+     * Encodes a frame on the pool and queues it to be written, must hold the lock so that the mux
+     * order matches the frame order.
+     */
+    private void submit(final Callable<BufferedImage> source, long timestamp) {
+        final ClipWriter writer = mWriter;
+        Future<byte[]> frame = mEncoders.submit(new Callable<byte[]>() {
+            @Override
+            public byte[] call() throws Exception {
+                return writer.encode(source.call());
+            }
+        });
+        mMuxQueue.add(new Pending(frame, timestamp));
+    }
+
+    /**
+     * Scales a frame to the clip size, fitting frames of another size, e.g. after a rotation, in the
+     * middle.
+     */
+    private BufferedImage scale(BufferedImage image) {
+        BufferedImage scaled = new BufferedImage(mWidth, mHeight, BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = scaled.createGraphics();
+        try {
+            graphics.setRenderingHint(RenderingHints.KEY_INTERPOLATION, RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+            double ratio = Math.min((double) mWidth / image.getWidth(), (double) mHeight / image.getHeight());
+            int width = (int) Math.round(image.getWidth() * ratio), height = (int) Math.round(image.getHeight() * ratio);
+            graphics.setColor(Color.BLACK);
+            graphics.fillRect(0, 0, mWidth, mHeight);
+            graphics.drawImage(image, (mWidth - width) / 2, (mHeight - height) / 2, width, height, null);
+        } finally {
+            graphics.dispose();
+        }
+        return scaled;
+    }
+
+    private void mux() {
+        byte[] previous = null;
+        long previousTimestamp = 0;
+        while (true) {
+            Object item;
+            try {
+                item = mMuxQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (item == END) {
+                break;
+            }
+            Pending pending = (Pending) item;
+            byte[] frame;
+            try {
+                frame = pending.frame.get();
+            } catch (InterruptedException e) {
+                break;
+            } catch (ExecutionException e) {
+                Logger.e("Unable to encode frame: %s", e.getCause().getMessage());
+                continue;
+            } finally {
+                mSlots.release();
+            }
+            // A frame is written once the next one tells how long it lasts
+            if (previous != null) {
+                write(previous, pending.timestamp - previousTimestamp);
+            }
+            previous = frame;
+            previousTimestamp = pending.timestamp;
+        }
+        if (previous != null) {
+            write(previous, 1000 / mFps);
+        }
+
+        ClipWriter writer;
+        synchronized (this) {
+            writer = mWriter;
+        }
+        if (writer == null) {
+            Logger.i("Nothing exported to %s", mFile.getName());
+            return;
+        }
+        try {
+            writer.close();
+        } catch (IOException e) {
+            Logger.e("Unable to close %s: %s", mFile.getName(), e.getMessage());
+            return;
+        }
+        double seconds = (System.nanoTime() - mStartTime) / 1e9;
+        Logger.i("Exported %d frames to %s in %.1f s, %.1f fps, %d skipped", mWrittenCount, mFile.getName(), seconds,
+                mWrittenCount / seconds, mSkippedCount);
+    }
+
+    private void write(byte[] frame, long duration) {
+        if (mFailed) {
+            return;
+        }
+        try {
+            if (!mWriter.write(frame, duration)) {
+                // Stops the export like a failure, but the clip is complete up to here
+                Logger.e("%s reached the maximum clip size, export stopped", mFile.getName());
+                mFailed = true;
+                return;
+            }
+            mWrittenCount++;
+        } catch (IOException e) {
+            Logger.e("Unable to write to %s: %s", mFile.getName(), e.getMessage());
+            mFailed = true;
+        }
+    }
+
+    long getWrittenCount() {
+        return mWrittenCount;
+    }
+}
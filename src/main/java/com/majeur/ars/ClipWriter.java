@@ -0,0 +1,52 @@
+package com.majeur.ars;
+
+import java.awt.image.BufferedImage;
+import java.io.Closeable;
+import java.io.File;
+import java.io.IOException;
+import java.util.Locale;
+
+/**
+ * Video container fed by a {@link ClipExporter}. Frames are encoded independently of each other, from
+ * any thread, then written in order by a single thread.
+ */
+abstract class ClipWriter implements Closeable {
+
+    static final String FORMAT_AVI = "avi";
+    static final String FORMAT_GIF = "gif";
+
+    /**
+     * Creates a writer for the format matching the file extension, MJPEG in AVI unless it is a GIF.
+     */
+    static ClipWriter create(File file, int width, int height, int fps, int quality) throws IOException {
+        if (file.getName().toLowerCase(Locale.US).endsWith("." + FORMAT_GIF)) {
+            return new GifClipWriter(file, width, height);
+        }
+        return new MjpegAviWriter(file, width, height, fps, quality);
+    }
+
+    /**
+     * Appends the AVI extension to a file name lacking a clip extension.
+     */
+    static File withExtension(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith("." + FORMAT_AVI) || name.endsWith("." + FORMAT_GIF)) {
+            return file;
+        }
+        return new File(file.getPath() + "." + FORMAT_AVI);
+    }
+
+    /**
+     * Encodes a frame of the clip size, from any thread.
+     */
+    abstract byte[] encode(BufferedImage image) throws IOException;
+
+    /**
+     * Appends a frame returned by {@link #encode(BufferedImage)}, to be shown for {@code duration}
+     * milliseconds.
+     *
+     * @return false if the container is full and the frame was left out, possibly partially for a
+     *         repeated frame. The clip can still be closed, nothing more can be written.
+     */
+    abstract boolean write(byte[] frame, long duration) throws IOException;
+}
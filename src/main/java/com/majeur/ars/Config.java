@@ -24,11 +24,37 @@ public class Config {
     private int screenWidth;
     private int screenHeight;
     private int scale;
+    private int captureThreads;
+    private int convertThreads;
+    private int renderThreads;
+    private int pipelineQueueSize;
+    private int targetFps;
+    private long maxIdleDelay;
+    private long captureTimeout;
+    private String renderQuality;
+    private String captureBackend;
+    private int inputQueueSize;
+    private long inputTimeout;
+    private long inputBatchWindow;
+    private String touchMode;
+    private int touchMoveRate;
+    private int gridCaptureThreads;
+    private int gridFocusedFps;
+    private int gridBackgroundFps;
+    private int gridMaxFps;
+    private String screenshotFormat;
+    private int screenshotQuality;
+    private int screenshotThreads;
+    private int burstInterval;
+    private int exportScale;
+    private int exportFps;
+    private int exportThreads;
+    private int exportQuality;
 
     public void load(File file)  {
+        Properties properties = new Properties();
         try {
             InputStream in = new FileInputStream(file);
-            Properties properties = new Properties();
             properties.load(in);
 
             adbCommand = properties.getProperty("adbCommand");
@@ -44,6 +70,48 @@ public class Config {
             screenHeight = 800;
             scale = 50;
         }
+
+        // Optional settings, missing ones don't invalidate the whole file
+        captureThreads = getInt(properties, "captureThreads", 1);
+        convertThreads = getInt(properties, "convertThreads", 1);
+        renderThreads = getInt(properties, "renderThreads", 1);
+        pipelineQueueSize = getInt(properties, "pipelineQueueSize", 2);
+        targetFps = getInt(properties, "targetFps", 30);
+        maxIdleDelay = getInt(properties, "maxIdleDelay", 2000);
+        captureTimeout = getInt(properties, "captureTimeout", 3000);
+        renderQuality = properties.getProperty("renderQuality", "bilinear");
+        captureBackend = properties.getProperty("captureBackend", AdbHelper.CAPTURE_BACKEND_AUTO);
+        inputQueueSize = getInt(properties, "inputQueueSize", 64);
+        inputTimeout = getInt(properties, "inputTimeout", 5000);
+        inputBatchWindow = getInt(properties, "inputBatchWindow", 15);
+        touchMode = properties.getProperty("touchMode", TouchInjector.MODE_AUTO);
+        touchMoveRate = getInt(properties, "touchMoveRate", 30);
+        gridCaptureThreads = getInt(properties, "gridCaptureThreads",
+                Math.min(4, Runtime.getRuntime().availableProcessors()));
+        gridFocusedFps = getInt(properties, "gridFocusedFps", 15);
+        gridBackgroundFps = getInt(properties, "gridBackgroundFps", 2);
+        gridMaxFps = getInt(properties, "gridMaxFps", 60);
+        screenshotFormat = properties.getProperty("screenshotFormat", ScreenshotSaver.FORMAT_PNG);
+        screenshotQuality = getInt(properties, "screenshotQuality", 90);
+        screenshotThreads = getInt(properties, "screenshotThreads",
+                Math.max(1, Runtime.getRuntime().availableProcessors() / 2));
+        burstInterval = getInt(properties, "burstInterval", 10);
+        exportScale = getInt(properties, "exportScale", 50);
+        exportFps = getInt(properties, "exportFps", 10);
+        exportThreads = getInt(properties, "exportThreads", Runtime.getRuntime().availableProcessors());
+        exportQuality = getInt(properties, "exportQuality", 80);
+    }
+
+    private static int getInt(Properties properties, String key, int defaultValue) {
+        String value = properties.getProperty(key);
+        if (value == null) {
+            return defaultValue;
+        }
+        try {
+            return Integer.parseInt(value.trim());
+        } catch (NumberFormatException e) {
+            return defaultValue;
+        }
     }
 
     public String getAdbCommand() {
@@ -54,6 +122,10 @@ public class Config {
         this.adbCommand = adbCommand;
     }
 
+    /**
+     * Former fixed pause between captures, no longer used: captures follow targetFps and back off up
+     * to maxIdleDelay while the screen stays still.
+     */
     public long getScreenshotDelay() {
         return screenshotDelay;
     }
@@ -86,4 +158,215 @@ public class Config {
         this.scale = scale;
     }
 
+    public int getCaptureThreads() {
+        return captureThreads;
+    }
+
+    public void setCaptureThreads(int captureThreads) {
+        this.captureThreads = captureThreads;
+    }
+
+    public int getConvertThreads() {
+        return convertThreads;
+    }
+
+    public void setConvertThreads(int convertThreads) {
+        this.convertThreads = convertThreads;
+    }
+
+    public int getRenderThreads() {
+        return renderThreads;
+    }
+
+    public void setRenderThreads(int renderThreads) {
+        this.renderThreads = renderThreads;
+    }
+
+    public int getPipelineQueueSize() {
+        return pipelineQueueSize;
+    }
+
+    public void setPipelineQueueSize(int pipelineQueueSize) {
+        this.pipelineQueueSize = pipelineQueueSize;
+    }
+
+    public int getTargetFps() {
+        return targetFps;
+    }
+
+    public void setTargetFps(int targetFps) {
+        this.targetFps = targetFps;
+    }
+
+    public long getMaxIdleDelay() {
+        return maxIdleDelay;
+    }
+
+    public void setMaxIdleDelay(long maxIdleDelay) {
+        this.maxIdleDelay = maxIdleDelay;
+    }
+
+    /**
+     * Time a capture may take past its frame interval before it is aborted and retried, in milliseconds.
+     */
+    public long getCaptureTimeout() {
+        return captureTimeout;
+    }
+
+    public void setCaptureTimeout(long captureTimeout) {
+        this.captureTimeout = captureTimeout;
+    }
+
+    public String getRenderQuality() {
+        return renderQuality;
+    }
+
+    public void setRenderQuality(String renderQuality) {
+        this.renderQuality = renderQuality;
+    }
+
+    public String getCaptureBackend() {
+        return captureBackend;
+    }
+
+    public void setCaptureBackend(String captureBackend) {
+        this.captureBackend = captureBackend;
+    }
+
+    public int getInputQueueSize() {
+        return inputQueueSize;
+    }
+
+    public void setInputQueueSize(int inputQueueSize) {
+        this.inputQueueSize = inputQueueSize;
+    }
+
+    public long getInputTimeout() {
+        return inputTimeout;
+    }
+
+    public void setInputTimeout(long inputTimeout) {
+        this.inputTimeout = inputTimeout;
+    }
+
+    public long getInputBatchWindow() {
+        return inputBatchWindow;
+    }
+
+    public void setInputBatchWindow(long inputBatchWindow) {
+        this.inputBatchWindow = inputBatchWindow;
+    }
+
+    public String getTouchMode() {
+        return touchMode;
+    }
+
+    public void setTouchMode(String touchMode) {
+        this.touchMode = touchMode;
+    }
+
+    public int getTouchMoveRate() {
+        return touchMoveRate;
+    }
+
+    public void setTouchMoveRate(int touchMoveRate) {
+        this.touchMoveRate = touchMoveRate;
+    }
+
+    public int getGridCaptureThreads() {
+        return gridCaptureThreads;
+    }
+
+    public void setGridCaptureThreads(int gridCaptureThreads) {
+        this.gridCaptureThreads = gridCaptureThreads;
+    }
+
+    public int getGridFocusedFps() {
+        return gridFocusedFps;
+    }
+
+    public void setGridFocusedFps(int gridFocusedFps) {
+        this.gridFocusedFps = gridFocusedFps;
+    }
+
+    public int getGridBackgroundFps() {
+        return gridBackgroundFps;
+    }
+
+    public void setGridBackgroundFps(int gridBackgroundFps) {
+        this.gridBackgroundFps = gridBackgroundFps;
+    }
+
+    public int getGridMaxFps() {
+        return gridMaxFps;
+    }
+
+    public void setGridMaxFps(int gridMaxFps) {
+        this.gridMaxFps = gridMaxFps;
+    }
+
+    public String getScreenshotFormat() {
+        return screenshotFormat;
+    }
+
+    public void setScreenshotFormat(String screenshotFormat) {
+        this.screenshotFormat = screenshotFormat;
+    }
+
+    public int getScreenshotQuality() {
+        return screenshotQuality;
+    }
+
+    public void setScreenshotQuality(int screenshotQuality) {
+        this.screenshotQuality = screenshotQuality;
+    }
+
+    public int getScreenshotThreads() {
+        return screenshotThreads;
+    }
+
+    public void setScreenshotThreads(int screenshotThreads) {
+        this.screenshotThreads = screenshotThreads;
+    }
+
+    public int getBurstInterval() {
+        return burstInterval;
+    }
+
+    public void setBurstInterval(int burstInterval) {
+        this.burstInterval = burstInterval;
+    }
+
+    public int getExportScale() {
+        return exportScale;
+    }
+
+    public void setExportScale(int exportScale) {
+        this.exportScale = exportScale;
+    }
+
+    public int getExportFps() {
+        return exportFps;
+    }
+
+    public void setExportFps(int exportFps) {
+        this.exportFps = exportFps;
+    }
+
+    public int getExportThreads() {
+        return exportThreads;
+    }
+
+    public void setExportThreads(int exportThreads) {
+        this.exportThreads = exportThreads;
+    }
+
+    public int getExportQuality() {
+        return exportQuality;
+    }
+
+    public void setExportQuality(int exportQuality) {
+        this.exportQuality = exportQuality;
+    }
+
 }
@@ -8,8 +8,13 @@ public final class Constants {
 
         public static final String WINDOW_TILE_INPUT = "Adb Remote Screen: Input Keys";
 
+        public static final String WINDOW_TILE_GRID = "Adb Remote Screen: All devices";
+
         public static final String WINDOW_TILE_REGULAR = "Adb Remote Screen";
         public static final String WINDOW_TILE_DEVICE = "Adb Remote Screen [%s]";
+        public static final String WINDOW_TILE_RECONNECTING = "Adb Remote Screen [%s] (waiting for device...)";
+        public static final String WINDOW_TILE_CONNECTING = "Adb Remote Screen (connecting to adb...)";
+        public static final String WINDOW_TILE_NO_ADB_SERVER = "Adb Remote Screen (adb server unavailable, retrying...)";
 
         public static final String MESSAGE_NO_ADB_PATH = "Make shure you specified adb path in local.properties file. This file must be in the same folder as .jar file.\n"
                 + "Content must be:\nadbPath=/path/to/adb binary";
@@ -18,6 +23,14 @@ public final class Constants {
         public static final String MESSAGE_NO_ADB_FILE = "Specified adb path isn't valid, cannot find adb binary.";
         public static final String TITLE_NO_ADB_FILE = "Error: Adb binary not found";
 
+        public static final String MESSAGE_NO_ADB_SERVER = "Unable to reach the adb server started with '%s'.\n"
+                + "Connection is retried in the background, devices will show up once it answers.";
+        public static final String TITLE_NO_ADB_SERVER = "Adb server unavailable";
+        public static final String ACTION_RETRY_NOW = "Retry now";
+
+        public static final String MESSAGE_SKIPPED_CHARACTERS = "These characters can't be typed through adb and were skipped:\n%s";
+        public static final String TITLE_SKIPPED_CHARACTERS = "Characters skipped";
+
         public static final String GITHUB_PROJECT_URL = "https://github.com/MajeurAndroid/Adb-Remote-Screen";
         public static final String GITHUB_MAJEUR_URL = "https://github.com/MajeurAndroid";
 
@@ -32,6 +45,8 @@ public final class Constants {
         public static final String CMD_TAP = "input tap %f %f";
         public static final String CMD_SWIPE = "input swipe %.0f %.0f %.0f %.0f %d";
         public static final String CMD_KEY = "input keyevent %d";
+        public static final String CMD_TEXT = "input text %s";
+        public static final String CMD_DISPLAY_ORIENTATION = "dumpsys input | grep SurfaceOrientation";
 
         public static final Object[][] INPUT_KEY_MAP = { { 0, "UNKNOWN" }, { 1, "MENU" }, { 2, "SOFT_RIGHT" },
                 { 3, "HOME" }, { 4, "BACK" }, { 5, "CALL" }, { 6, "ENDCALL" }, { 7, "0" }, { 8, "1" }, { 9, "2" },
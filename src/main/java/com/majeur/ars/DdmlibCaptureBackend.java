@@ -0,0 +1,51 @@
+package com.majeur.ars;
+
+import java.io.IOException;
+
+import com.android.ddmlib.AdbCommandRejectedException;
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.RawImage;
+import com.android.ddmlib.TimeoutException;
+
+/**
+ * Retrieves framebuffers through ddmlib, opening a new framebuffer transaction for every frame. Slow
+ * but supported by every device, it is the fallback of the other backends.
+ */
+class DdmlibCaptureBackend implements CaptureBackend {
+
+    static final String NAME = "ddmlib";
+
+    private final IDevice mDevice;
+
+    DdmlibCaptureBackend(IDevice device) {
+        mDevice = device;
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public RawFrame capture() throws IOException {
+        try {
+            RawImage image = mDevice.getScreenshot();
+            if (image == null) {
+                throw new IOException("No framebuffer received");
+            }
+            return RawFrame.wrap(image);
+        } catch (TimeoutException e) {
+            throw new IOException("timeout", e);
+        } catch (AdbCommandRejectedException e) {
+            throw new IOException(e.getMessage(), e);
+        }
+    }
+
+    @Override
+    public void setCaptureInterval(long intervalMillis) {
+    }
+
+    @Override
+    public void close() {
+    }
+}
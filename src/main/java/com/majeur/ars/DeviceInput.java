@@ -0,0 +1,197 @@
+package com.majeur.ars;
+
+import java.io.IOException;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+import com.android.ddmlib.CollectingOutputReceiver;
+import com.android.ddmlib.IDevice;
+
+/**
+ * Input path to one device: an {@link InputDispatcher} queue drained into a persistent
+ * {@link InputChannel} shell, falling back to one-off ddmlib shells. Each device has its own
+ * dispatcher thread, so input sent to several devices is delivered to all of them concurrently.
+ * Also knows the device display size, to scale input meant for another device.
+ */
+class DeviceInput {
+
+    /** Commands written to the input shell ahead of the device, more wait in the dispatcher queue. */
+    private static final int MAX_IN_FLIGHT = 4;
+    private static final String CMD_DISPLAY_SIZE = "wm size";
+    private static final Pattern DISPLAY_SIZE_PATTERN = Pattern.compile("size: (\\d+)x(\\d+)");
+    private static final Pattern POINTER_PATTERN = Pattern.compile("input (tap|swipe)((?: -?[\\d.]+)+)");
+
+    private final AdbClient mClient;
+    private final IDevice mDevice;
+    private final long mTimeout;
+    private final InputDispatcher mDispatcher;
+    /** Dispatcher thread only. */
+    private InputChannel mChannel;
+    private volatile int mDisplayWidth, mDisplayHeight;
+    private volatile long mFailedCount;
+    /** Commands run by scripts rather than sent through the dispatcher, see {@link #countScript}. */
+    private volatile long mScriptSentCount, mScriptFailedCount;
+
+    DeviceInput(AdbClient client, IDevice device, int queueSize, long timeoutMillis, long batchWindowMillis) {
+        mClient = client;
+        mDevice = device;
+        mTimeout = timeoutMillis;
+        mDispatcher = new InputDispatcher(device.getSerialNumber(), new InputDispatcher.Sink() {
+            @Override
+            public void dispatch(String command) throws Exception {
+                send(command);
+            }
+        }, queueSize, timeoutMillis, batchWindowMillis);
+        probeDisplaySize();
+    }
+
+    IDevice getDevice() {
+        return mDevice;
+    }
+
+    /**
+     * Queues a command without blocking, see {@link InputDispatcher#submit(String, String)}.
+     */
+    boolean submit(String command, String coalesceKey) {
+        return mDispatcher.submit(command, coalesceKey);
+    }
+
+    int getQueueDepth() {
+        return mDispatcher.getQueueDepth();
+    }
+
+    /**
+     * Average time from submitting a command to the device running it, in milliseconds.
+     */
+    double getLatencyMillis() {
+        InputChannel channel = mChannel;
+        return mDispatcher.getLatencyMillis() + (channel != null ? channel.getLatencyMillis() : 0);
+    }
+
+    /**
+     * Sums up what was sent to the device, for display.
+     */
+    String getStats() {
+        return String.format(Locale.US, "%d sent, %d failed, %.0f ms",
+                mDispatcher.getDispatchedCount() + mScriptSentCount,
+                mFailedCount + mDispatcher.getDroppedCount() + mScriptFailedCount, getLatencyMillis());
+    }
+
+    /**
+     * Counts the commands of a script run on the device, such as a macro, in the stats.
+     */
+    synchronized void countScript(int commands, boolean failed) {
+        if (failed) {
+            mScriptFailedCount += commands;
+        } else {
+            mScriptSentCount += commands;
+        }
+    }
+
+    /**
+     * Rewrites a command given in the display coordinates of another device so that it hits the same
+     * relative position on this one. Devices are assumed to be held in the same orientation. The
+     * command is returned as is while display sizes aren't known yet.
+     *
+     * @param orientation display orientation of the source device, from 0 to 3
+     */
+    String scaleFrom(DeviceInput source, int orientation, String command) {
+        double sourceWidth = source.mDisplayWidth, sourceHeight = source.mDisplayHeight;
+        double width = mDisplayWidth, height = mDisplayHeight;
+        if (sourceWidth == 0 || width == 0) {
+            return command;
+        }
+        if (orientation % 2 == 1) {
+            double swap = sourceWidth;
+            sourceWidth = sourceHeight;
+            sourceHeight = swap;
+        }
+        if (sourceWidth > sourceHeight != width > height) {
+            double swap = width;
+            width = height;
+            height = swap;
+        }
+        return scale(command, width / sourceWidth, height / sourceHeight);
+    }
+
+    /**
+     * Scales the coordinates of the taps and swipes of a command line, leaving swipe durations and
+     * any other command untouched.
+     */
+    static String scale(String line, double scaleX, double scaleY) {
+        Matcher matcher = POINTER_PATTERN.matcher(line);
+        StringBuffer scaled = new StringBuffer();
+        while (matcher.find()) {
+            String[] arguments = matcher.group(2).trim().split(" ");
+            StringBuilder command = new StringBuilder("input ").append(matcher.group(1));
+            for (int i = 0; i < arguments.length; i++) {
+                command.append(' ');
+                if (i < 4) {
+                    double value = Double.parseDouble(arguments[i]) * (i % 2 == 0 ? scaleX : scaleY);
+                    command.append(String.format(Locale.US, "%.0f", value));
+                } else {
+                    command.append(arguments[i]);
+                }
+            }
+            matcher.appendReplacement(scaled, Matcher.quoteReplacement(command.toString()));
+        }
+        matcher.appendTail(scaled);
+        return scaled.toString();
+    }
+
+    /**
+     * Stops sending input, queued commands are discarded.
+     */
+    void close() {
+        mDispatcher.shutdown();
+        InputChannel channel = mChannel;
+        if (channel != null) {
+            channel.close();
+        }
+    }
+
+    private void probeDisplaySize() {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                try {
+                    // The override size, listed last, is the one input coordinates follow
+                    Matcher matcher = DISPLAY_SIZE_PATTERN.matcher(mClient.shell(mDevice.getSerialNumber(),
+                            CMD_DISPLAY_SIZE));
+                    while (matcher.find()) {
+                        mDisplayWidth = Integer.parseInt(matcher.group(1));
+                        mDisplayHeight = Integer.parseInt(matcher.group(2));
+                    }
+                } catch (IOException e) {
+                    Logger.e("Unable to get display size of %s: %s", mDevice.getSerialNumber(), e.getMessage());
+                }
+            }
+        }, "ars-display-size");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    /**
+     * Sends a command from the dispatcher thread, waiting if the device lags behind.
+     */
+    private void send(String command) throws Exception {
+        try {
+            if (mChannel == null) {
+                mChannel = new InputChannel(mClient, mDevice.getSerialNumber(),
+                        AdbHelper.getApiLevel(mDevice) >= ExecOutCaptureBackend.MIN_API_LEVEL);
+            }
+            long sequence = mChannel.send(command);
+            mChannel.awaitCompletion(sequence - MAX_IN_FLIGHT, mTimeout);
+            return;
+        } catch (IOException e) {
+            Logger.e("Input shell unavailable, using a one-off shell: %s", e.getMessage());
+        }
+        try {
+            mDevice.executeShellCommand(command, new CollectingOutputReceiver());
+        } catch (Exception e) {
+            mFailedCount++;
+            throw e;
+        }
+    }
+}
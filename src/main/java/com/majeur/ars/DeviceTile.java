@@ -0,0 +1,122 @@
+package com.majeur.ars;
+
+import java.awt.Color;
+import java.awt.Dimension;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.JPanel;
+
+/**
+ * Grid cell showing the latest frame of one device scaled to fit, along with its serial number and
+ * frame rate, and how input is doing when the device is broadcast to. Frames are posted from capture
+ * threads and picked up when painting.
+ */
+class DeviceTile extends JPanel {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int LABEL_HEIGHT = 34;
+
+    final String serialNumber;
+    private final FrameMailbox mMailbox = new FrameMailbox();
+    private final FrameRenderer mRenderer;
+    private Frame mFrame;
+    private long mPaintedFrameCount, mLastPaintedFrameCount;
+    private long mFps;
+    private boolean mFocused;
+    private boolean mBroadcast;
+    private String mInputStats;
+
+    DeviceTile(String serialNumber, FrameRenderer.Quality quality) {
+        this.serialNumber = serialNumber;
+        mRenderer = new FrameRenderer(quality);
+        setBackground(Color.BLACK);
+        setPreferredSize(new Dimension(180, 340));
+    }
+
+    /**
+     * Shows a frame, from any thread. The tile takes ownership of it.
+     */
+    void postFrame(Frame frame) {
+        mMailbox.post(frame);
+        repaint();
+    }
+
+    void setFocused(boolean focused) {
+        mFocused = focused;
+        repaint();
+    }
+
+    void setBroadcast(boolean broadcast) {
+        mBroadcast = broadcast;
+        repaint();
+    }
+
+    boolean isBroadcast() {
+        return mBroadcast;
+    }
+
+    /**
+     * Updates the displayed frame rate and input stats, to be called every second.
+     */
+    void updateStats(String inputStats) {
+        mInputStats = inputStats;
+        mFps = mPaintedFrameCount - mLastPaintedFrameCount;
+        mLastPaintedFrameCount = mPaintedFrameCount;
+        repaint(0, getHeight() - LABEL_HEIGHT, getWidth(), LABEL_HEIGHT);
+    }
+
+    /**
+     * Releases the frames held by the tile, once it is removed from the grid.
+     */
+    void clear() {
+        mMailbox.clear();
+        if (mFrame != null) {
+            mFrame.release();
+            mFrame = null;
+        }
+    }
+
+    @Override
+    protected void paintComponent(Graphics g) {
+        super.paintComponent(g);
+
+        List<Rectangle> damage = Collections.emptyList();
+        Frame latest = mMailbox.take();
+        if (latest != null) {
+            if (mFrame != null) {
+                mFrame.release();
+            }
+            mFrame = latest;
+            damage = latest.pendingDamage;
+            mPaintedFrameCount++;
+        }
+
+        int areaHeight = getHeight() - LABEL_HEIGHT;
+        if (mFrame != null && areaHeight > 0) {
+            double ratio = Math.min((double) getWidth() / mFrame.width, (double) areaHeight / mFrame.height);
+            int width = (int) (mFrame.width * ratio), height = (int) (mFrame.height * ratio);
+            Graphics2D frameGraphics = (Graphics2D) g.create((getWidth() - width) / 2, 0, width, height);
+            try {
+                mRenderer.paint(frameGraphics, this, mFrame, damage, width, height);
+            } finally {
+                frameGraphics.dispose();
+            }
+        }
+
+        g.setColor(mFocused ? Color.ORANGE : Color.LIGHT_GRAY);
+        g.drawString(serialNumber + "  " + mFps + " fps", 4, getHeight() - 21);
+        if (mBroadcast) {
+            g.setColor(Color.CYAN);
+            g.drawString("input: " + (mInputStats != null ? mInputStats : "-"), 4, getHeight() - 5);
+        }
+        if (mFocused) {
+            g.setColor(Color.ORANGE);
+            g.drawRect(0, 0, getWidth() - 1, getHeight() - 1);
+        }
+    }
+}
@@ -0,0 +1,119 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+
+/**
+ * Finds which parts of a frame changed since the previous one. Frames are split in fixed size tiles
+ * whose pixels are hashed and compared with the hashes of the previous frame, dirty tiles are then
+ * merged into as few rectangles as possible.
+ */
+class DirtyRegionTracker {
+
+    static final int TILE_SIZE = 64;
+
+    private int mWidth, mHeight;
+    private int mColumns, mRows;
+    private long[] mHashes;
+    private boolean[] mDirty;
+
+    /**
+     * Returns the regions of {@code frame} that differ from the previously tracked frame, in frame
+     * coordinates. The whole frame is dirty the first time and whenever its size changes. The returned
+     * list is never modified afterwards.
+     */
+    List<Rectangle> update(Frame frame) {
+        boolean resized = frame.width != mWidth || frame.height != mHeight;
+        if (resized) {
+            mWidth = frame.width;
+            mHeight = frame.height;
+            mColumns = (mWidth + TILE_SIZE - 1) / TILE_SIZE;
+            mRows = (mHeight + TILE_SIZE - 1) / TILE_SIZE;
+            mHashes = new long[mColumns * mRows];
+            mDirty = new boolean[mColumns * mRows];
+        }
+
+        boolean anyDirty = false;
+        for (int row = 0; row < mRows; row++) {
+            for (int column = 0; column < mColumns; column++) {
+                int tile = row * mColumns + column;
+                long hash = hashTile(frame.pixels, column * TILE_SIZE, row * TILE_SIZE);
+                mDirty[tile] = resized || hash != mHashes[tile];
+                mHashes[tile] = hash;
+                anyDirty |= mDirty[tile];
+            }
+        }
+
+        if (resized) {
+            return Collections.singletonList(new Rectangle(0, 0, mWidth, mHeight));
+        }
+        return anyDirty ? mergeDirtyTiles() : Collections.<Rectangle>emptyList();
+    }
+
+    private long hashTile(int[] pixels, int left, int top) {
+        int right = Math.min(left + TILE_SIZE, mWidth);
+        int bottom = Math.min(top + TILE_SIZE, mHeight);
+        long hash = 0xcbf29ce484222325L;
+        for (int y = top; y < bottom; y++) {
+            for (int i = y * mWidth + left, end = y * mWidth + right; i < end; i++) {
+                hash = (hash ^ pixels[i]) * 0x100000001b3L;
+            }
+        }
+        return hash;
+    }
+
+    /**
+     * Merges horizontal runs of dirty tiles, then stacks runs spanning the same columns on consecutive
+     * tile rows.
+     */
+    private List<Rectangle> mergeDirtyTiles() {
+        List<Rectangle> regions = new ArrayList<>();
+        List<Rectangle> previousRow = new ArrayList<>();
+        List<Rectangle> currentRow = new ArrayList<>();
+
+        for (int row = 0; row < mRows; row++) {
+            currentRow.clear();
+            int column = 0;
+            while (column < mColumns) {
+                if (!mDirty[row * mColumns + column]) {
+                    column++;
+                    continue;
+                }
+                int start = column;
+                while (column < mColumns && mDirty[row * mColumns + column]) {
+                    column++;
+                }
+
+                int x = start * TILE_SIZE;
+                int width = Math.min(column * TILE_SIZE, mWidth) - x;
+                int y = row * TILE_SIZE;
+                int height = Math.min(y + TILE_SIZE, mHeight) - y;
+
+                Rectangle above = findRun(previousRow, x, width);
+                if (above != null) {
+                    above.height += height;
+                    currentRow.add(above);
+                } else {
+                    Rectangle region = new Rectangle(x, y, width, height);
+                    regions.add(region);
+                    currentRow.add(region);
+                }
+            }
+            List<Rectangle> swap = previousRow;
+            previousRow = currentRow;
+            currentRow = swap;
+        }
+        return regions;
+    }
+
+    private static Rectangle findRun(List<Rectangle> runs, int x, int width) {
+        for (Rectangle run : runs) {
+            if (run.x == x && run.width == width) {
+                return run;
+            }
+        }
+        return null;
+    }
+}
@@ -0,0 +1,210 @@
+package com.majeur.ars;
+
+import java.io.BufferedInputStream;
+import java.io.DataInputStream;
+import java.io.IOException;
+import java.net.SocketTimeoutException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.ScheduledFuture;
+
+import com.android.ddmlib.IDevice;
+import com.android.ddmlib.RawImage;
+
+/**
+ * Streams framebuffers through a single long lived {@code adb exec-out} process running screencap in
+ * a loop, parsing raw frames back to back instead of setting up a framebuffer transaction per frame.
+ * Requires Android 5.0 for exec-out.
+ */
+class ExecOutCaptureBackend implements CaptureBackend {
+
+    static final String NAME = "exec-out";
+    static final int MIN_API_LEVEL = 21;
+
+    static final String SCREENCAP_LOOP = "while true; do screencap; done";
+    /** Android 9 screencap writes the color space after width, height and format. */
+    private static final int DATASPACE_API_LEVEL = 28;
+    /**
+     * The device blocks writing a frame until we read it. If we come back later than this past the
+     * capture interval, the frame waiting in the stream is outdated and gets skipped.
+     */
+    static final long STALE_DELAY = 250;
+
+    // Android PixelFormat values
+    private static final int FORMAT_RGBA_8888 = 1;
+    private static final int FORMAT_RGBX_8888 = 2;
+    private static final int FORMAT_RGB_565 = 4;
+    private static final int FORMAT_BGRA_8888 = 5;
+
+    private final String mAdbPath;
+    private final String mSerialNumber;
+    private final int mHeaderSize;
+    private final ByteBuffer mHeader;
+    private final long mTimeout;
+
+    /** Destroyed by {@link #close()} or by the read watchdog from any thread to abort a capture. */
+    private volatile Process mProcess;
+    private volatile boolean mClosed, mTimedOut;
+    private volatile long mCaptureInterval;
+    private DataInputStream mInput;
+    private long mLastReadTime;
+
+    /**
+     * @param timeoutMillis bound of each frame read, 0 for none
+     */
+    ExecOutCaptureBackend(String adbPath, IDevice device, int apiLevel, long timeoutMillis) {
+        mAdbPath = adbPath;
+        mTimeout = timeoutMillis;
+        mSerialNumber = device.getSerialNumber();
+        mHeaderSize = getHeaderSize(apiLevel);
+        mHeader = ByteBuffer.allocate(mHeaderSize).order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized RawFrame capture() throws IOException {
+        if (mClosed) {
+            throw new IOException("Capture backend closed");
+        }
+        if (mProcess == null) {
+            open();
+        }
+
+        final Process process = mProcess;
+        mTimedOut = false;
+        ScheduledFuture<?> deadline = Watchdog.arm(new Runnable() {
+            @Override
+            public void run() {
+                mTimedOut = true;
+                process.destroy();
+            }
+        }, mTimeout);
+        try {
+            long now = System.currentTimeMillis();
+            boolean stale = mLastReadTime != 0 && now - mLastReadTime > mCaptureInterval + STALE_DELAY;
+            RawImage image = readFrame();
+            if (stale) {
+                image = readFrame();
+            }
+            mLastReadTime = System.currentTimeMillis();
+            RawFrame frame = RawFrame.wrap(image);
+            frame.skipped = stale ? 1 : 0;
+            return frame;
+        } catch (IOException e) {
+            // The stream is out of sync or dead, start over on the next capture
+            destroyProcess();
+            if (mTimedOut) {
+                throw new SocketTimeoutException("exec-out screencap timed out");
+            }
+            throw e;
+        } finally {
+            Watchdog.disarm(deadline);
+        }
+    }
+
+    @Override
+    public void setCaptureInterval(long intervalMillis) {
+        mCaptureInterval = intervalMillis;
+    }
+
+    private void open() throws IOException {
+        ProcessBuilder builder = new ProcessBuilder(mAdbPath, "-s", mSerialNumber, "exec-out", SCREENCAP_LOOP);
+        builder.redirectError(ProcessBuilder.Redirect.INHERIT);
+        mProcess = builder.start();
+        mInput = new DataInputStream(new BufferedInputStream(mProcess.getInputStream(), 1 << 16));
+        mLastReadTime = 0;
+        if (mClosed) {
+            // Closed while starting, close() didn't see the process
+            destroyProcess();
+            throw new IOException("Capture backend closed");
+        }
+        Logger.i("Streaming screen of %s through exec-out", mSerialNumber);
+    }
+
+    private RawImage readFrame() throws IOException {
+        mInput.readFully(mHeader.array(), 0, mHeaderSize);
+        RawImage image = new RawImage();
+        readHeader(mHeader, image);
+        image.data = new byte[image.size];
+        mInput.readFully(image.data);
+        return image;
+    }
+
+    private void destroyProcess() {
+        Process process = mProcess;
+        if (process != null) {
+            process.destroy();
+            mProcess = null;
+            mInput = null;
+        }
+    }
+
+    static int getHeaderSize(int apiLevel) {
+        return apiLevel >= DATASPACE_API_LEVEL ? 16 : 12;
+    }
+
+    /**
+     * Fills {@code image} from a little endian screencap header.
+     */
+    static void readHeader(ByteBuffer header, RawImage image) throws IOException {
+        image.version = 1;
+        image.width = header.getInt(0);
+        image.height = header.getInt(4);
+        setPixelFormat(image, header.getInt(8));
+        image.size = image.width * image.height * (image.bpp >> 3);
+    }
+
+    private static void setPixelFormat(RawImage image, int format) throws IOException {
+        switch (format) {
+        case FORMAT_RGBA_8888:
+        case FORMAT_RGBX_8888:
+            setChannels(image, 32, 0, 8, 16, format == FORMAT_RGBA_8888 ? 8 : 0);
+            break;
+        case FORMAT_BGRA_8888:
+            setChannels(image, 32, 16, 8, 0, 8);
+            break;
+        case FORMAT_RGB_565:
+            image.bpp = 16;
+            image.red_offset = 11;
+            image.red_length = 5;
+            image.green_offset = 5;
+            image.green_length = 6;
+            image.blue_offset = 0;
+            image.blue_length = 5;
+            image.alpha_offset = 0;
+            image.alpha_length = 0;
+            break;
+        default:
+            throw new IOException("Unsupported screencap pixel format " + format);
+        }
+    }
+
+    private static void setChannels(RawImage image, int bpp, int red, int green, int blue, int alphaLength) {
+        image.bpp = bpp;
+        image.red_offset = red;
+        image.red_length = 8;
+        image.green_offset = green;
+        image.green_length = 8;
+        image.blue_offset = blue;
+        image.blue_length = 8;
+        image.alpha_offset = 24;
+        image.alpha_length = alphaLength;
+    }
+
+    /**
+     * Destroys the process without waiting for the capture lock, so that a capture blocked reading it
+     * fails right away.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        Process process = mProcess;
+        if (process != null) {
+            process.destroy();
+        }
+    }
+}
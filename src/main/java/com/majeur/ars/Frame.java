@@ -0,0 +1,67 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicInteger;
+
+/**
+ * A converted device frame, backed by an INT_ARGB image whose pixels can be written directly.
+ * Frames are reference counted: whoever obtains or {@link #retain()}s a frame must {@link #release()}
+ * it, the last release hands the buffer back to its {@link FramePool}.
+ */
+final class Frame {
+
+    final int width, height;
+    final BufferedImage image;
+    final int[] pixels;
+
+    long sequence;
+    long timestamp;
+    /** Rotation applied to the device framebuffer to get this frame. */
+    Rotation rotation = Rotation.ROTATE_0;
+    /** Rotation from the device framebuffer to the coordinates expected by input commands. */
+    Rotation displayRotation = Rotation.ROTATE_0;
+    /** Regions that changed since the previous frame, set by the capture pipeline. */
+    List<Rectangle> dirtyRegions;
+    /** Regions that changed since the last frame taken from a {@link FrameMailbox}. */
+    List<Rectangle> pendingDamage;
+
+    private final FramePool mPool;
+    private final AtomicInteger mRefCount = new AtomicInteger();
+
+    Frame(FramePool pool, int width, int height) {
+        mPool = pool;
+        this.width = width;
+        this.height = height;
+        image = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+        pixels = ((DataBufferInt) image.getRaster().getDataBuffer()).getData();
+    }
+
+    boolean hasSize(int width, int height) {
+        return this.width == width && this.height == height;
+    }
+
+    void reset() {
+        mRefCount.set(1);
+        dirtyRegions = Collections.singletonList(new Rectangle(0, 0, width, height));
+    }
+
+    Frame retain() {
+        if (mRefCount.getAndIncrement() <= 0) {
+            throw new IllegalStateException("Frame already recycled");
+        }
+        return this;
+    }
+
+    void release() {
+        int count = mRefCount.decrementAndGet();
+        if (count == 0) {
+            mPool.recycle(this);
+        } else if (count < 0) {
+            throw new IllegalStateException("Frame released too many times");
+        }
+    }
+}
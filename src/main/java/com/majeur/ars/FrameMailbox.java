@@ -0,0 +1,81 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.atomic.AtomicLong;
+import java.util.concurrent.atomic.AtomicReference;
+
+/**
+ * Single slot, lock free hand off where the latest posted frame wins. Producers never wait on the
+ * consumer: posting over a frame that has not been taken yet releases it and counts it as dropped.
+ * The dirty regions of dropped frames are carried over, so that the {@link Frame#pendingDamage} of a
+ * taken frame covers everything that changed since the previously taken one.
+ */
+class FrameMailbox {
+
+    private static final int MAX_DAMAGE_REGIONS = 64;
+
+    private final AtomicReference<Frame> mSlot = new AtomicReference<>();
+    private final AtomicLong mPostedCount = new AtomicLong();
+    private final AtomicLong mDroppedCount = new AtomicLong();
+
+    /**
+     * Posts a frame, the mailbox takes ownership of it.
+     *
+     * @return true if the slot was empty, meaning the consumer has to be notified. Otherwise a
+     *         notification is already pending for the frame that just got replaced.
+     */
+    boolean post(Frame frame) {
+        mPostedCount.incrementAndGet();
+        Frame old;
+        do {
+            old = mSlot.get();
+            frame.pendingDamage = old == null ? frame.dirtyRegions : merge(old.pendingDamage, frame);
+        } while (!mSlot.compareAndSet(old, frame));
+
+        if (old != null) {
+            old.release();
+            mDroppedCount.incrementAndGet();
+            return false;
+        }
+        return true;
+    }
+
+    private static List<Rectangle> merge(List<Rectangle> damage, Frame frame) {
+        if (damage.isEmpty()) {
+            return frame.dirtyRegions;
+        }
+        if (damage.size() + frame.dirtyRegions.size() > MAX_DAMAGE_REGIONS) {
+            // Not worth tracking anymore
+            return Collections.singletonList(new Rectangle(0, 0, frame.width, frame.height));
+        }
+        List<Rectangle> merged = new ArrayList<>(damage);
+        merged.addAll(frame.dirtyRegions);
+        return merged;
+    }
+
+    /**
+     * Takes the latest frame, or returns null if none was posted since the last call. The caller
+     * owns the returned frame.
+     */
+    Frame take() {
+        return mSlot.getAndSet(null);
+    }
+
+    void clear() {
+        Frame old = mSlot.getAndSet(null);
+        if (old != null) {
+            old.release();
+        }
+    }
+
+    long getPostedCount() {
+        return mPostedCount.get();
+    }
+
+    long getDroppedCount() {
+        return mDroppedCount.get();
+    }
+}
@@ -0,0 +1,20 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.util.List;
+
+/**
+ * Receives every frame leaving the capture pipeline along with the regions that changed since the
+ * previous one, e.g. to record or stream the device screen.
+ */
+interface FrameObserver {
+
+    /**
+     * Called from a pipeline thread, in capture order. The frame is only valid during the call, an
+     * observer willing to keep it must {@link Frame#retain()} it and release it later.
+     *
+     * @param dirtyRegions changed regions in frame coordinates, empty if the frame is identical to the
+     *            previous one
+     */
+    void onFrame(Frame frame, List<Rectangle> dirtyRegions);
+}
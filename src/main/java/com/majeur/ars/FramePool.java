@@ -0,0 +1,62 @@
+package com.majeur.ars;
+
+import java.util.ArrayDeque;
+
+/**
+ * Keeps a few {@link Frame}s around so that steady state capture never allocates. Three frames are
+ * enough for one consumer: one being written, one published and one being painted. Buffers are only
+ * reallocated when the requested size changes, i.e. when the device resolution or orientation does.
+ */
+class FramePool {
+
+    private static final int DEFAULT_CAPACITY = 3;
+
+    private int mCapacity;
+    private final ArrayDeque<Frame> mFreeFrames;
+    private int mWidth, mHeight;
+    private long mSequence;
+
+    FramePool() {
+        this(DEFAULT_CAPACITY);
+    }
+
+    FramePool(int capacity) {
+        mCapacity = capacity;
+        mFreeFrames = new ArrayDeque<>(capacity);
+    }
+
+    /**
+     * Makes sure that up to the given number of frames are kept for reuse, for callers holding more
+     * frames in flight than a single consumer does.
+     */
+    synchronized void ensureCapacity(int capacity) {
+        mCapacity = Math.max(mCapacity, capacity);
+    }
+
+    /**
+     * Returns a frame of the given size, owned by the caller which must release it.
+     */
+    synchronized Frame obtain(int width, int height) {
+        if (width != mWidth || height != mHeight) {
+            Logger.i("Allocating frame buffers for %dx%d", width, height);
+            mFreeFrames.clear();
+            mWidth = width;
+            mHeight = height;
+        }
+
+        Frame frame = mFreeFrames.poll();
+        if (frame == null) {
+            frame = new Frame(this, width, height);
+        }
+        frame.reset();
+        frame.sequence = ++mSequence;
+        return frame;
+    }
+
+    synchronized void recycle(Frame frame) {
+        // Frames of an outdated size are simply left to the garbage collector
+        if (frame.hasSize(mWidth, mHeight) && mFreeFrames.size() < mCapacity) {
+            mFreeFrames.push(frame);
+        }
+    }
+}
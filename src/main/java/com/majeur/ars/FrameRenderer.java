@@ -0,0 +1,164 @@
+package com.majeur.ars;
+
+import java.awt.Component;
+import java.awt.Graphics2D;
+import java.awt.GraphicsConfiguration;
+import java.awt.Image;
+import java.awt.Rectangle;
+import java.awt.RenderingHints;
+import java.awt.Transparency;
+import java.awt.image.BufferedImage;
+import java.awt.image.VolatileImage;
+import java.util.List;
+
+/**
+ * Paints frames scaled through a cache kept at display size. Frames are written pixel by pixel so
+ * Java2D never caches them in video memory; instead the scaled result is kept in a screen compatible
+ * {@link VolatileImage} and only the regions that changed are scaled again. Painting an unchanged
+ * frame is then a plain blit, whatever the interpolation quality.
+ */
+class FrameRenderer {
+
+    enum Quality {
+        NEAREST(RenderingHints.VALUE_INTERPOLATION_NEAREST_NEIGHBOR),
+        BILINEAR(RenderingHints.VALUE_INTERPOLATION_BILINEAR),
+        BICUBIC(RenderingHints.VALUE_INTERPOLATION_BICUBIC);
+
+        final Object interpolation;
+
+        Quality(Object interpolation) {
+            this.interpolation = interpolation;
+        }
+
+        static Quality fromString(String name, Quality defaultValue) {
+            for (Quality quality : values()) {
+                if (quality.name().equalsIgnoreCase(name)) {
+                    return quality;
+                }
+            }
+            return defaultValue;
+        }
+    }
+
+    /** Weight of the newest sample in the paint time average. */
+    private static final double SMOOTHING = 0.1;
+
+    private Quality mQuality;
+    private VolatileImage mVolatileCache;
+    private BufferedImage mBufferedCache;
+    private boolean mCacheValid;
+    private volatile double mPaintNanos;
+
+    FrameRenderer(Quality quality) {
+        mQuality = quality;
+    }
+
+    void setQuality(Quality quality) {
+        mQuality = quality;
+        invalidate();
+    }
+
+    Quality getQuality() {
+        return mQuality;
+    }
+
+    /**
+     * Forces the next paint to scale the whole frame again.
+     */
+    void invalidate() {
+        mCacheValid = false;
+    }
+
+    /**
+     * Average time spent painting a frame, in milliseconds.
+     */
+    double getPaintTimeMillis() {
+        return mPaintNanos / 1000000.0;
+    }
+
+    /**
+     * Paints {@code frame} scaled to {@code width} x {@code height}. {@code damage} lists the frame
+     * regions that changed since the previously painted frame, only those are scaled again unless
+     * the cache was lost or resized.
+     */
+    void paint(Graphics2D g, Component component, Frame frame, List<Rectangle> damage, int width, int height) {
+        long start = System.nanoTime();
+
+        GraphicsConfiguration configuration = component.getGraphicsConfiguration();
+        if (configuration == null || width <= 0 || height <= 0) {
+            return;
+        }
+
+        Image cache = mVolatileCache != null ? mVolatileCache : mBufferedCache;
+        if (cache == null || cache.getWidth(null) != width || cache.getHeight(null) != height) {
+            createCache(configuration, width, height);
+        }
+
+        if (mVolatileCache != null && mVolatileCache.validate(configuration) == VolatileImage.IMAGE_INCOMPATIBLE) {
+            createCache(configuration, width, height);
+        }
+
+        if (mVolatileCache != null) {
+            VolatileImage volatileCache = mVolatileCache;
+            do {
+                if (volatileCache.validate(configuration) == VolatileImage.IMAGE_RESTORED) {
+                    // Video memory was reclaimed, contents are gone
+                    mCacheValid = false;
+                }
+                updateCache(volatileCache, frame, damage, width, height);
+                g.drawImage(volatileCache, 0, 0, null);
+            } while (volatileCache.contentsLost());
+        } else {
+            updateCache(mBufferedCache, frame, damage, width, height);
+            g.drawImage(mBufferedCache, 0, 0, null);
+        }
+
+        long elapsed = System.nanoTime() - start;
+        mPaintNanos = mPaintNanos == 0 ? elapsed : mPaintNanos + SMOOTHING * (elapsed - mPaintNanos);
+    }
+
+    private void createCache(GraphicsConfiguration configuration, int width, int height) {
+        if (mVolatileCache != null) {
+            mVolatileCache.flush();
+        }
+        mVolatileCache = null;
+        mBufferedCache = null;
+        try {
+            mVolatileCache = configuration.createCompatibleVolatileImage(width, height, Transparency.OPAQUE);
+        } catch (UnsupportedOperationException e) {
+            // Pipelines without accelerated surfaces
+        }
+        if (mVolatileCache == null) {
+            mBufferedCache = configuration.createCompatibleImage(width, height, Transparency.OPAQUE);
+        }
+        mCacheValid = false;
+    }
+
+    private void updateCache(Image cache, Frame frame, List<Rectangle> damage, int width, int height) {
+        boolean full = !mCacheValid;
+        if (!full && damage.isEmpty()) {
+            return;
+        }
+
+        Graphics2D g = (Graphics2D) cache.getGraphics();
+        try {
+            g.setRenderingHint(RenderingHints.KEY_INTERPOLATION, mQuality.interpolation);
+            double ratioX = (double) width / frame.width, ratioY = (double) height / frame.height;
+            if (full) {
+                g.drawImage(frame.image, 0, 0, width, height, null);
+            } else {
+                for (Rectangle region : damage) {
+                    // One more pixel around, filtering reads neighbours
+                    int x = (int) Math.floor(region.x * ratioX) - 1, y = (int) Math.floor(region.y * ratioY) - 1;
+                    int right = (int) Math.ceil((region.x + region.width) * ratioX) + 1;
+                    int bottom = (int) Math.ceil((region.y + region.height) * ratioY) + 1;
+                    g.setClip(x, y, right - x, bottom - y);
+                    g.drawImage(frame.image, 0, 0, width, height, null);
+                }
+            }
+        } finally {
+            g.dispose();
+        }
+        mCacheValid = true;
+    }
+}
@@ -0,0 +1,100 @@
+package com.majeur.ars;
+
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Paces screen captures. Deadlines are computed from the start of the previous capture, using the
+ * target frame rate and the measured capture and convert latencies so that the pipeline is never
+ * asked for more frames than its slowest stage can deliver. While the screen stays still the
+ * interval doubles with every identical frame past the first few, up to a maximum idle delay, and
+ * user input brings it back to full rate immediately.
+ */
+class FrameScheduler {
+
+    /** How long full rate is kept after user input, the device may take a while to react. */
+    private static final long INPUT_BOOST_NANOS = TimeUnit.SECONDS.toNanos(1);
+    /** Weight of the newest sample in latency averages. */
+    private static final double SMOOTHING = 0.2;
+    /** Identical frames in a row before backing off, a busy screen often repeats a frame or two. */
+    private static final int IDLE_FRAMES = 3;
+
+    private final long mFrameIntervalNanos;
+    private final long mMaxIdleNanos;
+    private final int mCaptureThreads, mConvertThreads;
+
+    private double mCaptureNanos, mConvertNanos;
+    private int mIdenticalFrames;
+    private long mNextDeadline;
+    private long mBoostUntil;
+    private long mInputEpoch;
+
+    FrameScheduler(int targetFps, long maxIdleDelay, int captureThreads, int convertThreads) {
+        mFrameIntervalNanos = TimeUnit.SECONDS.toNanos(1) / Math.max(1, targetFps);
+        mMaxIdleNanos = Math.max(mFrameIntervalNanos, TimeUnit.MILLISECONDS.toNanos(maxIdleDelay));
+        mCaptureThreads = captureThreads;
+        mConvertThreads = convertThreads;
+        mNextDeadline = System.nanoTime();
+    }
+
+    /**
+     * Blocks until the next capture is due. Each call reserves one slot, so several capture threads
+     * can share a scheduler.
+     */
+    synchronized void awaitNextCapture() throws InterruptedException {
+        long now = System.nanoTime();
+        if (mNextDeadline < now) {
+            // Late already, capture right away rather than trying to catch up with a burst
+            mNextDeadline = now;
+        }
+
+        long wait;
+        while ((wait = mNextDeadline - System.nanoTime()) > 0) {
+            long epoch = mInputEpoch;
+            TimeUnit.NANOSECONDS.timedWait(this, wait);
+            if (epoch != mInputEpoch) {
+                mNextDeadline = System.nanoTime();
+            }
+        }
+        mNextDeadline += getIntervalNanos();
+    }
+
+    synchronized void onCaptureDone(long captureNanos) {
+        mCaptureNanos = average(mCaptureNanos, captureNanos);
+    }
+
+    synchronized void onFrameChanged(boolean changed) {
+        if (changed) {
+            mIdenticalFrames = 0;
+        } else if (mIdenticalFrames < 30) {
+            mIdenticalFrames++;
+        }
+    }
+
+    synchronized void onConvertDone(long convertNanos) {
+        mConvertNanos = average(mConvertNanos, convertNanos);
+    }
+
+    /**
+     * Resets the idle back off and wakes up waiting capture threads.
+     */
+    synchronized void onUserInput() {
+        mIdenticalFrames = 0;
+        mBoostUntil = System.nanoTime() + INPUT_BOOST_NANOS;
+        mInputEpoch++;
+        notifyAll();
+    }
+
+    synchronized long getIntervalNanos() {
+        long interval = Math.max(mFrameIntervalNanos, (long) Math.max(mCaptureNanos / mCaptureThreads,
+                mConvertNanos / mConvertThreads));
+        if (mIdenticalFrames < IDLE_FRAMES || System.nanoTime() < mBoostUntil) {
+            return interval;
+        }
+        long idle = interval << Math.min(mIdenticalFrames - IDLE_FRAMES + 1, 20);
+        return Math.max(interval, Math.min(idle, mMaxIdleNanos));
+    }
+
+    private static double average(double average, long sample) {
+        return average == 0 ? sample : average + SMOOTHING * (sample - average);
+    }
+}
@@ -0,0 +1,135 @@
+package com.majeur.ars;
+
+import java.awt.image.BufferedImage;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.OutputStream;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.ImageIO;
+
+/**
+ * Writes frames as a looping animated GIF. Each frame is encoded as a standalone GIF, which is where
+ * the time goes, reducing it to a palette and compressing it. Frames are then spliced into the
+ * animation, their palette becoming a local color table preceded by a delay.
+ */
+class GifClipWriter extends ClipWriter {
+
+    private static final int EXTENSION = 0x21;
+    private static final int IMAGE_DESCRIPTOR = 0x2C;
+    private static final int TRAILER = 0x3B;
+    /** Shorter delays are slowed down by most viewers. */
+    private static final int MIN_DELAY = 2;
+
+    private final OutputStream mOutput;
+    private long mDuration;
+    private long mWrittenDelay;
+
+    GifClipWriter(File file, int width, int height) throws IOException {
+        mOutput = new BufferedOutputStream(new FileOutputStream(file), 1 << 16);
+        mOutput.write("GIF89a".getBytes(StandardCharsets.US_ASCII));
+        writeShort(width);
+        writeShort(height);
+        // No global color table
+        mOutput.write(new byte[] { 0, 0, 0 });
+        // Loop forever
+        mOutput.write(new byte[] { EXTENSION, (byte) 0xFF, 11 });
+        mOutput.write("NETSCAPE2.0".getBytes(StandardCharsets.US_ASCII));
+        mOutput.write(new byte[] { 3, 1, 0, 0, 0 });
+    }
+
+    @Override
+    byte[] encode(BufferedImage image) throws IOException {
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        if (!ImageIO.write(image, FORMAT_GIF, bytes)) {
+            throw new IOException("No GIF writer");
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    boolean write(byte[] frame, long duration) throws IOException {
+        // Delays are in hundredths of a second, carry rounding over to the next frame
+        mDuration += duration;
+        int delay = (int) Math.max(MIN_DELAY, Math.min(0xFFFF, Math.round(mDuration / 10.0) - mWrittenDelay));
+        mWrittenDelay += delay;
+
+        // Header and logical screen descriptor, then the global color table if any
+        int position = 10;
+        int packed = frame[position] & 0xFF;
+        position += 3;
+        int tableStart = position, tableSize = 0, tableBits = 0;
+        if ((packed & 0x80) != 0) {
+            tableBits = packed & 0x07;
+            tableSize = 3 << (tableBits + 1);
+            position += tableSize;
+        }
+
+        while (position < frame.length) {
+            int block = frame[position] & 0xFF;
+            if (block == EXTENSION) {
+                position = skipSubBlocks(frame, position + 2);
+            } else if (block == IMAGE_DESCRIPTOR) {
+                break;
+            } else {
+                throw new IOException("Unexpected GIF block " + block);
+            }
+        }
+        if (position >= frame.length) {
+            throw new IOException("No image in GIF frame");
+        }
+
+        // Graphic control extension: no disposal, leaving the frame in place, and the delay
+        mOutput.write(new byte[] { EXTENSION, (byte) 0xF9, 4, 1 << 2 });
+        writeShort(delay);
+        mOutput.write(new byte[] { 0, 0 });
+
+        int descriptorPacked = frame[position + 9] & 0xFF;
+        mOutput.write(frame, position, 9);
+        position += 10;
+        if ((descriptorPacked & 0x80) != 0) {
+            // Already has a local color table
+            mOutput.write(descriptorPacked);
+        } else {
+            mOutput.write(tableSize > 0 ? 0x80 | tableBits | descriptorPacked & 0x40 : descriptorPacked);
+            mOutput.write(frame, tableStart, tableSize);
+        }
+
+        // Color table if local, then the minimum code size and the compressed data sub-blocks
+        int end = skipSubBlocks(frame, position + ((descriptorPacked & 0x80) != 0
+                ? 3 << ((descriptorPacked & 0x07) + 1) : 0) + 1);
+        mOutput.write(frame, position, end - position);
+        return true;
+    }
+
+    /**
+     * Returns the position following the sub-blocks starting at {@code position}.
+     */
+    private static int skipSubBlocks(byte[] data, int position) throws IOException {
+        while (position < data.length) {
+            int size = data[position] & 0xFF;
+            position += 1 + size;
+            if (size == 0) {
+                return position;
+            }
+        }
+        throw new IOException("Truncated GIF frame");
+    }
+
+    private void writeShort(int value) throws IOException {
+        mOutput.write(value & 0xFF);
+        mOutput.write(value >> 8 & 0xFF);
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            mOutput.write(TRAILER);
+        } finally {
+            mOutput.close();
+        }
+    }
+}
@@ -0,0 +1,320 @@
+package com.majeur.ars;
+
+import java.io.IOException;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.Iterator;
+import java.util.LinkedHashMap;
+import java.util.List;
+import java.util.Map;
+import java.util.concurrent.TimeUnit;
+
+import com.android.ddmlib.RawImage;
+
+/**
+ * Captures many devices at once with a fixed pool of threads, rather than one pipeline per device.
+ * Workers serve the focused device as soon as it is due, then the most overdue of the others, so
+ * every device gets its turn whatever their number. The focused device is captured at a higher rate
+ * than the background ones, and a global frame budget bounds the host CPU and USB load: when all
+ * devices together would exceed it, background devices are slowed down evenly while the focused one
+ * keeps its rate. Outdated frames a backend reads and discards count against the budget too. A
+ * device failing to capture is retried as its {@link CaptureSession} decides, without holding up the
+ * others.
+ */
+class GridCaptureScheduler {
+
+    interface Listener {
+
+        /**
+         * Called from a capture thread, ownership of the frame is passed to the listener.
+         */
+        void onFrame(String serialNumber, Frame frame);
+    }
+
+    private final AdbHelper mAdbHelper;
+    private final Listener mListener;
+    private final int mWorkers;
+    private final int mFocusedFps, mBackgroundFps, mMaxFps;
+    private final long mMinSpacingNanos;
+    private final Map<String, Slot> mSlots = new LinkedHashMap<>();
+    private final List<Thread> mThreads = new ArrayList<>();
+
+    private String mFocused;
+    private long mNextStart;
+
+    /**
+     * @param workers number of capture threads, i.e. how many devices may be transferring at once
+     * @param maxFps total number of frames per second captured across all devices
+     */
+    GridCaptureScheduler(AdbHelper helper, int workers, int focusedFps, int backgroundFps, int maxFps,
+            Listener listener) {
+        mAdbHelper = helper;
+        mListener = listener;
+        mWorkers = Math.max(1, workers);
+        mFocusedFps = Math.max(1, focusedFps);
+        mBackgroundFps = Math.max(1, backgroundFps);
+        mMaxFps = Math.max(1, maxFps);
+        mMinSpacingNanos = TimeUnit.SECONDS.toNanos(1) / mMaxFps;
+    }
+
+    synchronized void start() {
+        for (int i = 0; i < mWorkers; i++) {
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    captureDevices();
+                }
+            }, "ars-grid-capture-" + i);
+            thread.setDaemon(true);
+            thread.start();
+            mThreads.add(thread);
+        }
+    }
+
+    /**
+     * Stops capturing and closes every device backend, frames still being captured are discarded.
+     */
+    synchronized void stop() {
+        for (Thread thread : mThreads) {
+            thread.interrupt();
+        }
+        mThreads.clear();
+        setDevices(new String[0]);
+    }
+
+    /**
+     * Sets the devices to capture. New devices are captured right away, backends of the ones gone are
+     * closed.
+     */
+    synchronized void setDevices(String[] serialNumbers) {
+        List<String> devices = Arrays.asList(serialNumbers);
+        for (Iterator<Slot> iterator = mSlots.values().iterator(); iterator.hasNext();) {
+            Slot slot = iterator.next();
+            if (!devices.contains(slot.serialNumber)) {
+                iterator.remove();
+                slot.removed = true;
+                if (!slot.busy) {
+                    slot.close();
+                }
+            }
+        }
+        long now = System.nanoTime();
+        for (String serialNumber : serialNumbers) {
+            if (!mSlots.containsKey(serialNumber)) {
+                Slot slot = new Slot(serialNumber);
+                slot.due = now;
+                mSlots.put(serialNumber, slot);
+            }
+        }
+        updateIntervals();
+        notifyAll();
+    }
+
+    /**
+     * Gives the focused device rate to the given device, or to none if null.
+     */
+    synchronized void setFocused(String serialNumber) {
+        mFocused = serialNumber;
+        updateIntervals();
+        Slot slot = mSlots.get(serialNumber);
+        if (slot != null && !slot.busy) {
+            // Show the focused device at its new rate right away
+            slot.due = System.nanoTime();
+        }
+        notifyAll();
+    }
+
+    /**
+     * Returns the capture rate currently given to a device, in frames per second.
+     */
+    synchronized double getTargetFps(String serialNumber) {
+        Slot slot = mSlots.get(serialNumber);
+        return slot != null ? TimeUnit.SECONDS.toNanos(1) / (double) slot.interval : 0;
+    }
+
+    /**
+     * Splits the frame budget: the focused device gets its rate, up to half the budget when there are
+     * other devices, and background devices share what is left.
+     */
+    private void updateIntervals() {
+        boolean hasFocused = mFocused != null && mSlots.containsKey(mFocused);
+        int background = mSlots.size() - (hasFocused ? 1 : 0);
+        double focusedFps = hasFocused ? Math.min(mFocusedFps, background > 0 ? mMaxFps / 2.0 : mMaxFps) : 0;
+        double backgroundFps = background > 0 ? Math.min(mBackgroundFps, (mMaxFps - focusedFps) / background) : 0;
+
+        for (Slot slot : mSlots.values()) {
+            double fps = slot.serialNumber.equals(mFocused) ? focusedFps : backgroundFps;
+            slot.interval = (long) (TimeUnit.SECONDS.toNanos(1) / fps);
+        }
+    }
+
+    private void captureDevices() {
+        Thread thread = Thread.currentThread();
+        while (!thread.isInterrupted()) {
+            Slot slot;
+            try {
+                slot = takeDueSlot();
+            } catch (InterruptedException e) {
+                return;
+            }
+            capture(slot);
+        }
+    }
+
+    /**
+     * Waits for the next device to capture that no other worker is capturing, within the global
+     * budget. When the host can't keep up every device is overdue, the focused one still goes first.
+     */
+    private synchronized Slot takeDueSlot() throws InterruptedException {
+        while (true) {
+            long now = System.nanoTime();
+            Slot next = null;
+            for (Slot slot : mSlots.values()) {
+                if (!slot.busy && (next == null || slot.due < next.due)) {
+                    next = slot;
+                }
+            }
+            if (next == null) {
+                wait();
+                continue;
+            }
+            Slot focused = mFocused != null ? mSlots.get(mFocused) : null;
+            if (focused != null && !focused.busy && focused.due <= now) {
+                next = focused;
+            }
+
+            long start = Math.max(next.due, mNextStart);
+            if (start <= now) {
+                next.busy = true;
+                mNextStart = Math.max(mNextStart, now - mMinSpacingNanos) + mMinSpacingNanos;
+                return next;
+            }
+            TimeUnit.NANOSECONDS.timedWait(this, start - now);
+        }
+    }
+
+    private void capture(Slot slot) {
+        long interval;
+        synchronized (this) {
+            interval = slot.interval;
+        }
+        long start = System.nanoTime();
+        Frame frame = null;
+        long retryDelay = 0;
+        try {
+            frame = slot.capture(TimeUnit.NANOSECONDS.toMillis(interval));
+            slot.session.onSuccess();
+        } catch (Exception e) {
+            Logger.e("Unable to capture %s: %s", slot.serialNumber, e.getMessage());
+            retryDelay = slot.session.onFailure();
+        }
+
+        boolean removed;
+        synchronized (this) {
+            slot.busy = false;
+            slot.due = frame != null ? start + slot.interval
+                    : System.nanoTime() + TimeUnit.MILLISECONDS.toNanos(retryDelay);
+            mNextStart += slot.skipped * mMinSpacingNanos;
+            removed = slot.removed;
+            if (removed) {
+                slot.close();
+            }
+            notifyAll();
+        }
+
+        if (frame != null) {
+            if (removed) {
+                frame.release();
+            } else {
+                mListener.onFrame(slot.serialNumber, frame);
+            }
+        }
+    }
+
+    /**
+     * Capture state of one device. Only touched by the worker that marked it busy, or under the
+     * scheduler lock while it isn't.
+     */
+    private final class Slot {
+        final String serialNumber;
+        /** Frames converted for this device only, devices don't share resolutions. */
+        final FramePool framePool = new FramePool();
+        final CaptureSession session;
+
+        long due;
+        long interval;
+        boolean busy;
+        boolean removed;
+        /** Frames discarded by the backend during the last capture. */
+        int skipped;
+
+        private CaptureBackend mBackend;
+        private PixelConverter mConverter;
+        private boolean mUseDdmlib;
+        private boolean mWorked;
+
+        Slot(String serialNumber) {
+            this.serialNumber = serialNumber;
+            session = new CaptureSession(serialNumber, null);
+        }
+
+        /**
+         * @param intervalMillis time until the next capture of this device, frames waiting in a stream
+         *            for about that long are still recent enough
+         * @return the converted frame, or null if the thread was interrupted
+         */
+        Frame capture(long intervalMillis) throws IOException {
+            skipped = 0;
+            if (mBackend == null) {
+                mBackend = mAdbHelper.openCaptureBackend(serialNumber, mUseDdmlib ? DdmlibCaptureBackend.NAME : null);
+                if (mBackend == null) {
+                    throw new IOException("Device not connected");
+                }
+            }
+
+            RawFrame raw;
+            try {
+                mBackend.setCaptureInterval(intervalMillis);
+                raw = mBackend.capture();
+            } catch (IOException | RuntimeException e) {
+                // Reopened on the next turn, through ddmlib if streaming never worked with this device
+                mUseDdmlib |= !mWorked;
+                close();
+                throw e;
+            }
+            mWorked = true;
+            skipped = raw.skipped;
+
+            try {
+                RawImage header = raw.header;
+                if (mConverter == null || !mConverter.matches(header)) {
+                    mConverter = PixelConverter.forImage(header);
+                }
+                Frame frame = framePool.obtain(header.width, header.height);
+                boolean converted = false;
+                try {
+                    // False when interrupted by stop(), the worker exits
+                    converted = mConverter.convert(header, raw.pixels, frame.pixels, Rotation.ROTATE_0);
+                } finally {
+                    if (!converted) {
+                        frame.release();
+                    }
+                }
+                if (!converted) {
+                    return null;
+                }
+                frame.timestamp = System.currentTimeMillis();
+                return frame;
+            } finally {
+                raw.release();
+            }
+        }
+
+        void close() {
+            if (mBackend != null) {
+                mBackend.close();
+                mBackend = null;
+            }
+        }
+    }
+}
@@ -0,0 +1,164 @@
+package com.majeur.ars;
+
+import java.awt.GridLayout;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.MouseAdapter;
+import java.awt.event.MouseEvent;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.util.Arrays;
+import java.util.Collections;
+import java.util.HashSet;
+import java.util.Iterator;
+import java.util.Map;
+import java.util.Set;
+import java.util.concurrent.ConcurrentHashMap;
+
+import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JScrollPane;
+import javax.swing.Timer;
+
+/**
+ * Mirrors every connected device at once, as a grid of tiles fed by a shared
+ * {@link GridCaptureScheduler}. Clicking a tile focuses it, giving it a higher frame rate, and double
+ * clicking opens it in the main window. Control clicking tiles selects the devices that also receive
+ * the input sent from the main window.
+ */
+public class GridFrame extends JFrame implements GridCaptureScheduler.Listener {
+
+    private static final long serialVersionUID = 1L;
+
+    interface OnDeviceSelectedListener {
+        void onDeviceSelected(String serialNumber);
+    }
+
+    private final AdbHelper mAdbHelper;
+    private final GridCaptureScheduler mScheduler;
+    private final FrameRenderer.Quality mQuality;
+    private final OnDeviceSelectedListener mListener;
+    private final Map<String, DeviceTile> mTiles = new ConcurrentHashMap<>();
+    private final JPanel mGridPanel = new JPanel();
+    private final Timer mStatsTimer;
+    private String mFocused;
+
+    public GridFrame(AdbHelper helper, Config config, OnDeviceSelectedListener listener) {
+        mAdbHelper = helper;
+        mListener = listener;
+        mQuality = FrameRenderer.Quality.fromString(config.getRenderQuality(), FrameRenderer.Quality.BILINEAR);
+        mScheduler = new GridCaptureScheduler(helper, config.getGridCaptureThreads(), config.getGridFocusedFps(),
+                config.getGridBackgroundFps(), config.getGridMaxFps(), this);
+
+        setTitle(Constants.Strings.WINDOW_TILE_GRID);
+        setSize(1000, 760);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+        getContentPane().add(new JScrollPane(mGridPanel));
+
+        mStatsTimer = new Timer(1000, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                for (DeviceTile tile : mTiles.values()) {
+                    tile.updateStats(tile.isBroadcast() ? mAdbHelper.getInputStats(tile.serialNumber) : null);
+                }
+            }
+        });
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                mStatsTimer.stop();
+                mScheduler.stop();
+                mAdbHelper.setBroadcastDevices(Collections.<String>emptySet());
+                for (DeviceTile tile : mTiles.values()) {
+                    tile.clear();
+                }
+                mTiles.clear();
+            }
+        });
+
+        mScheduler.start();
+        mStatsTimer.start();
+        setVisible(true);
+    }
+
+    /**
+     * Shows the given devices, from the event thread. Tiles of devices still connected are kept.
+     */
+    void setDevices(String[] devices) {
+        for (Iterator<DeviceTile> iterator = mTiles.values().iterator(); iterator.hasNext();) {
+            DeviceTile tile = iterator.next();
+            if (!Arrays.asList(devices).contains(tile.serialNumber)) {
+                iterator.remove();
+                tile.clear();
+            }
+        }
+
+        mGridPanel.removeAll();
+        int columns = Math.max(1, (int) Math.ceil(Math.sqrt(devices.length)));
+        mGridPanel.setLayout(new GridLayout(0, columns, 4, 4));
+        for (String device : devices) {
+            DeviceTile tile = mTiles.get(device);
+            if (tile == null) {
+                tile = createTile(device);
+                mTiles.put(device, tile);
+            }
+            mGridPanel.add(tile);
+        }
+        mGridPanel.revalidate();
+        mGridPanel.repaint();
+
+        mScheduler.setDevices(devices);
+        if (mFocused != null && !mTiles.containsKey(mFocused)) {
+            setFocused(null);
+        }
+        updateBroadcastDevices();
+    }
+
+    private DeviceTile createTile(final String serialNumber) {
+        DeviceTile tile = new DeviceTile(serialNumber, mQuality);
+        tile.addMouseListener(new MouseAdapter() {
+            @Override
+            public void mouseClicked(MouseEvent e) {
+                if (e.isControlDown() || e.isMetaDown()) {
+                    DeviceTile clicked = mTiles.get(serialNumber);
+                    clicked.setBroadcast(!clicked.isBroadcast());
+                    updateBroadcastDevices();
+                } else if (e.getClickCount() == 2) {
+                    mListener.onDeviceSelected(serialNumber);
+                } else {
+                    setFocused(serialNumber);
+                }
+            }
+        });
+        return tile;
+    }
+
+    private void setFocused(String serialNumber) {
+        mFocused = serialNumber;
+        for (DeviceTile tile : mTiles.values()) {
+            tile.setFocused(tile.serialNumber.equals(serialNumber));
+        }
+        mScheduler.setFocused(serialNumber);
+    }
+
+    private void updateBroadcastDevices() {
+        Set<String> devices = new HashSet<>();
+        for (DeviceTile tile : mTiles.values()) {
+            if (tile.isBroadcast()) {
+                devices.add(tile.serialNumber);
+            }
+        }
+        mAdbHelper.setBroadcastDevices(devices);
+    }
+
+    @Override
+    public void onFrame(String serialNumber, Frame frame) {
+        DeviceTile tile = mTiles.get(serialNumber);
+        if (tile == null) {
+            frame.release();
+            return;
+        }
+        tile.postFrame(frame);
+    }
+}
@@ -0,0 +1,173 @@
+package com.majeur.ars;
+
+import java.io.BufferedReader;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.nio.ByteBuffer;
+import java.nio.charset.StandardCharsets;
+
+/**
+ * Long lived shell on a device to which input commands are written one per line, instead of opening
+ * a new adb shell per event. Each command is followed by an echo of its sequence number, read back
+ * to tell which commands the device has completed. The shell is reopened transparently when the
+ * connection drops.
+ */
+class InputChannel {
+
+    /** Quoted so that a terminal echoing our input doesn't produce the marker itself. */
+    private static final String MARKER_COMMAND = "echo \"__ars\"_done_";
+    private static final String MARKER = "__ars_done_";
+
+    private final AdbClient mClient;
+    private final String mSerialNumber;
+    private final boolean mRawShell;
+    private final Object mLock = new Object();
+
+    private AdbConnection mConnection;
+    private long mSentSequence;
+    /** Last sequence completed by the device, guarded by mLock. */
+    private long mCompletedSequence;
+    private long mLatencyNanos;
+    private final long[] mSentTimes = new long[64];
+
+    /**
+     * @param rawShell use {@code exec:sh}, available from Android 5.0, rather than a terminal shell
+     */
+    InputChannel(AdbClient client, String serialNumber, boolean rawShell) {
+        mClient = client;
+        mSerialNumber = serialNumber;
+        mRawShell = rawShell;
+    }
+
+    /**
+     * Writes a command to the shell without waiting for the device to run it, and returns its
+     * sequence number for {@link #awaitCompletion(long, long)}.
+     *
+     * @throws IOException if the shell can't be reopened
+     */
+    long send(String command) throws IOException {
+        synchronized (mLock) {
+            long sequence = ++mSentSequence;
+            ByteBuffer line = StandardCharsets.UTF_8.encode(command + "; " + MARKER_COMMAND + sequence + "\n");
+            mSentTimes[(int) (sequence % mSentTimes.length)] = System.nanoTime();
+            try {
+                connection().write(line);
+            } catch (IOException e) {
+                // The shell died since the last command, try once on a new one
+                Logger.e("Input shell of %s lost, reconnecting: %s", mSerialNumber, e.getMessage());
+                closeConnection();
+                line.rewind();
+                connection().write(line);
+            }
+            return sequence;
+        }
+    }
+
+    /**
+     * Waits until the device has run the command with the given sequence number.
+     *
+     * @return false on timeout, or if the shell was closed first
+     */
+    boolean awaitCompletion(long sequence, long timeoutMillis) throws InterruptedException {
+        long deadline = System.currentTimeMillis() + timeoutMillis;
+        synchronized (mLock) {
+            while (mCompletedSequence < sequence) {
+                long delay = deadline - System.currentTimeMillis();
+                if (delay <= 0 || mConnection == null) {
+                    return false;
+                }
+                mLock.wait(delay);
+            }
+            return true;
+        }
+    }
+
+    /**
+     * Returns the number of commands written but not completed yet.
+     */
+    long getPendingCount() {
+        synchronized (mLock) {
+            return mSentSequence - mCompletedSequence;
+        }
+    }
+
+    /**
+     * Returns the average time, in milliseconds, between writing a command and its completion.
+     */
+    double getLatencyMillis() {
+        synchronized (mLock) {
+            return mLatencyNanos / 1000000.0;
+        }
+    }
+
+    private AdbConnection connection() throws IOException {
+        if (mConnection == null) {
+            final AdbConnection connection = mRawShell ? mClient.openExec(mSerialNumber, "sh")
+                    : mClient.openShell(mSerialNumber, "");
+            mConnection = connection;
+            // Anything sent on a previous shell won't complete anymore
+            mCompletedSequence = mSentSequence - 1;
+            Thread thread = new Thread(new Runnable() {
+                @Override
+                public void run() {
+                    readCompletions(connection);
+                }
+            }, "ars-input-" + mSerialNumber);
+            thread.setDaemon(true);
+            thread.start();
+            Logger.i("Opened input shell on %s", mSerialNumber);
+        }
+        return mConnection;
+    }
+
+    private void readCompletions(AdbConnection connection) {
+        try {
+            BufferedReader reader = new BufferedReader(
+                    new InputStreamReader(connection.getInputStream(), StandardCharsets.UTF_8));
+            String line;
+            while ((line = reader.readLine()) != null) {
+                int index = line.indexOf(MARKER);
+                if (index < 0) {
+                    continue;
+                }
+                long sequence;
+                try {
+                    sequence = Long.parseLong(line.substring(index + MARKER.length()).trim());
+                } catch (NumberFormatException e) {
+                    continue;
+                }
+                synchronized (mLock) {
+                    if (sequence > mCompletedSequence && sequence <= mSentSequence) {
+                        mCompletedSequence = sequence;
+                        if (mSentSequence - sequence < mSentTimes.length) {
+                            long latency = System.nanoTime() - mSentTimes[(int) (sequence % mSentTimes.length)];
+                            mLatencyNanos = mLatencyNanos == 0 ? latency : (mLatencyNanos * 7 + latency) / 8;
+                        }
+                        mLock.notifyAll();
+                    }
+                }
+            }
+        } catch (IOException e) {
+            // Connection closed, the next command reopens it
+        }
+        synchronized (mLock) {
+            if (mConnection == connection) {
+                closeConnection();
+            }
+        }
+    }
+
+    private void closeConnection() {
+        if (mConnection != null) {
+            mConnection.close();
+            mConnection = null;
+            mLock.notifyAll();
+        }
+    }
+
+    void close() {
+        synchronized (mLock) {
+            closeConnection();
+        }
+    }
+}
@@ -0,0 +1,292 @@
+package com.majeur.ars;
+
+import java.util.ArrayDeque;
+import java.util.ArrayList;
+import java.util.Deque;
+import java.util.Iterator;
+import java.util.List;
+
+/**
+ * Ordered input queue drained by a single thread, so that callers such as the Swing event thread
+ * never wait on device I/O. The queue is bounded: when full, or when a command waits longer than the
+ * timeout, redundant commands are coalesced or dropped rather than delaying the ones behind them.
+ * <p>
+ * Commands are sent in batches: key events and text arriving within the batch window, or piling up
+ * while the device is busy, are merged into a single {@code input} invocation, and the rest of the
+ * backlog is chained on the same shell line.
+ */
+class InputDispatcher {
+
+    interface Sink {
+
+        /**
+         * Called from the dispatcher thread, one command line at a time in submission order.
+         */
+        void dispatch(String command) throws Exception;
+    }
+
+    private static final String KEY_EVENT = "input keyevent ";
+    private static final String TEXT = "input text ";
+    /** Longest command line built from a batch, well below the shell limits. */
+    private static final int MAX_BATCH_LENGTH = 1024;
+
+    private final Sink mSink;
+    private final int mCapacity;
+    private final long mTimeoutNanos;
+    private final long mBatchWindowNanos;
+    private final Deque<Command> mQueue = new ArrayDeque<>();
+    private final Thread mThread;
+
+    private long mDispatchedCount;
+    private long mDroppedCount;
+    private long mLatencyNanos;
+
+    InputDispatcher(String name, Sink sink, int capacity, long timeoutMillis, long batchWindowMillis) {
+        mSink = sink;
+        mCapacity = Math.max(1, capacity);
+        mTimeoutNanos = timeoutMillis * 1000000L;
+        mBatchWindowNanos = batchWindowMillis * 1000000L;
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                dispatchCommands();
+            }
+        }, "ars-input-dispatch-" + name);
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    /**
+     * Queues a command without blocking.
+     *
+     * @param coalesceKey commands sharing a non null key are interchangeable, only the latest of a
+     *            run of them at the end of the queue is kept, and they are the first dropped when
+     *            the queue is full
+     * @return false if the command was dropped because the queue is full
+     */
+    boolean submit(String command, String coalesceKey) {
+        synchronized (mQueue) {
+            Command last = mQueue.peekLast();
+            if (coalesceKey != null && last != null && coalesceKey.equals(last.coalesceKey)) {
+                // Keep the first submission time, the replaced command was waiting already
+                mQueue.pollLast();
+                mQueue.addLast(new Command(command, coalesceKey, last.submitTime));
+                mDroppedCount++;
+                return true;
+            }
+
+            if (mQueue.size() >= mCapacity && !dropCoalescable()) {
+                mDroppedCount++;
+                Logger.e("Input queue full, dropping '%s'", command);
+                return false;
+            }
+            mQueue.addLast(new Command(command, coalesceKey, System.nanoTime()));
+            mQueue.notifyAll();
+            return true;
+        }
+    }
+
+    private boolean dropCoalescable() {
+        for (Iterator<Command> iterator = mQueue.iterator(); iterator.hasNext();) {
+            if (iterator.next().coalesceKey != null) {
+                iterator.remove();
+                mDroppedCount++;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Returns the number of commands waiting to be dispatched.
+     */
+    int getQueueDepth() {
+        synchronized (mQueue) {
+            return mQueue.size();
+        }
+    }
+
+    long getDispatchedCount() {
+        synchronized (mQueue) {
+            return mDispatchedCount;
+        }
+    }
+
+    /**
+     * Returns the number of commands coalesced, timed out or rejected because of a full queue.
+     */
+    long getDroppedCount() {
+        synchronized (mQueue) {
+            return mDroppedCount;
+        }
+    }
+
+    /**
+     * Returns the average time, in milliseconds, from submitting a command to its dispatch.
+     */
+    double getLatencyMillis() {
+        synchronized (mQueue) {
+            return mLatencyNanos / 1000000.0;
+        }
+    }
+
+    /**
+     * Stops dispatching, queued commands are discarded.
+     */
+    void shutdown() {
+        mThread.interrupt();
+        synchronized (mQueue) {
+            mQueue.clear();
+        }
+    }
+
+    private void dispatchCommands() {
+        List<Command> batch = new ArrayList<>();
+        while (!Thread.currentThread().isInterrupted()) {
+            batch.clear();
+            try {
+                takeBatch(batch);
+            } catch (InterruptedException e) {
+                return;
+            }
+            if (batch.isEmpty()) {
+                continue;
+            }
+
+            String line = merge(batch);
+            try {
+                mSink.dispatch(line);
+            } catch (InterruptedException e) {
+                return;
+            } catch (Exception e) {
+                Logger.e("Unable to send input '%s': %s", line, e.getMessage());
+            }
+
+            long now = System.nanoTime();
+            synchronized (mQueue) {
+                for (Command command : batch) {
+                    long latency = now - command.submitTime;
+                    mDispatchedCount++;
+                    mLatencyNanos = mLatencyNanos == 0 ? latency : (mLatencyNanos * 7 + latency) / 8;
+                }
+            }
+        }
+    }
+
+    /**
+     * Waits for a command, then for more of the same type until the batch window closes or another
+     * type shows up, and finally takes whatever else is already queued.
+     */
+    private void takeBatch(List<Command> batch) throws InterruptedException {
+        synchronized (mQueue) {
+            while (mQueue.isEmpty()) {
+                mQueue.wait();
+            }
+
+            Command first = takeCommand();
+            if (first == null) {
+                return;
+            }
+            batch.add(first);
+            int length = first.command.length();
+            String type = getBatchType(first.command);
+            if (type != null) {
+                long deadline = System.nanoTime() + mBatchWindowNanos;
+                while (length < MAX_BATCH_LENGTH) {
+                    long delay = deadline - System.nanoTime();
+                    if (mQueue.isEmpty()) {
+                        if (delay <= 0) {
+                            break;
+                        }
+                        mQueue.wait(delay / 1000000, (int) (delay % 1000000));
+                        continue;
+                    }
+                    if (!type.equals(getBatchType(mQueue.peekFirst().command))) {
+                        break;
+                    }
+                    Command command = takeCommand();
+                    if (command != null) {
+                        batch.add(command);
+                        length += command.command.length();
+                    }
+                }
+            }
+
+            // Backlog left while the device was busy, chain it on the same line
+            while (!mQueue.isEmpty() && length + mQueue.peekFirst().command.length() < MAX_BATCH_LENGTH) {
+                Command command = takeCommand();
+                if (command != null) {
+                    batch.add(command);
+                    length += command.command.length();
+                }
+            }
+        }
+    }
+
+    /**
+     * Polls the next command, or returns null if it waited past the timeout and was dropped.
+     */
+    private Command takeCommand() {
+        Command command = mQueue.pollFirst();
+        if (System.nanoTime() - command.submitTime > mTimeoutNanos) {
+            mDroppedCount++;
+            Logger.e("Input '%s' timed out in queue, dropping it", command.command);
+            return null;
+        }
+        return command;
+    }
+
+    private static String getBatchType(String command) {
+        if (command.startsWith(KEY_EVENT)) {
+            return KEY_EVENT;
+        } else if (command.startsWith(TEXT)) {
+            return TEXT;
+        }
+        return null;
+    }
+
+    /**
+     * Tells whether appending a quoted text argument would form a %s, which the input command
+     * replaces with a space.
+     */
+    private static boolean splitsPercent(StringBuilder line, String argument) {
+        return line.length() >= 2 && line.charAt(line.length() - 2) == '%' && line.charAt(line.length() - 1) == '\''
+                && argument.startsWith("'s");
+    }
+
+    /**
+     * Builds one shell line out of a batch: consecutive key events become a single multi key
+     * {@code input keyevent}, consecutive text a single {@code input text}, anything else is chained.
+     */
+    static String merge(List<Command> batch) {
+        StringBuilder line = new StringBuilder();
+        String type = null;
+        for (Command command : batch) {
+            String commandType = getBatchType(command.command);
+            String argument = commandType != null ? command.command.substring(commandType.length()) : null;
+            if (commandType != null && commandType.equals(type) && !splitsPercent(line, argument)) {
+                // Quoted text arguments concatenate when written next to each other
+                line.append(KEY_EVENT.equals(commandType) ? " " : "").append(argument);
+                continue;
+            }
+            if (line.length() > 0) {
+                line.append("; ");
+            }
+            line.append(command.command);
+            type = commandType;
+        }
+        return line.toString();
+    }
+
+    private static final class Command {
+        final String command;
+        final String coalesceKey;
+        final long submitTime;
+
+        Command(String command, String coalesceKey, long submitTime) {
+            this.command = command;
+            this.coalesceKey = coalesceKey;
+            this.submitTime = submitTime;
+        }
+    }
+}
@@ -1,34 +1,77 @@
 package com.majeur.ars;
 
+import java.awt.BorderLayout;
 import java.awt.GridLayout;
 import java.awt.event.ActionEvent;
 import java.awt.event.ActionListener;
 
 import javax.swing.JButton;
 import javax.swing.JFrame;
+import javax.swing.JPanel;
+import javax.swing.JTextField;
 
 public class InputFrame extends JFrame implements ActionListener {
 
     private static final long serialVersionUID = 1L;
 
     private AdbHelper mAdbHelper;
+    private JTextField mTextField;
 
     public InputFrame(AdbHelper adbHelper) {
         mAdbHelper = adbHelper;
 
         setVisible(true);
         setTitle(Constants.Strings.WINDOW_TILE_INPUT);
-        setSize(800, 300);
+        setSize(800, 330);
         setResizable(false);
 
-        setLayout(new GridLayout(15, 4));
+        setLayout(new BorderLayout());
+        add(buildTextPanel(), BorderLayout.NORTH);
 
+        JPanel keysPanel = new JPanel(new GridLayout(15, 4));
         for (int i = 0; i < Constants.Adb.INPUT_KEY_MAP.length; i++) {
             JButton jButton = new JButton((String) Constants.Adb.INPUT_KEY_MAP[i][1]);
             jButton.setName(String.valueOf(i));
             jButton.addActionListener(this);
-            add(jButton);
+            keysPanel.add(jButton);
         }
+        add(keysPanel, BorderLayout.CENTER);
+    }
+
+    private JPanel buildTextPanel() {
+        JPanel textPanel = new JPanel(new BorderLayout());
+
+        mTextField = new JTextField();
+        ActionListener sendListener = new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String skipped = mAdbHelper.performInputText(mTextField.getText());
+                mTextField.setText("");
+                Utils.showSkippedCharacters(InputFrame.this, skipped);
+            }
+        };
+        mTextField.addActionListener(sendListener);
+        textPanel.add(mTextField, BorderLayout.CENTER);
+
+        JPanel buttonsPanel = new JPanel(new GridLayout(1, 2));
+        JButton sendButton = new JButton("Send text");
+        sendButton.addActionListener(sendListener);
+        buttonsPanel.add(sendButton);
+
+        JButton pasteButton = new JButton("Paste clipboard");
+        pasteButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                String text = Utils.getClipboardText();
+                if (text != null) {
+                    Utils.showSkippedCharacters(InputFrame.this, mAdbHelper.performInputText(text));
+                }
+            }
+        });
+        buttonsPanel.add(pasteButton);
+        textPanel.add(buttonsPanel, BorderLayout.EAST);
+
+        return textPanel;
     }
 
     @Override
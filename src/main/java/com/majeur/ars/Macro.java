@@ -0,0 +1,156 @@
+package com.majeur.ars;
+
+import java.io.BufferedReader;
+import java.io.File;
+import java.io.FileInputStream;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.io.InputStreamReader;
+import java.io.OutputStreamWriter;
+import java.io.Writer;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Collections;
+import java.util.List;
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Recorded sequence of input commands with the delay before each of them. Saved as text, one
+ * {@code <delay ms> <command>} line per step, so macros can be edited by hand.
+ */
+class Macro {
+
+    /** First release whose sleep command accepts fractions of seconds. */
+    static final int SCRIPT_API_LEVEL = 23;
+
+    /** Swipes last as long as their last argument, in milliseconds. */
+    private static final Pattern SWIPE_PATTERN = Pattern
+            .compile("^input (?:touchscreen )?swipe(?: \\S+){4} (\\d+)$");
+
+    static final class Step {
+        final long delay;
+        final String command;
+
+        Step(long delay, String command) {
+            this.delay = delay;
+            this.command = command;
+        }
+    }
+
+    private final List<Step> mSteps = new ArrayList<>();
+    private long mLastTime;
+
+    /**
+     * Appends a command that took effect at {@code time}, timed relatively to the previous one. A
+     * swipe is known once released but recorded at the time it was pressed. Steps keep their order,
+     * a time before the previous step counts as no delay.
+     */
+    synchronized void record(String command, long time) {
+        mSteps.add(new Step(mSteps.isEmpty() ? 0 : Math.max(0, time - mLastTime), command));
+        mLastTime = mSteps.size() == 1 ? time : Math.max(mLastTime, time);
+    }
+
+    /**
+     * Appends a step running {@code delay} milliseconds after the previous one.
+     */
+    synchronized void add(long delay, String command) {
+        mSteps.add(new Step(delay, command));
+    }
+
+    synchronized List<Step> getSteps() {
+        return Collections.unmodifiableList(new ArrayList<>(mSteps));
+    }
+
+    synchronized int size() {
+        return mSteps.size();
+    }
+
+    /**
+     * Returns the time from the first step to the last one, in milliseconds.
+     */
+    synchronized long getDuration() {
+        long duration = 0;
+        for (Step step : mSteps) {
+            duration += step.delay;
+        }
+        return duration;
+    }
+
+    /**
+     * Compiles the macro into a device shell script replaying it without the host in the loop.
+     * Requires {@link #SCRIPT_API_LEVEL}.
+     * <p>
+     * Each step waits for its time since the start of the script, read from the uptime clock in
+     * hundredths of a second, so neither the time input commands take nor the sleep overhead adds up
+     * over the steps. Steps run one after the other, which keeps their order on the device. Only a
+     * swipe lasting past the time of the next step runs in the background.
+     */
+    synchronized String toScript() {
+        StringBuilder script = new StringBuilder("#!/system/bin/sh\n")
+                .append("read up rest < /proc/uptime\n")
+                .append("start=${up%.*}${up#*.}\n")
+                .append("at() {\n")
+                .append("  read up rest < /proc/uptime\n")
+                .append("  d=$(($1 + start - ${up%.*}${up#*.}))\n")
+                .append("  if [ $d -gt 0 ]; then sleep $((d / 100)).$((d / 10 % 10))$((d % 10)); fi\n")
+                .append("}\n");
+        long time = 0;
+        for (int i = 0; i < mSteps.size(); i++) {
+            Step step = mSteps.get(i);
+            time += step.delay;
+            if (time > 0) {
+                script.append(String.format(Locale.US, "at %d\n", Math.round(time / 10.0)));
+            }
+            if (i + 1 < mSteps.size() && getBusyTime(step.command) > mSteps.get(i + 1).delay) {
+                // Grouped, hand edited steps may hold several commands
+                script.append("{ ").append(step.command).append("; } &\n");
+            } else {
+                script.append(step.command).append('\n');
+            }
+        }
+        // Returns once background commands are done too
+        script.append("wait\n");
+        return script.toString();
+    }
+
+    /**
+     * Returns how long a command keeps the device busy on purpose, 0 but for swipes.
+     */
+    private static long getBusyTime(String command) {
+        Matcher matcher = SWIPE_PATTERN.matcher(command.trim());
+        return matcher.matches() ? Long.parseLong(matcher.group(1)) : 0;
+    }
+
+    synchronized void save(File file) throws IOException {
+        try (Writer writer = new OutputStreamWriter(new FileOutputStream(file), StandardCharsets.UTF_8)) {
+            for (Step step : mSteps) {
+                writer.write(step.delay + " " + step.command + "\n");
+            }
+        }
+    }
+
+    static Macro load(File file) throws IOException {
+        Macro macro = new Macro();
+        try (BufferedReader reader = new BufferedReader(
+                new InputStreamReader(new FileInputStream(file), StandardCharsets.UTF_8))) {
+            String line;
+            int number = 0;
+            while ((line = reader.readLine()) != null) {
+                number++;
+                line = line.trim();
+                if (line.isEmpty() || line.startsWith("#")) {
+                    continue;
+                }
+                int space = line.indexOf(' ');
+                try {
+                    macro.add(Long.parseLong(line.substring(0, space)), line.substring(space + 1));
+                } catch (NumberFormatException | StringIndexOutOfBoundsException e) {
+                    throw new IOException("Invalid macro step at line " + number + ": " + line);
+                }
+            }
+        }
+        return macro;
+    }
+}
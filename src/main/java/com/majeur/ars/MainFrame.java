@@ -9,6 +9,8 @@ import java.awt.event.ItemEvent;
 import java.awt.event.ItemListener;
 import java.awt.event.WindowAdapter;
 import java.awt.event.WindowEvent;
+import java.beans.PropertyChangeEvent;
+import java.beans.PropertyChangeListener;
 import java.io.File;
 import java.io.FileInputStream;
 import java.io.IOException;
@@ -19,14 +21,18 @@ import java.util.Arrays;
 import javax.swing.BorderFactory;
 import javax.swing.JButton;
 import javax.swing.JCheckBox;
+import javax.swing.JComboBox;
 import javax.swing.JDialog;
 import javax.swing.JFileChooser;
 import javax.swing.JFrame;
+import javax.swing.JLabel;
 import javax.swing.JMenu;
 import javax.swing.JMenuBar;
 import javax.swing.JMenuItem;
 import javax.swing.JOptionPane;
 import javax.swing.JPanel;
+import javax.swing.JToggleButton;
+import javax.swing.Timer;
 import javax.swing.UIManager;
 import javax.swing.UnsupportedLookAndFeelException;
 
@@ -40,13 +46,21 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
     private AdbHelper mAdbHelper;
     private ScreenPanel mScreenPanel;
     private String[] mDevices;
+    private String mCurrentDevice;
 
     private RadioButtonGroup mRadioButtonGroup;
 
     private JDialog mNoDeviceDialog;
+    private JDialog mNoAdbServerDialog;
 
     private JFrame mInputKeysFrame;
     private JFrame mLogFrame;
+    private GridFrame mGridFrame;
+    private Config mConfig;
+    private SessionRecorder mSessionRecorder;
+    private ScreenshotSaver mScreenshotSaver;
+    private ScreenshotBurst mScreenshotBurst;
+    private ClipExporter mClipExporter;
 
     public MainFrame(File configFile) {
         try {
@@ -58,21 +72,26 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
 
         Config config = new Config();
         config.load(configFile);
+        mConfig = config;
 
-        setTitle(Strings.WINDOW_TILE_REGULAR);
-        pack();
+        setTitle(Strings.WINDOW_TILE_CONNECTING);
         setResizable(false);
         setLocationByPlatform(true);
         setDefaultCloseOperation(JFrame.EXIT_ON_CLOSE);
-        setVisible(true);
 
         JOptionPane optionPane = new JOptionPane();
         optionPane.setMessage(Strings.MESSAGE_NO_DEVICE);
         mNoDeviceDialog = optionPane.createDialog(this, Strings.TITLE_NO_DEVICE);
         mNoDeviceDialog.setModal(false);
+        mNoAdbServerDialog = createNoAdbServerDialog(config.getAdbCommand());
 
-        mAdbHelper = new AdbHelper(config.getAdbCommand(), config.getScreenWidth(), config.getScreenHeight());
-        mScreenPanel = new ScreenPanel(mAdbHelper, config.getScreenshotDelay(), config.getScale());
+        mAdbHelper = new AdbHelper(config.getAdbCommand());
+        mAdbHelper.setPreferredCaptureBackend(config.getCaptureBackend());
+        mAdbHelper.setInputQueueLimits(config.getInputQueueSize(), config.getInputTimeout(),
+                config.getInputBatchWindow());
+        mAdbHelper.setTouchMode(config.getTouchMode(), config.getTouchMoveRate());
+        mScreenPanel = new ScreenPanel(mAdbHelper, config);
+        mScreenshotSaver = createScreenshotSaver();
 
         mAdbHelper.registerDevicesChangedListener(this);
 
@@ -80,7 +99,7 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
 
         final int togglesWidth = 180;
         JPanel togglesPanel = new JPanel();
-        togglesPanel.setPreferredSize(new Dimension(togglesWidth, 600));
+        togglesPanel.setPreferredSize(new Dimension(togglesWidth, 915));
 
         togglesPanel.add(buildDevicesPanel(togglesWidth));
         togglesPanel.add(buildRenderingOptionPanel(togglesWidth, config.getScale()));
@@ -89,10 +108,14 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
         getContentPane().add(togglesPanel, BorderLayout.WEST);
         getContentPane().add(mScreenPanel);
 
+        // The bridge connects in the background, devices show up once it is ready
         pack();
+        setVisible(true);
+        StartupMetrics.reached(StartupMetrics.WINDOW_SHOWN);
     }
 
     private void setCurrentDevice(String device) {
+        mCurrentDevice = device;
         if (device == null) {
             mScreenPanel.stopUpdate();
             setTitle(Strings.WINDOW_TILE_REGULAR);
@@ -102,21 +125,66 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
 
             mNoDeviceDialog.setVisible(true);
         } else {
+            mAdbHelper.setTargetDevice(device);
             mScreenPanel.startUpdate();
             setTitle(String.format(Strings.WINDOW_TILE_DEVICE, device));
-            mAdbHelper.setTargetDevice(device);
             mRadioButtonGroup.setSelectedRadio(Arrays.asList(mDevices).indexOf(device));
             mNoDeviceDialog.setVisible(false);
         }
     }
 
+    /**
+     * Tells the adb server can't be reached while the bridge keeps trying in the background, with a
+     * button to try again right away, e.g. after starting it by hand.
+     */
+    private JDialog createNoAdbServerDialog(String adbCommand) {
+        final JOptionPane optionPane = new JOptionPane(String.format(Strings.MESSAGE_NO_ADB_SERVER, adbCommand),
+                JOptionPane.WARNING_MESSAGE, JOptionPane.DEFAULT_OPTION, null,
+                new Object[] { Strings.ACTION_RETRY_NOW });
+        optionPane.addPropertyChangeListener(JOptionPane.VALUE_PROPERTY, new PropertyChangeListener() {
+            @Override
+            public void propertyChange(PropertyChangeEvent event) {
+                if (Strings.ACTION_RETRY_NOW.equals(event.getNewValue())) {
+                    setTitle(Strings.WINDOW_TILE_CONNECTING);
+                    mAdbHelper.retryBridgeNow();
+                    // Lets the button be pressed again next time the dialog shows
+                    optionPane.setValue(JOptionPane.UNINITIALIZED_VALUE);
+                }
+            }
+        });
+        JDialog dialog = optionPane.createDialog(this, Strings.TITLE_NO_ADB_SERVER);
+        dialog.setModal(false);
+        return dialog;
+    }
+
+    @Override
+    public void onBridgeUnavailable() {
+        setTitle(Strings.WINDOW_TILE_NO_ADB_SERVER);
+        if (!mNoAdbServerDialog.isVisible()) {
+            mNoAdbServerDialog.setVisible(true);
+        }
+    }
+
     @Override
     public void onDevicesChanged(String[] devices) {
         Logger.i("Connected devices changed");
+        // Only reported once the bridge is connected
+        mNoAdbServerDialog.setVisible(false);
         mDevices = devices;
         mRadioButtonGroup.setRadioButtons(devices);
+        if (mGridFrame != null) {
+            mGridFrame.setDevices(devices);
+        }
 
-        if (devices.length > 0) {
+        // Other devices coming and going don't interrupt the one being viewed, which is waited for
+        // when it disconnects and attached again when it comes back
+        int index = Arrays.asList(devices).indexOf(mCurrentDevice);
+        if (index >= 0) {
+            mRadioButtonGroup.setSelectedRadio(index);
+            setTitle(String.format(Strings.WINDOW_TILE_DEVICE, mCurrentDevice));
+        } else if (mCurrentDevice != null) {
+            setTitle(String.format(Strings.WINDOW_TILE_RECONNECTING, mCurrentDevice));
+        } else if (devices.length > 0) {
             setCurrentDevice(devices[0]);
         } else {
             setCurrentDevice(null);
@@ -181,7 +249,7 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
 
     private JPanel buildRenderingOptionPanel(int width, int scale) {
         JPanel renderingPanel = new JPanel();
-        renderingPanel.setPreferredSize(new Dimension(width, 165));
+        renderingPanel.setPreferredSize(new Dimension(width, 290));
         renderingPanel.setBorder(BorderFactory.createTitledBorder("Rendering"));
 
         JCheckBox updateCheckBox = new JCheckBox();
@@ -214,6 +282,21 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
         });
         renderingPanel.add(landscapeCheckBox);
 
+        JCheckBox autoRotateCheckBox = new JCheckBox();
+        autoRotateCheckBox.setText("Auto rotate");
+        autoRotateCheckBox.setSelected(false);
+        autoRotateCheckBox.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent e) {
+                if (e.getStateChange() == ItemEvent.DESELECTED) {
+                    mScreenPanel.setAutoRotate(false);
+                } else if (e.getStateChange() == ItemEvent.SELECTED) {
+                    mScreenPanel.setAutoRotate(true);
+                }
+            }
+        });
+        renderingPanel.add(autoRotateCheckBox);
+
         NumberChooserPanel numberChooser = new NumberChooserPanel("Scale");
         numberChooser.setValue(scale);
         numberChooser.setOnValueChangedListener(new NumberChooserPanel.OnValueChangedListener() {
@@ -224,28 +307,139 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
         });
         renderingPanel.add(numberChooser);
 
+        final JComboBox<FrameRenderer.Quality> qualityComboBox = new JComboBox<>(FrameRenderer.Quality.values());
+        qualityComboBox.setSelectedItem(mScreenPanel.getRenderQuality());
+        qualityComboBox.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                mScreenPanel.setRenderQuality((FrameRenderer.Quality) qualityComboBox.getSelectedItem());
+            }
+        });
+        renderingPanel.add(qualityComboBox);
+
         final JButton saveScreenShot = new JButton();
         saveScreenShot.setText("Save screenshot");
         saveScreenShot.addActionListener(new ActionListener() {
             @Override
             public void actionPerformed(ActionEvent e) {
+                // Snapshot what is displayed now, the file chooser can take a while
+                Frame frame = mScreenPanel.retainDisplayedFrame();
+                if (frame == null) {
+                    Logger.e("No frame to save");
+                    return;
+                }
                 JFileChooser fileChooser = new JFileChooser();
-                int result = fileChooser.showOpenDialog(saveScreenShot);
-
-                if (result == JFileChooser.APPROVE_OPTION) {
-                    File file = fileChooser.getSelectedFile();
-                    mAdbHelper.saveScreenShotToFile(file);
+                if (fileChooser.showSaveDialog(saveScreenShot) != JFileChooser.APPROVE_OPTION) {
+                    frame.release();
+                    return;
+                }
+                File file = mScreenshotSaver.withExtension(fileChooser.getSelectedFile());
+                boolean queued = mScreenshotSaver.save(frame, file, new ScreenshotSaver.Callback() {
+                    @Override
+                    public void onSaved(File file, boolean success) {
+                        if (success) {
+                            Logger.i("Screenshot saved to %s", file.getPath());
+                        }
+                    }
+                });
+                if (!queued) {
+                    Logger.e("Screenshot skipped, encoder busy");
                 }
             }
         });
         renderingPanel.add(saveScreenShot);
 
+        final JToggleButton burstButton = new JToggleButton();
+        burstButton.setText("Burst capture");
+        burstButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (mScreenshotBurst != null) {
+                    stopScreenshotBurst();
+                    return;
+                }
+
+                JFileChooser fileChooser = new JFileChooser();
+                fileChooser.setFileSelectionMode(JFileChooser.DIRECTORIES_ONLY);
+                if (fileChooser.showSaveDialog(burstButton) != JFileChooser.APPROVE_OPTION) {
+                    burstButton.setSelected(false);
+                    return;
+                }
+                // Its own encoders, so that single screenshots never wait behind a burst
+                mScreenshotBurst = new ScreenshotBurst(createScreenshotSaver(), fileChooser.getSelectedFile(),
+                        mConfig.getBurstInterval());
+                mScreenPanel.addFrameObserver(mScreenshotBurst);
+            }
+        });
+        renderingPanel.add(burstButton);
+
+        renderingPanel.add(buildStatsLabel());
+
         return renderingPanel;
     }
 
+    private ScreenshotSaver createScreenshotSaver() {
+        return new ScreenshotSaver(mConfig.getScreenshotThreads(), mConfig.getScreenshotFormat(),
+                mConfig.getScreenshotQuality());
+    }
+
+    private void stopScreenshotBurst() {
+        mScreenPanel.removeFrameObserver(mScreenshotBurst);
+        mScreenshotBurst.stop();
+        Logger.i("Burst capture stopped, %d frames saved, %d skipped", mScreenshotBurst.getQueuedCount(),
+                mScreenshotBurst.getSkippedCount());
+        mScreenshotBurst = null;
+    }
+
+    private void stopClipRecording() {
+        final ClipExporter exporter = mClipExporter;
+        mScreenPanel.removeFrameObserver(exporter);
+        mClipExporter = null;
+        // Frames still being encoded are written in the background
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                exporter.finish();
+            }
+        }, "ars-export-finish");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void stopSessionRecording() {
+        if (mSessionRecorder == null) {
+            return;
+        }
+        mScreenPanel.removeFrameObserver(mSessionRecorder);
+        mAdbHelper.removeInputListener(mSessionRecorder);
+        mSessionRecorder.stop();
+        mSessionRecorder = null;
+    }
+
+    private JLabel buildStatsLabel() {
+        final JLabel statsLabel = new JLabel(" ");
+        Timer timer = new Timer(1000, new ActionListener() {
+            private long mLastPainted;
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                long painted = mScreenPanel.getPaintedFrameCount();
+                CaptureSession.State state = mScreenPanel.getCaptureState();
+                statsLabel.setText(String.format("<html>%d fps, %d dropped, %.1f ms<br>input: %d queued, %.0f ms"
+                        + "<br>capture: %s</html>",
+                        painted - mLastPainted, mScreenPanel.getDroppedFrameCount(), mScreenPanel.getPaintTimeMillis(),
+                        mAdbHelper.getInputQueueDepth(), mAdbHelper.getInputLatencyMillis(),
+                        state != null ? state.name().toLowerCase() : "stopped"));
+                mLastPainted = painted;
+            }
+        });
+        timer.start();
+        return statsLabel;
+    }
+
     private JPanel buildInfoPanel(int width) {
         JPanel extraPanel = new JPanel();
-        extraPanel.setPreferredSize(new Dimension(width, 110));
+        extraPanel.setPreferredSize(new Dimension(width, 305));
         extraPanel.setBorder(BorderFactory.createTitledBorder("Extra"));
 
         final JButton inputKeysWindowButton = new JButton();
@@ -290,6 +484,156 @@ public class MainFrame extends JFrame implements OnDevicesChangedListener {
         });
         extraPanel.add(logWindowButton);
 
+        final JButton gridWindowButton = new JButton();
+        gridWindowButton.setText("Open Grid window");
+        gridWindowButton.addActionListener(new ActionListener() {
+
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (mGridFrame == null) {
+                    mGridFrame = new GridFrame(mAdbHelper, mConfig, new GridFrame.OnDeviceSelectedListener() {
+                        @Override
+                        public void onDeviceSelected(String serialNumber) {
+                            setCurrentDevice(serialNumber);
+                            toFront();
+                        }
+                    });
+                    mGridFrame.addWindowListener(new WindowAdapter() {
+                        @Override
+                        public void windowClosed(WindowEvent windowEvent) {
+                            mGridFrame = null;
+                        }
+                    });
+                    if (mDevices != null) {
+                        mGridFrame.setDevices(mDevices);
+                    }
+                } else {
+                    mGridFrame.toFront();
+                }
+            }
+        });
+        extraPanel.add(gridWindowButton);
+
+        final JToggleButton recordMacroButton = new JToggleButton();
+        recordMacroButton.setText("Record macro");
+        recordMacroButton.addItemListener(new ItemListener() {
+            @Override
+            public void itemStateChanged(ItemEvent e) {
+                if (e.getStateChange() == ItemEvent.SELECTED) {
+                    mAdbHelper.startMacroRecording();
+                    return;
+                }
+
+                Macro macro = mAdbHelper.stopMacroRecording();
+                if (macro == null || macro.size() == 0) {
+                    return;
+                }
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showSaveDialog(recordMacroButton) == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        macro.save(fileChooser.getSelectedFile());
+                    } catch (IOException ex) {
+                        Logger.e("Unable to save macro: %s", ex.getMessage());
+                    }
+                }
+            }
+        });
+        extraPanel.add(recordMacroButton);
+
+        final JButton playMacroButton = new JButton();
+        playMacroButton.setText("Play macro");
+        playMacroButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showOpenDialog(playMacroButton) == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        mAdbHelper.playMacro(Macro.load(fileChooser.getSelectedFile()));
+                    } catch (IOException ex) {
+                        Logger.e("Unable to load macro: %s", ex.getMessage());
+                    }
+                }
+            }
+        });
+        extraPanel.add(playMacroButton);
+
+        final JToggleButton recordSessionButton = new JToggleButton();
+        recordSessionButton.setText("Record session");
+        recordSessionButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (mSessionRecorder != null) {
+                    stopSessionRecording();
+                    return;
+                }
+
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showSaveDialog(recordSessionButton) != JFileChooser.APPROVE_OPTION) {
+                    recordSessionButton.setSelected(false);
+                    return;
+                }
+                try {
+                    mSessionRecorder = new SessionRecorder(fileChooser.getSelectedFile());
+                    mAdbHelper.addInputListener(mSessionRecorder);
+                    mScreenPanel.addFrameObserver(mSessionRecorder);
+                } catch (IOException ex) {
+                    Logger.e("Unable to record session: %s", ex.getMessage());
+                    recordSessionButton.setSelected(false);
+                }
+            }
+        });
+        extraPanel.add(recordSessionButton);
+
+        final JButton playSessionButton = new JButton();
+        playSessionButton.setText("Play session");
+        playSessionButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showOpenDialog(playSessionButton) == JFileChooser.APPROVE_OPTION) {
+                    try {
+                        new PlaybackFrame(fileChooser.getSelectedFile(), mConfig);
+                    } catch (IOException ex) {
+                        Logger.e("Unable to open session: %s", ex.getMessage());
+                    }
+                }
+            }
+        });
+        extraPanel.add(playSessionButton);
+
+        final JToggleButton recordClipButton = new JToggleButton();
+        recordClipButton.setText("Record clip");
+        recordClipButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (mClipExporter != null) {
+                    stopClipRecording();
+                    return;
+                }
+
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showSaveDialog(recordClipButton) != JFileChooser.APPROVE_OPTION) {
+                    recordClipButton.setSelected(false);
+                    return;
+                }
+                mClipExporter = ClipExporter.create(fileChooser.getSelectedFile(), mConfig);
+                mScreenPanel.addFrameObserver(mClipExporter);
+            }
+        });
+        extraPanel.add(recordClipButton);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosing(WindowEvent e) {
+                // Writes the seek index before exiting
+                stopSessionRecording();
+                if (mClipExporter != null) {
+                    mScreenPanel.removeFrameObserver(mClipExporter);
+                    mClipExporter.finish();
+                }
+            }
+        });
+
         return extraPanel;
     }
 
@@ -0,0 +1,168 @@
+package com.majeur.ars;
+
+import java.awt.image.BufferedImage;
+import java.io.ByteArrayOutputStream;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.nio.charset.StandardCharsets;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Writes frames as JPEG images in an AVI file, which most players read as Motion JPEG. AVI frames
+ * have a fixed rate, frames lasting longer than a frame period are repeated to keep the clip in real
+ * time. The header is written again with the final counts when closing, followed by the frame index.
+ * The RIFF size is 32 bits, frames that would push the file past 4 GB with its index are refused.
+ */
+class MjpegAviWriter extends ClipWriter {
+
+    /** From RIFF to the "movi" list header included. */
+    private static final int HEADER_SIZE = 224;
+    private static final int AVIF_HASINDEX = 0x10;
+    private static final int AVIIF_KEYFRAME = 0x10;
+    private static final long MAX_RIFF_SIZE = 0xFFFFFFFFL;
+
+    private final RandomAccessFile mFile;
+    private final int mWidth, mHeight;
+    private final int mFps;
+    private final float mQuality;
+    private final ByteBuffer mChunkHeader = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+    private ByteBuffer mIndex = ByteBuffer.allocate(16 * 1024).order(ByteOrder.LITTLE_ENDIAN);
+    /** Size of the "movi" list from its type, which index offsets are relative to. */
+    private long mMoviSize = 4;
+    private int mFrameCount;
+    private int mMaxFrameSize;
+    private long mDuration;
+
+    MjpegAviWriter(File file, int width, int height, int fps, int quality) throws IOException {
+        mWidth = width;
+        mHeight = height;
+        mFps = fps;
+        mQuality = Math.max(0, Math.min(100, quality)) / 100f;
+        mFile = new RandomAccessFile(file, "rw");
+        mFile.setLength(0);
+        mFile.write(buildHeader().array());
+    }
+
+    @Override
+    byte[] encode(BufferedImage image) throws IOException {
+        ImageWriter writer = ImageIO.getImageWritersByFormatName("jpeg").next();
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+        param.setCompressionQuality(mQuality);
+        ByteArrayOutputStream bytes = new ByteArrayOutputStream(64 * 1024);
+        ImageOutputStream output = ImageIO.createImageOutputStream(bytes);
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+        } finally {
+            writer.dispose();
+            output.close();
+        }
+        return bytes.toByteArray();
+    }
+
+    @Override
+    boolean write(byte[] frame, long duration) throws IOException {
+        // Repeat the frame for as many periods as it lasts, carrying rounding over to the next one
+        mDuration += duration;
+        long count = Math.round(mDuration * mFps / 1000.0) - mFrameCount;
+        for (long i = 0; i < count; i++) {
+            if (!writeChunk(frame)) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    /**
+     * Returns false, writing nothing, if the chunk and its index entry don't fit in the RIFF size.
+     */
+    private boolean writeChunk(byte[] frame) throws IOException {
+        long size = 8 + frame.length + frame.length % 2;
+        if (getRiffSize() + size + 16 > MAX_RIFF_SIZE) {
+            return false;
+        }
+
+        if (mIndex.remaining() < 16) {
+            ByteBuffer index = ByteBuffer.allocate(mIndex.capacity() * 2).order(ByteOrder.LITTLE_ENDIAN);
+            mIndex.flip();
+            mIndex = index.put(mIndex);
+        }
+        // Offsets below 4 GB, read as unsigned
+        mIndex.put(fourCc("00dc")).putInt(AVIIF_KEYFRAME).putInt((int) mMoviSize).putInt(frame.length);
+
+        mChunkHeader.clear();
+        mChunkHeader.put(fourCc("00dc")).putInt(frame.length);
+        mFile.write(mChunkHeader.array());
+        mFile.write(frame);
+        // Chunks are word aligned
+        if (frame.length % 2 != 0) {
+            mFile.write(0);
+        }
+        mMoviSize += size;
+        mFrameCount++;
+        mMaxFrameSize = Math.max(mMaxFrameSize, frame.length);
+        return true;
+    }
+
+    /**
+     * Size of the file past the RIFF header once closed with the frames written so far.
+     */
+    private long getRiffSize() {
+        return HEADER_SIZE - 8 + mMoviSize - 4 + 8 + mIndex.position();
+    }
+
+    @Override
+    public void close() throws IOException {
+        try {
+            ByteBuffer header = ByteBuffer.allocate(8).order(ByteOrder.LITTLE_ENDIAN);
+            header.put(fourCc("idx1")).putInt(mIndex.position());
+            mFile.write(header.array());
+            mFile.write(mIndex.array(), 0, mIndex.position());
+
+            mFile.seek(0);
+            mFile.write(buildHeader().array());
+        } finally {
+            mFile.close();
+        }
+    }
+
+    private ByteBuffer buildHeader() {
+        long riffSize = getRiffSize();
+        int bytesPerSecond = (int) Math.min(Integer.MAX_VALUE, (long) mMaxFrameSize * mFps);
+        ByteBuffer header = ByteBuffer.allocate(HEADER_SIZE).order(ByteOrder.LITTLE_ENDIAN);
+        header.put(fourCc("RIFF")).putInt((int) riffSize).put(fourCc("AVI "));
+        header.put(fourCc("LIST")).putInt(192).put(fourCc("hdrl"));
+
+        header.put(fourCc("avih")).putInt(56);
+        header.putInt(1000000 / mFps).putInt(bytesPerSecond).putInt(0).putInt(AVIF_HASINDEX);
+        header.putInt(mFrameCount).putInt(0).putInt(1).putInt(mMaxFrameSize);
+        header.putInt(mWidth).putInt(mHeight).putInt(0).putInt(0).putInt(0).putInt(0);
+
+        header.put(fourCc("LIST")).putInt(116).put(fourCc("strl"));
+        header.put(fourCc("strh")).putInt(56);
+        header.put(fourCc("vids")).put(fourCc("MJPG")).putInt(0).putShort((short) 0).putShort((short) 0);
+        header.putInt(0).putInt(1).putInt(mFps).putInt(0).putInt(mFrameCount);
+        header.putInt(mMaxFrameSize).putInt(-1).putInt(0);
+        header.putShort((short) 0).putShort((short) 0).putShort((short) mWidth).putShort((short) mHeight);
+
+        header.put(fourCc("strf")).putInt(40);
+        header.putInt(40).putInt(mWidth).putInt(mHeight).putShort((short) 1).putShort((short) 24);
+        header.put(fourCc("MJPG")).putInt(mWidth * mHeight * 3).putInt(0).putInt(0).putInt(0).putInt(0);
+
+        header.put(fourCc("LIST")).putInt((int) mMoviSize).put(fourCc("movi"));
+        return header;
+    }
+
+    private static byte[] fourCc(String code) {
+        return code.getBytes(StandardCharsets.US_ASCII);
+    }
+}
@@ -0,0 +1,207 @@
+package com.majeur.ars;
+
+import java.io.IOException;
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.ArrayDeque;
+import java.util.Deque;
+
+import com.android.ddmlib.RawImage;
+
+/**
+ * Reads framebuffers straight from the adb server socket into reusable direct buffers, skipping both
+ * the adb process and the per frame byte arrays. Streams screencap in a loop over {@code exec:} when
+ * the device supports it, otherwise opens a {@code framebuffer:} transaction per frame.
+ */
+class NioCaptureBackend implements CaptureBackend {
+
+    static final String NAME = "nio";
+
+    /** Frames kept for reuse, enough for one in each pipeline stage. */
+    private static final int MAX_FREE_FRAMES = 4;
+
+    private final AdbClient mClient;
+    private final String mSerialNumber;
+    private final boolean mStreaming;
+    private final ByteBuffer mHeader;
+    private final Deque<RawFrame> mFreeFrames = new ArrayDeque<>();
+
+    private final RawFrame.Recycler mRecycler = new RawFrame.Recycler() {
+        @Override
+        public void recycle(RawFrame frame) {
+            synchronized (mFreeFrames) {
+                if (mFreeFrames.size() < MAX_FREE_FRAMES) {
+                    mFreeFrames.push(frame);
+                }
+            }
+        }
+    };
+
+    /**
+     * Screencap stream, and connection being opened or per frame transaction. Closed by
+     * {@link #close()} from any thread to abort a capture.
+     */
+    private volatile AdbConnection mStream, mTransaction;
+    private volatile boolean mClosed;
+    private volatile long mCaptureInterval;
+    private long mLastReadTime;
+
+    NioCaptureBackend(AdbClient client, String serialNumber, int apiLevel) {
+        mClient = client;
+        mSerialNumber = serialNumber;
+        mStreaming = apiLevel >= ExecOutCaptureBackend.MIN_API_LEVEL;
+        mHeader = ByteBuffer.allocate(mStreaming ? ExecOutCaptureBackend.getHeaderSize(apiLevel) : 4)
+                .order(ByteOrder.LITTLE_ENDIAN);
+    }
+
+    @Override
+    public String getName() {
+        return NAME;
+    }
+
+    @Override
+    public synchronized RawFrame capture() throws IOException {
+        if (mClosed) {
+            throw new IOException("Capture backend closed");
+        }
+        RawFrame frame = obtainFrame();
+        try {
+            if (mStreaming) {
+                readStream(frame);
+            } else {
+                readFramebuffer(frame);
+            }
+            return frame;
+        } catch (IOException e) {
+            frame.release();
+            closeStream();
+            throw e;
+        }
+    }
+
+    @Override
+    public void setCaptureInterval(long intervalMillis) {
+        mCaptureInterval = intervalMillis;
+    }
+
+    private RawFrame obtainFrame() {
+        synchronized (mFreeFrames) {
+            RawFrame frame = mFreeFrames.poll();
+            if (frame != null) {
+                return frame;
+            }
+        }
+        return new RawFrame(new RawImage(), ByteBuffer.allocateDirect(0), mRecycler);
+    }
+
+    private void readStream(RawFrame frame) throws IOException {
+        if (mStream == null) {
+            mStream = open("exec:" + ExecOutCaptureBackend.SCREENCAP_LOOP);
+            mTransaction = null;
+            mLastReadTime = 0;
+            Logger.i("Streaming screen of %s through the adb socket", mSerialNumber);
+        }
+
+        long now = System.currentTimeMillis();
+        boolean stale = mLastReadTime != 0
+                && now - mLastReadTime > mCaptureInterval + ExecOutCaptureBackend.STALE_DELAY;
+        readScreencap(frame);
+        if (stale) {
+            readScreencap(frame);
+        }
+        frame.skipped = stale ? 1 : 0;
+        mLastReadTime = System.currentTimeMillis();
+    }
+
+    private void readScreencap(RawFrame frame) throws IOException {
+        mHeader.clear();
+        mStream.readFully(mHeader);
+        ExecOutCaptureBackend.readHeader(mHeader, frame.header);
+        readPixels(mStream, frame);
+    }
+
+    private void readFramebuffer(RawFrame frame) throws IOException {
+        frame.skipped = 0;
+        try (AdbConnection connection = open("framebuffer:")) {
+            mHeader.clear();
+            connection.readFully(mHeader);
+            int version = mHeader.getInt(0);
+            int headerSize = RawImage.getHeaderSize(version);
+            if (headerSize < 0) {
+                throw new IOException("Unsupported framebuffer protocol version " + version);
+            }
+
+            ByteBuffer header = ByteBuffer.allocate(headerSize * 4).order(ByteOrder.LITTLE_ENDIAN);
+            connection.readFully(header);
+            header.flip();
+            if (!frame.header.readHeader(version, header)) {
+                throw new IOException("Invalid framebuffer header");
+            }
+
+            // The device waits for this byte before sending pixels
+            connection.write(ByteBuffer.wrap(new byte[1]));
+            readPixels(connection, frame);
+        } finally {
+            mTransaction = null;
+        }
+    }
+
+    /**
+     * Opens a connection to {@code service}, visible to {@link #close()} while the request is pending.
+     */
+    private AdbConnection open(String service) throws IOException {
+        AdbConnection connection = mClient.connect();
+        mTransaction = connection;
+        try {
+            if (mClosed) {
+                throw new IOException("Capture backend closed");
+            }
+            mClient.request(connection, mSerialNumber, service);
+            return connection;
+        } catch (IOException e) {
+            connection.close();
+            throw e;
+        } finally {
+            if (mClosed) {
+                connection.close();
+            }
+        }
+    }
+
+    private static void readPixels(AdbConnection connection, RawFrame frame) throws IOException {
+        int size = frame.header.size;
+        if (frame.pixels.capacity() < size) {
+            frame.pixels = ByteBuffer.allocateDirect(size);
+        }
+        frame.pixels.clear().limit(size);
+        connection.readFully(frame.pixels);
+        frame.pixels.flip();
+    }
+
+    private void closeStream() {
+        AdbConnection stream = mStream;
+        if (stream != null) {
+            stream.close();
+            mStream = null;
+        }
+    }
+
+    /**
+     * Closes the connections without waiting for the capture lock, so that a capture blocked on them
+     * fails right away.
+     */
+    @Override
+    public void close() {
+        mClosed = true;
+        AdbConnection stream = mStream, transaction = mTransaction;
+        if (stream != null) {
+            stream.close();
+        }
+        if (transaction != null) {
+            transaction.close();
+        }
+        synchronized (mFreeFrames) {
+            mFreeFrames.clear();
+        }
+    }
+}
@@ -0,0 +1,276 @@
+package com.majeur.ars;
+
+import java.nio.ByteBuffer;
+import java.nio.ByteOrder;
+import java.util.concurrent.CountDownLatch;
+import java.util.concurrent.ExecutorService;
+import java.util.concurrent.Executors;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.atomic.AtomicBoolean;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicReference;
+
+import com.android.ddmlib.RawImage;
+
+/**
+ * Converts raw framebuffer pixels to packed ARGB ints. A specialized converter is picked from the
+ * {@link RawImage} header so the per pixel work is reduced to a single little endian read and a few
+ * shifts, written straight into the destination array. Rotation is applied on the fly by writing
+ * each source row along the matching destination column or reversed row.
+ */
+abstract class PixelConverter {
+
+    /** Below this amount of pixels, splitting the work across cores costs more than it saves. */
+    private static final int PARALLEL_THRESHOLD = 512 * 1024;
+    private static final int PARALLELISM = Runtime.getRuntime().availableProcessors();
+
+    /** Converts all bands but the first, which the calling thread takes. Not shared with other work. */
+    private static final ExecutorService sBandExecutor = Executors.newFixedThreadPool(Math.max(1, PARALLELISM - 1),
+            new ThreadFactory() {
+                private final AtomicInteger mCount = new AtomicInteger();
+
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ars-convert-band-" + mCount.incrementAndGet());
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static final PixelConverter RGBA_8888 = new PixelConverter(32, 0, 8, 8, 8, 16, 8, 24, 8) {
+        @Override
+        void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width) {
+            for (int i = 0; i < width; i++, s += 4, d += step) {
+                int v = src.getInt(s);
+                dst[d] = (v & 0xFF00FF00) | ((v & 0xFF) << 16) | ((v >>> 16) & 0xFF);
+            }
+        }
+    };
+
+    static final PixelConverter RGBX_8888 = new PixelConverter(32, 0, 8, 8, 8, 16, 8, 0, 0) {
+        @Override
+        void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width) {
+            for (int i = 0; i < width; i++, s += 4, d += step) {
+                int v = src.getInt(s);
+                dst[d] = 0xFF000000 | (v & 0x0000FF00) | ((v & 0xFF) << 16) | ((v >>> 16) & 0xFF);
+            }
+        }
+    };
+
+    static final PixelConverter BGRA_8888 = new PixelConverter(32, 16, 8, 8, 8, 0, 8, 24, 8) {
+        @Override
+        void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width) {
+            // Little endian BGRA is already laid out as an ARGB int
+            for (int i = 0; i < width; i++, s += 4, d += step) {
+                dst[d] = src.getInt(s);
+            }
+        }
+    };
+
+    static final PixelConverter BGRX_8888 = new PixelConverter(32, 16, 8, 8, 8, 0, 8, 0, 0) {
+        @Override
+        void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width) {
+            for (int i = 0; i < width; i++, s += 4, d += step) {
+                dst[d] = 0xFF000000 | src.getInt(s);
+            }
+        }
+    };
+
+    static final PixelConverter RGB_565 = new PixelConverter(16, 11, 5, 5, 6, 0, 5, 0, 0) {
+        @Override
+        void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width) {
+            for (int i = 0; i < width; i++, s += 2, d += step) {
+                int v = src.getShort(s);
+                dst[d] = RED_5[(v >>> 11) & 0x1F] | GREEN_6[(v >>> 5) & 0x3F] | BLUE_5[v & 0x1F];
+            }
+        }
+    };
+
+    /** Same 5 and 6 bits expansion as {@link RawImage#getARGB(int)}, already shifted in place. */
+    private static final int[] RED_5 = expand(5, 16, 0xFF000000), GREEN_6 = expand(6, 8, 0), BLUE_5 = expand(5, 0, 0);
+
+    private static final PixelConverter[] SPECIALIZED = { RGBA_8888, RGBX_8888, BGRA_8888, BGRX_8888, RGB_565 };
+
+    final int bpp;
+    final int redOffset, redLength;
+    final int greenOffset, greenLength;
+    final int blueOffset, blueLength;
+    final int alphaOffset, alphaLength;
+
+    private PixelConverter(int bpp, int redOffset, int redLength, int greenOffset, int greenLength, int blueOffset,
+            int blueLength, int alphaOffset, int alphaLength) {
+        this.bpp = bpp;
+        this.redOffset = redOffset;
+        this.redLength = redLength;
+        this.greenOffset = greenOffset;
+        this.greenLength = greenLength;
+        this.blueOffset = blueOffset;
+        this.blueLength = blueLength;
+        this.alphaOffset = alphaOffset;
+        this.alphaLength = alphaLength;
+    }
+
+    /**
+     * Returns a converter able to decode pixels described by the given header. Well known layouts get
+     * a dedicated loop, anything else falls back to a generic bit field decoder.
+     */
+    static PixelConverter forImage(RawImage header) {
+        if (header.bpp == 16) {
+            // ddmlib decodes every 16 bpp framebuffer as RGB 565, whatever the header says
+            return RGB_565;
+        }
+        for (PixelConverter converter : SPECIALIZED) {
+            if (converter.matches(header)) {
+                return converter;
+            }
+        }
+        if (header.bpp != 32) {
+            throw new UnsupportedOperationException("Unsupported framebuffer depth: " + header.bpp + " bpp");
+        }
+        return new Generic(header);
+    }
+
+    private static int[] expand(int bits, int shift, int or) {
+        int max = (1 << bits) - 1;
+        int[] table = new int[max + 1];
+        for (int i = 0; i <= max; i++) {
+            table[i] = or | (i * 255 / max) << shift;
+        }
+        return table;
+    }
+
+    boolean matches(RawImage header) {
+        return header.bpp == bpp
+                && header.red_offset == redOffset && header.red_length == redLength
+                && header.green_offset == greenOffset && header.green_length == greenLength
+                && header.blue_offset == blueOffset && header.blue_length == blueLength
+                // Alpha offset is meaningless when there is no alpha channel
+                && header.alpha_length == alphaLength && (alphaLength == 0 || header.alpha_offset == alphaOffset);
+    }
+
+    /**
+     * Converts the pixels of {@code header.data} into {@code dst}, a row major ARGB array holding the
+     * image once rotated.
+     */
+    boolean convert(RawImage header, int[] dst, Rotation rotation) {
+        return convert(header, ByteBuffer.wrap(header.data), dst, rotation);
+    }
+
+    boolean convert(RawImage header, ByteBuffer src, int[] dst, Rotation rotation) {
+        return convert(header, src, dst, rotation, true);
+    }
+
+    /**
+     * @param parallel whether large frames may be split in bands converted on several cores
+     * @return false if the thread was interrupted while waiting for other bands, {@code dst} is then
+     *         partially converted and the interrupt flag is set. No band writes to it once returned.
+     */
+    boolean convert(RawImage header, ByteBuffer src, final int[] dst, final Rotation rotation, boolean parallel) {
+        final ByteBuffer pixels = src.duplicate().order(ByteOrder.LITTLE_ENDIAN);
+        pixels.position(0);
+        final int width = header.width;
+        final int height = header.height;
+        if (dst.length < width * height) {
+            throw new IllegalArgumentException("Destination too small for " + width + "x" + height + " pixels");
+        }
+
+        if (!parallel || PARALLELISM < 2 || width * height < PARALLEL_THRESHOLD) {
+            convertRows(pixels, dst, width, height, rotation, 0, height);
+            return true;
+        }
+
+        int band = (height + PARALLELISM - 1) / PARALLELISM;
+        int bands = (height + band - 1) / band;
+        final CountDownLatch done = new CountDownLatch(bands - 1);
+        final AtomicBoolean aborted = new AtomicBoolean();
+        final AtomicReference<RuntimeException> failure = new AtomicReference<>();
+        for (int from = band; from < height; from += band) {
+            final int fromRow = from;
+            final int toRow = Math.min(height, from + band);
+            sBandExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    try {
+                        if (!aborted.get()) {
+                            convertRows(pixels, dst, width, height, rotation, fromRow, toRow);
+                        }
+                    } catch (RuntimeException e) {
+                        failure.compareAndSet(null, e);
+                    } finally {
+                        done.countDown();
+                    }
+                }
+            });
+        }
+        try {
+            convertRows(pixels, dst, width, height, rotation, 0, Math.min(height, band));
+        } catch (RuntimeException e) {
+            failure.compareAndSet(null, e);
+        }
+
+        boolean interrupted = false;
+        while (true) {
+            try {
+                done.await();
+                break;
+            } catch (InterruptedException e) {
+                // Bands not started are skipped, running ones are waited for as the frame may be reused
+                interrupted = true;
+                aborted.set(true);
+            }
+        }
+        if (interrupted) {
+            Thread.currentThread().interrupt();
+            return false;
+        }
+        if (failure.get() != null) {
+            throw new IllegalStateException(failure.get());
+        }
+        return true;
+    }
+
+    /**
+     * Converts source rows {@code [fromRow, toRow)}, sending each of them where the rotation wants it.
+     */
+    private void convertRows(ByteBuffer src, int[] dst, int width, int height, Rotation rotation, int fromRow,
+            int toRow) {
+        int srcStride = width * (bpp >> 3);
+        int step = rotation.pixelStep(width, height);
+        for (int y = fromRow; y < toRow; y++) {
+            convertRow(src, y * srcStride, dst, rotation.rowStart(y, width, height), step, width);
+        }
+    }
+
+    /**
+     * Converts {@code width} pixels starting at byte {@code s} of the source, writing them at index
+     * {@code d} of the destination then every {@code step} indices.
+     */
+    abstract void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width);
+
+    /** Mirrors {@link RawImage#getARGB(int)} for layouts without a dedicated loop. */
+    private static final class Generic extends PixelConverter {
+
+        Generic(RawImage header) {
+            super(header.bpp, header.red_offset, header.red_length, header.green_offset, header.green_length,
+                    header.blue_offset, header.blue_length, header.alpha_offset, header.alpha_length);
+        }
+
+        @Override
+        void convertRow(ByteBuffer src, int s, int[] dst, int d, int step, int width) {
+            final int redMask = mask(redLength), greenMask = mask(greenLength);
+            final int blueMask = mask(blueLength), alphaMask = mask(alphaLength);
+            for (int i = 0; i < width; i++, s += 4, d += step) {
+                int v = src.getInt(s);
+                int r = ((v >>> redOffset) & redMask) << (8 - redLength);
+                int g = ((v >>> greenOffset) & greenMask) << (8 - greenLength);
+                int b = ((v >>> blueOffset) & blueMask) << (8 - blueLength);
+                int a = alphaLength == 0 ? 0xFF : ((v >>> alphaOffset) & alphaMask) << (8 - alphaLength);
+                dst[d] = a << 24 | r << 16 | g << 8 | b;
+            }
+        }
+
+        private static int mask(int length) {
+            return (1 << length) - 1;
+        }
+    }
+}
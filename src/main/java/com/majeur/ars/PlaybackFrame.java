@@ -0,0 +1,195 @@
+package com.majeur.ars;
+
+import java.awt.BorderLayout;
+import java.awt.Color;
+import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.RenderingHints;
+import java.awt.event.ActionEvent;
+import java.awt.event.ActionListener;
+import java.awt.event.WindowAdapter;
+import java.awt.event.WindowEvent;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Collections;
+import java.util.List;
+
+import javax.swing.JButton;
+import javax.swing.JFileChooser;
+import javax.swing.JFrame;
+import javax.swing.JLabel;
+import javax.swing.JPanel;
+import javax.swing.JSlider;
+import javax.swing.Timer;
+import javax.swing.event.ChangeEvent;
+import javax.swing.event.ChangeListener;
+
+/**
+ * Plays back a session recording, with a slider to jump anywhere in it. The input sent while
+ * recording is shown under the frame as it is reached.
+ */
+public class PlaybackFrame extends JFrame {
+
+    private static final long serialVersionUID = 1L;
+
+    private static final int TICK = 33;
+
+    private final File mFile;
+    private final Config mConfig;
+    private final SessionPlayer mPlayer;
+    private final JSlider mSlider;
+    private final JLabel mInputLabel = new JLabel(" ");
+    private final Timer mTimer;
+    private final JPanel mImagePanel;
+    private long mPosition;
+    private boolean mUpdatingSlider;
+
+    public PlaybackFrame(File file, Config config) throws IOException {
+        mFile = file;
+        mConfig = config;
+        mPlayer = new SessionPlayer(file);
+
+        setTitle(file.getName());
+        setSize(480, 900);
+        setDefaultCloseOperation(DISPOSE_ON_CLOSE);
+
+        mImagePanel = new JPanel() {
+            private static final long serialVersionUID = 1L;
+
+            @Override
+            protected void paintComponent(Graphics g) {
+                super.paintComponent(g);
+                BufferedImage image = mPlayer.getImage();
+                if (image == null) {
+                    return;
+                }
+                double ratio = Math.min((double) getWidth() / image.getWidth(), (double) getHeight() / image.getHeight());
+                int width = (int) (image.getWidth() * ratio), height = (int) (image.getHeight() * ratio);
+                ((Graphics2D) g).setRenderingHint(RenderingHints.KEY_INTERPOLATION,
+                        RenderingHints.VALUE_INTERPOLATION_BILINEAR);
+                g.drawImage(image, (getWidth() - width) / 2, 0, width, height, null);
+            }
+        };
+        mImagePanel.setBackground(Color.BLACK);
+
+        mSlider = new JSlider(0, (int) mPlayer.getDuration(), 0);
+        mSlider.addChangeListener(new ChangeListener() {
+            @Override
+            public void stateChanged(ChangeEvent e) {
+                if (!mUpdatingSlider) {
+                    seek(mSlider.getValue());
+                }
+            }
+        });
+
+        final JButton playButton = new JButton("Play");
+        playButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                if (mTimer.isRunning()) {
+                    mTimer.stop();
+                    playButton.setText("Play");
+                } else {
+                    if (mPosition >= mPlayer.getDuration()) {
+                        seek(0);
+                    }
+                    mTimer.start();
+                    playButton.setText("Pause");
+                }
+            }
+        });
+
+        mTimer = new Timer(TICK, new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                seek(mPosition + TICK);
+                if (mPosition >= mPlayer.getDuration()) {
+                    mTimer.stop();
+                    playButton.setText("Play");
+                }
+            }
+        });
+
+        final JButton exportButton = new JButton("Export");
+        exportButton.addActionListener(new ActionListener() {
+            @Override
+            public void actionPerformed(ActionEvent e) {
+                JFileChooser fileChooser = new JFileChooser();
+                if (fileChooser.showSaveDialog(exportButton) == JFileChooser.APPROVE_OPTION) {
+                    export(fileChooser.getSelectedFile());
+                }
+            }
+        });
+
+        JPanel controls = new JPanel(new BorderLayout());
+        controls.add(playButton, BorderLayout.WEST);
+        controls.add(exportButton, BorderLayout.EAST);
+        controls.add(mSlider);
+        controls.add(mInputLabel, BorderLayout.SOUTH);
+
+        getContentPane().add(mImagePanel);
+        getContentPane().add(controls, BorderLayout.SOUTH);
+
+        addWindowListener(new WindowAdapter() {
+            @Override
+            public void windowClosed(WindowEvent e) {
+                mTimer.stop();
+                try {
+                    mPlayer.close();
+                } catch (IOException ex) {
+                    Logger.e("Unable to close recording: %s", ex.getMessage());
+                }
+            }
+        });
+
+        seek(0);
+        setVisible(true);
+    }
+
+    /**
+     * Exports the whole recording in the background, read by a player of its own.
+     */
+    private void export(final File file) {
+        Thread thread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                ClipExporter exporter = ClipExporter.create(file, mConfig);
+                try (SessionPlayer player = new SessionPlayer(mFile)) {
+                    exporter.export(player);
+                } catch (IOException e) {
+                    Logger.e("Unable to export %s: %s", mFile.getName(), e.getMessage());
+                } catch (InterruptedException e) {
+                    Thread.currentThread().interrupt();
+                } finally {
+                    exporter.finish();
+                }
+            }
+        }, "ars-export");
+        thread.setDaemon(true);
+        thread.start();
+    }
+
+    private void seek(long position) {
+        long previous = mPosition;
+        mPosition = Math.min(position, mPlayer.getDuration());
+        List<SessionPlayer.Input> inputs;
+        try {
+            mPlayer.seek(mPosition);
+            inputs = mPosition > previous ? mPlayer.getInputs(previous + 1, mPosition + 1)
+                    : Collections.<SessionPlayer.Input> emptyList();
+        } catch (IOException e) {
+            Logger.e("Unable to read recording: %s", e.getMessage());
+            mTimer.stop();
+            return;
+        }
+
+        if (!inputs.isEmpty()) {
+            mInputLabel.setText(inputs.get(inputs.size() - 1).command);
+        }
+        mUpdatingSlider = true;
+        mSlider.setValue((int) mPosition);
+        mUpdatingSlider = false;
+        mImagePanel.repaint();
+    }
+}
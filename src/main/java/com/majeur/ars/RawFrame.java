@@ -0,0 +1,42 @@
+package com.majeur.ars;
+
+import java.nio.ByteBuffer;
+
+import com.android.ddmlib.RawImage;
+
+/**
+ * Raw framebuffer as returned by a {@link CaptureBackend}: a {@link RawImage} describing the pixel
+ * layout and a buffer holding the pixels, which may be a reusable direct buffer rather than
+ * {@link RawImage#data}. Must be released once converted so that backends can reuse the buffer.
+ */
+final class RawFrame {
+
+    interface Recycler {
+        void recycle(RawFrame frame);
+    }
+
+    final RawImage header;
+    ByteBuffer pixels;
+    /** Frames the backend read and discarded as outdated before this one. */
+    int skipped;
+    private final Recycler mRecycler;
+
+    RawFrame(RawImage header, ByteBuffer pixels, Recycler recycler) {
+        this.header = header;
+        this.pixels = pixels;
+        mRecycler = recycler;
+    }
+
+    /**
+     * Wraps a framebuffer retrieved by ddmlib, nothing to recycle.
+     */
+    static RawFrame wrap(RawImage image) {
+        return new RawFrame(image, ByteBuffer.wrap(image.data, 0, image.size), null);
+    }
+
+    void release() {
+        if (mRecycler != null) {
+            mRecycler.recycle(this);
+        }
+    }
+}
@@ -0,0 +1,103 @@
+package com.majeur.ars;
+
+import java.awt.geom.Point2D;
+
+/**
+ * Clockwise rotation applied to a device framebuffer to get an upright frame. Besides sizes and
+ * coordinates mapping, each rotation tells where every source row lands in the destination array so
+ * that converters can rotate while decoding, as a plain index remap.
+ */
+enum Rotation {
+    ROTATE_0, ROTATE_90, ROTATE_180, ROTATE_270;
+
+    /**
+     * Returns the rotation that brings a framebuffer of the given size upright, given the display
+     * orientation reported by the device (0 to 3, as in Surface.ROTATION_*). Recent devices already
+     * capture in display orientation, which is detected from the framebuffer aspect. Upside down
+     * displays can't be told apart this way and are left as captured.
+     */
+    static Rotation forDisplay(int orientation, int width, int height) {
+        boolean displayLandscape = orientation == 1 || orientation == 3;
+        if (displayLandscape == width > height) {
+            return ROTATE_0;
+        }
+        // Display rotations are counter clockwise
+        return orientation == 1 ? ROTATE_270 : orientation == 3 ? ROTATE_90 : ROTATE_0;
+    }
+
+    boolean isQuarterTurn() {
+        return this == ROTATE_90 || this == ROTATE_270;
+    }
+
+    int rotatedWidth(int width, int height) {
+        return isQuarterTurn() ? height : width;
+    }
+
+    int rotatedHeight(int width, int height) {
+        return isQuarterTurn() ? width : height;
+    }
+
+    /**
+     * Index in the rotated array of the first pixel of source row {@code y}.
+     */
+    int rowStart(int y, int width, int height) {
+        switch (this) {
+        case ROTATE_90:
+            return height - 1 - y;
+        case ROTATE_180:
+            return (height - 1 - y) * width + width - 1;
+        case ROTATE_270:
+            return (width - 1) * height + y;
+        default:
+            return y * width;
+        }
+    }
+
+    /**
+     * Distance in the rotated array between two consecutive pixels of a source row.
+     */
+    int pixelStep(int width, int height) {
+        switch (this) {
+        case ROTATE_90:
+            return height;
+        case ROTATE_180:
+            return -1;
+        case ROTATE_270:
+            return -height;
+        default:
+            return 1;
+        }
+    }
+
+    /**
+     * Maps a point of the source image, of the given size, to the rotated image.
+     */
+    Point2D.Double fromSource(double x, double y, int width, int height) {
+        switch (this) {
+        case ROTATE_90:
+            return new Point2D.Double(height - y, x);
+        case ROTATE_180:
+            return new Point2D.Double(width - x, height - y);
+        case ROTATE_270:
+            return new Point2D.Double(y, width - x);
+        default:
+            return new Point2D.Double(x, y);
+        }
+    }
+
+    /**
+     * Maps a point of the rotated image back to the source image, of the given size.
+     */
+    Point2D.Double toSource(double x, double y, int width, int height) {
+        switch (this) {
+        case ROTATE_90:
+            return new Point2D.Double(y, height - x);
+        case ROTATE_180:
+            return new Point2D.Double(width - x, height - y);
+        case ROTATE_270:
+            return new Point2D.Double(width - y, x);
+        default:
+            return new Point2D.Double(x, y);
+        }
+    }
+}
@@ -1,43 +1,55 @@
 package com.majeur.ars;
 
+import java.awt.Color;
 import java.awt.Dimension;
 import java.awt.Graphics;
+import java.awt.Graphics2D;
+import java.awt.Rectangle;
 import java.awt.event.ComponentAdapter;
 import java.awt.event.ComponentEvent;
 import java.awt.event.KeyEvent;
 import java.awt.event.KeyListener;
 import java.awt.event.MouseEvent;
 import java.awt.event.MouseListener;
-import java.awt.geom.AffineTransform;
-import java.awt.image.AffineTransformOp;
-import java.awt.image.BufferedImage;
-import java.lang.reflect.InvocationTargetException;
+import java.awt.event.MouseMotionListener;
+import java.awt.geom.Point2D;
+import java.util.Collections;
+import java.util.List;
+import java.util.concurrent.CopyOnWriteArrayList;
 
 import javax.swing.JPanel;
 import javax.swing.SwingUtilities;
 
-public class ScreenPanel extends JPanel implements MouseListener, KeyListener {
+public class ScreenPanel extends JPanel
+        implements MouseListener, MouseMotionListener, KeyListener, CapturePipeline.Listener {
 
     private static final long serialVersionUID = 1L;
 
     private AdbHelper mAdbHelper;
-    private final long updateDelay;
-    private BufferedImage mImage;
+    private final Config mConfig;
+    private final FrameMailbox mMailbox = new FrameMailbox();
+    private Frame mFrame;
+    private long mPaintedFrameCount;
+    private final FrameRenderer mRenderer;
     private int mScreenWidth = 0, mScreenHeight = 0;
-    private double mRatio;
+    private volatile double mRatio;
     private boolean mFirstDraw = true, mUpdateFrame = false;
     private double mScale;
-    private int mDownX, mDownY;
-    private long mSwipeStartTime;
-    private boolean mLandscape = false;
+    private Rotation mRotation = Rotation.ROTATE_0;
+    private boolean mAutoRotate;
     private boolean mPaused;
-    protected Thread mUpdateThread;
+    private CapturePipeline mPipeline;
+    private CaptureSession.State mCaptureState;
+    private final List<FrameObserver> mFrameObservers = new CopyOnWriteArrayList<>();
 
-    public ScreenPanel(AdbHelper helper, long updateDelay, int initialScale) {
+    public ScreenPanel(AdbHelper helper, Config config) {
         mAdbHelper = helper;
-        this.updateDelay = updateDelay;
-        mScale = initialScale / 100.0;
+        mConfig = config;
+        mScale = config.getScale() / 100.0;
+        mRenderer = new FrameRenderer(FrameRenderer.Quality.fromString(config.getRenderQuality(),
+                FrameRenderer.Quality.BILINEAR));
         addMouseListener(this);
+        addMouseMotionListener(this);
         addKeyListener(this);
 
         addComponentListener(new ComponentAdapter() {
@@ -60,22 +72,40 @@ public class ScreenPanel extends JPanel implements MouseListener, KeyListener {
         }
 
         Logger.i("Start rendering device screen");
-        if (mUpdateThread != null && !mUpdateThread.isInterrupted()) {
+        if (mPipeline != null) {
             stopUpdate();
         }
 
-        mUpdateThread = new UpdateThread(updateDelay);
-        mUpdateThread.start();
+        mCaptureState = CaptureSession.State.CONNECTING;
+        mPipeline = new CapturePipeline(mAdbHelper, mConfig, this);
+        mPipeline.setRotation(mRotation, mAutoRotate);
+        mPipeline.start();
     }
 
     public void stopUpdate() {
-        if (mUpdateThread == null) {
+        if (mPipeline == null) {
             return;
         }
 
         Logger.i("Stop rendering device screen");
-        mUpdateThread.interrupt();
-        mUpdateThread = null;
+        mPipeline.stop();
+        mPipeline = null;
+    }
+
+    void addFrameObserver(FrameObserver observer) {
+        mFrameObservers.add(observer);
+    }
+
+    void removeFrameObserver(FrameObserver observer) {
+        mFrameObservers.remove(observer);
+    }
+
+    /**
+     * Returns the frame being displayed, retained for the caller, or null if none was received yet.
+     * Must be called from the event thread.
+     */
+    Frame retainDisplayedFrame() {
+        return mFrame != null ? mFrame.retain() : null;
     }
 
     public void setPaused(boolean paused) {
@@ -96,64 +126,128 @@ public class ScreenPanel extends JPanel implements MouseListener, KeyListener {
     }
 
     public void setLandscape(boolean b) {
-        mLandscape = b;
-        mUpdateFrame = true;
+        mRotation = b ? Rotation.ROTATE_90 : Rotation.ROTATE_0;
+        updateRotation();
+    }
+
+    public void setAutoRotate(boolean b) {
+        mAutoRotate = b;
+        updateRotation();
+    }
+
+    private void updateRotation() {
+        if (mPipeline != null) {
+            mPipeline.setRotation(mRotation, mAutoRotate);
+        }
+    }
+
+    /**
+     * Number of captured frames that have been painted.
+     */
+    public long getPaintedFrameCount() {
+        return mPaintedFrameCount;
+    }
+
+    /**
+     * Number of captured frames replaced by a newer one before they could be painted.
+     */
+    public long getDroppedFrameCount() {
+        return mMailbox.getDroppedCount();
+    }
+
+    /**
+     * Average time spent painting a frame, in milliseconds.
+     */
+    public double getPaintTimeMillis() {
+        return mRenderer.getPaintTimeMillis();
+    }
+
+    FrameRenderer.Quality getRenderQuality() {
+        return mRenderer.getQuality();
+    }
+
+    void setRenderQuality(FrameRenderer.Quality quality) {
+        mRenderer.setQuality(quality);
+        repaint();
     }
 
     @Override
     protected void paintComponent(Graphics g) {
         super.paintComponent(g);
 
-        if (mImage != null) {
-            mScreenWidth = mLandscape ? mImage.getHeight() : mImage.getWidth();
-            mScreenHeight = mLandscape ? mImage.getWidth() : mImage.getHeight();
-
-            if (mFirstDraw) {
-                setScale(mScale);
-                mFirstDraw = false;
+        List<Rectangle> damage = Collections.emptyList();
+        Frame latest = mMailbox.take();
+        if (latest != null) {
+            if (mFrame != null) {
+                mFrame.release();
+            }
+            mFrame = latest;
+            damage = latest.pendingDamage;
+            if (mPaintedFrameCount++ == 0) {
+                StartupMetrics.reached(StartupMetrics.FIRST_FRAME);
             }
+        }
 
-            if (mUpdateFrame) {
-                setScale(mScale);
-                mUpdateFrame = false;
+        if (mFrame != null) {
+            paintFrame((Graphics2D) g, mFrame, damage);
+            if (mPipeline != null && mCaptureState != CaptureSession.State.STREAMING) {
+                // The last frame stays on screen, make it clear that it is not live
+                g.setColor(Color.RED);
+                g.drawString(mCaptureState.name().toLowerCase() + "...", 6, 16);
             }
+        }
+    }
+
+    private void paintFrame(Graphics2D g, Frame frame, List<Rectangle> damage) {
+        if (frame.width != mScreenWidth || frame.height != mScreenHeight) {
+            // Device resolution or rotation changed, panel needs to be resized
+            mScreenWidth = frame.width;
+            mScreenHeight = frame.height;
+            mUpdateFrame = true;
+        }
 
-            int width = getWidth();
-            int height = getHeight();
+        if (mFirstDraw) {
+            setScale(mScale);
+            mFirstDraw = false;
+        }
 
-            double ratioX = (double) width / (double) mScreenWidth;
-            double ratioY = (double) height / (double) mScreenHeight;
+        if (mUpdateFrame) {
+            setScale(mScale);
+            mUpdateFrame = false;
+        }
 
-            mRatio = Math.min(1, Math.min(ratioX, ratioY));
+        int width = getWidth();
+        int height = getHeight();
 
-            double scaledWidth = mScreenWidth * mRatio;
-            double scaledHeight = mScreenHeight * mRatio;
+        double ratioX = (double) width / (double) mScreenWidth;
+        double ratioY = (double) height / (double) mScreenHeight;
 
-            if (mLandscape) {
-                AffineTransform transform = new AffineTransform();
-                transform.rotate(Math.PI / 2, mImage.getWidth() / 2, mImage.getHeight() / 2);
-                AffineTransformOp op = new AffineTransformOp(transform, AffineTransformOp.TYPE_BILINEAR);
-                mImage = op.filter(mImage, null);
-            }
+        mRatio = Math.min(1, Math.min(ratioX, ratioY));
 
-            g.drawImage(mImage, 0, 0, (int) scaledWidth, (int) scaledHeight, null);
+        double scaledWidth = mScreenWidth * mRatio;
+        double scaledHeight = mScreenHeight * mRatio;
 
-        }
+        mRenderer.paint(g, this, frame, damage, (int) scaledWidth, (int) scaledHeight);
     }
 
     @Override
     public void keyTyped(KeyEvent e) {
         char c = e.getKeyChar();
 
-        if (c >= 'a' && c <= 'z') {
-            mAdbHelper.performInputKey(29 + c - 'a');
-        } else if (c >= 'A' && c <= 'Z') {
-            mAdbHelper.performInputKey(29 + c - 'A');
+        // Sent as text so that consecutive characters are typed by a single command, control
+        // characters are handled as key presses
+        if (c >= 0x20 && c != KeyEvent.CHAR_UNDEFINED && c != 0x7F && !e.isControlDown()) {
+            Utils.showSkippedCharacters(this, mAdbHelper.performInputText(String.valueOf(c)));
         }
     }
 
     @Override
     public void keyPressed(KeyEvent e) {
+        if (e.getKeyCode() == KeyEvent.VK_V && (e.isControlDown() || e.isMetaDown())) {
+            pasteClipboard();
+            return;
+        }
+
         switch (e.getKeyCode()) {
         case KeyEvent.VK_ENTER:
             mAdbHelper.performInputKey(AndroidKey.ENTER);
@@ -189,33 +283,83 @@ public class ScreenPanel extends JPanel implements MouseListener, KeyListener {
         }
     }
 
+    /**
+     * Types the text held by the system clipboard on the device.
+     */
+    void pasteClipboard() {
+        String text = Utils.getClipboardText();
+        if (text != null) {
+            Utils.showSkippedCharacters(this, mAdbHelper.performInputText(text));
+        }
+    }
+
     @Override
     public void keyReleased(KeyEvent e) {
     }
 
     @Override
     public void mouseClicked(MouseEvent e) {
-        mAdbHelper.performClick(e.getX() / mRatio, e.getY() / mRatio);
+        // Taps are sent as press and release
     }
 
     @Override
     public void mousePressed(MouseEvent e) {
-        mDownX = e.getX();
-        mDownY = e.getY();
-        mSwipeStartTime = System.currentTimeMillis();
+        sendTouch(TouchInjector.Action.DOWN, e);
+    }
+
+    @Override
+    public void mouseDragged(MouseEvent e) {
+        sendTouch(TouchInjector.Action.MOVE, e);
     }
 
     @Override
     public void mouseReleased(MouseEvent e) {
-        int upX = e.getX(), upY = e.getY();
+        sendTouch(TouchInjector.Action.UP, e);
+    }
+
+    @Override
+    public void mouseMoved(MouseEvent e) {
+    }
 
-        int dx = Math.abs(mDownX - upX);
-        int dy = Math.abs(mDownY - upY);
+    private void sendTouch(TouchInjector.Action action, MouseEvent e) {
+        Frame frame = mFrame;
+        Point2D.Double point = toDevice(e.getX(), e.getY());
+        if (point == null) {
+            return;
+        }
+        // Keep drags that leave the panel on the screen
+        int width = getDisplayWidth(frame), height = getDisplayHeight(frame);
+        double x = Math.max(0, Math.min(width - 1, point.x));
+        double y = Math.max(0, Math.min(height - 1, point.y));
+        mAdbHelper.performTouch(action, x, y, width, height);
+    }
 
-        if (dx > 5 && dy > 5) {
-            long duration = System.currentTimeMillis() - mSwipeStartTime;
-            mAdbHelper.performSwipe(mDownX / mRatio, mDownY / mRatio, upX / mRatio, upY / mRatio, duration);
+    /**
+     * Maps a point of the panel to device input coordinates, undoing the rotation the painted frame
+     * was converted with and applying the one of the device display.
+     */
+    private Point2D.Double toDevice(int x, int y) {
+        Frame frame = mFrame;
+        if (frame == null || mRatio == 0) {
+            return null;
         }
+        Rotation rotation = frame.rotation;
+        int sourceWidth = rotation.rotatedWidth(frame.width, frame.height);
+        int sourceHeight = rotation.rotatedHeight(frame.width, frame.height);
+        Point2D.Double source = rotation.toSource(x / mRatio, y / mRatio, sourceWidth, sourceHeight);
+        return frame.displayRotation.fromSource(source.x, source.y, sourceWidth, sourceHeight);
+    }
+
+    private static int getDisplayWidth(Frame frame) {
+        int sourceWidth = frame.rotation.rotatedWidth(frame.width, frame.height);
+        int sourceHeight = frame.rotation.rotatedHeight(frame.width, frame.height);
+        return frame.displayRotation.rotatedWidth(sourceWidth, sourceHeight);
+    }
+
+    private static int getDisplayHeight(Frame frame) {
+        int sourceWidth = frame.rotation.rotatedWidth(frame.width, frame.height);
+        int sourceHeight = frame.rotation.rotatedHeight(frame.width, frame.height);
+        return frame.displayRotation.rotatedHeight(sourceWidth, sourceHeight);
     }
 
     @Override
@@ -230,55 +374,48 @@ public class ScreenPanel extends JPanel implements MouseListener, KeyListener {
 
     }
 
-    private class UpdateThread extends Thread {
-
-        private final long updateDelay;
-
-        public UpdateThread(long updateDelay) {
-            this.updateDelay = updateDelay;
+    @Override
+    public void onFrame(Frame frame) {
+        List<Rectangle> dirtyRegions = frame.dirtyRegions;
+        for (FrameObserver observer : mFrameObservers) {
+            observer.onFrame(frame, dirtyRegions);
         }
 
-        @Override
-        public void run() {
-            super.run();
-
-            while (!Thread.interrupted()) {
-                // give the device some time for other stuff
-                Utils.sleep(updateDelay);
-
-                mImage = mAdbHelper.retrieveScreenShot();
-
-                if (mImage == null) {
-                    abort();
-                }
+        mMailbox.post(frame);
 
-                repaintPanel();
-            }
+        // Repaints are coalesced, the panel will pick the latest frame when painting
+        double ratio = mRatio;
+        if (ratio == 0) {
+            repaint();
+            return;
         }
-
-        private void abort() {
-            interrupt();
-            SwingUtilities.invokeLater(new Runnable() {
-                @Override
-                public void run() {
-                    stopUpdate();
-                }
-            });
+        for (Rectangle region : dirtyRegions) {
+            // Round outwards so that no scaled pixel is left behind
+            int x = (int) Math.floor(region.x * ratio), y = (int) Math.floor(region.y * ratio);
+            int right = (int) Math.ceil((region.x + region.width) * ratio);
+            int bottom = (int) Math.ceil((region.y + region.height) * ratio);
+            repaint(x, y, right - x + 1, bottom - y + 1);
         }
+    }
 
-        private void repaintPanel() {
-            try {
-                SwingUtilities.invokeAndWait(new Runnable() {
-                    @Override
-                    public void run() {
-                        repaint();
-                    }
-                });
-            } catch (InvocationTargetException | InterruptedException e) {
-                abort();
-                e.printStackTrace();
+    @Override
+    public void onCaptureStateChanged(final CapturePipeline pipeline, final CaptureSession.State state) {
+        SwingUtilities.invokeLater(new Runnable() {
+            @Override
+            public void run() {
+                if (pipeline == mPipeline) {
+                    mCaptureState = state;
+                    repaint();
+                }
             }
-        }
+        });
+    }
+
+    /**
+     * State of the capture session, null when not capturing.
+     */
+    CaptureSession.State getCaptureState() {
+        return mPipeline != null ? mCaptureState : null;
     }
 
 }
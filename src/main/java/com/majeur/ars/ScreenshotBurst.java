@@ -0,0 +1,61 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.io.File;
+import java.util.List;
+import java.util.Locale;
+
+/**
+ * Saves every Nth frame leaving the capture pipeline to a directory, for bursts and time-lapses.
+ * Frames are only retained and handed to a {@link ScreenshotSaver} owned by the burst, those it has
+ * no room for are skipped so that the live view keeps its frame rate.
+ */
+class ScreenshotBurst implements FrameObserver {
+
+    private final ScreenshotSaver mSaver;
+    private final File mDirectory;
+    private final int mInterval;
+    private final String mPrefix;
+    private long mFrameCount;
+    private int mFileIndex;
+
+    /**
+     * @param interval save one frame out of {@code interval}
+     */
+    ScreenshotBurst(ScreenshotSaver saver, File directory, int interval) {
+        mSaver = saver;
+        mDirectory = directory;
+        mInterval = Math.max(1, interval);
+        mPrefix = String.format(Locale.US, "ars-%tY%<tm%<td-%<tH%<tM%<tS-", System.currentTimeMillis());
+    }
+
+    @Override
+    public void onFrame(Frame frame, List<Rectangle> dirtyRegions) {
+        if (mFrameCount++ % mInterval != 0) {
+            return;
+        }
+        File file = new File(mDirectory,
+                String.format(Locale.US, "%s%05d.%s", mPrefix, mFileIndex, mSaver.getFormat()));
+        if (mSaver.save(frame.retain(), file, null)) {
+            mFileIndex++;
+        }
+    }
+
+    /**
+     * Number of frames handed to the saver, some of which may still be encoding.
+     */
+    int getQueuedCount() {
+        return mFileIndex;
+    }
+
+    long getSkippedCount() {
+        return mSaver.getSkippedCount();
+    }
+
+    /**
+     * Stops the saver once queued frames are written. Frames must no longer be observed.
+     */
+    void stop() {
+        mSaver.shutdown();
+    }
+}
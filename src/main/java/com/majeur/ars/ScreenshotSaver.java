@@ -0,0 +1,178 @@
+package com.majeur.ars;
+
+import java.awt.Graphics2D;
+import java.awt.image.BufferedImage;
+import java.io.File;
+import java.io.IOException;
+import java.util.Iterator;
+import java.util.Locale;
+import java.util.concurrent.ArrayBlockingQueue;
+import java.util.concurrent.RejectedExecutionException;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.ThreadPoolExecutor;
+import java.util.concurrent.TimeUnit;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.concurrent.atomic.AtomicLong;
+
+import javax.imageio.IIOImage;
+import javax.imageio.ImageIO;
+import javax.imageio.ImageWriteParam;
+import javax.imageio.ImageWriter;
+import javax.imageio.stream.ImageOutputStream;
+
+/**
+ * Encodes frames to image files on a pool of low priority threads, so that neither the event thread
+ * nor the capture wait on encoding. Frames are handed over already converted and queued up to a limit,
+ * beyond which they are skipped rather than piling up in memory.
+ */
+class ScreenshotSaver {
+
+    interface Callback {
+        /**
+         * Called from an encoder thread once the file is written, or failed to be.
+         */
+        void onSaved(File file, boolean success);
+    }
+
+    static final String FORMAT_PNG = "png";
+    static final String FORMAT_JPEG = "jpg";
+    static final String FORMAT_BMP = "bmp";
+
+    /** Frames queued per encoder thread. */
+    private static final int QUEUE_PER_THREAD = 2;
+
+    private final ThreadPoolExecutor mExecutor;
+    private final String mFormat;
+    private final float mQuality;
+    private final AtomicLong mSavedCount = new AtomicLong();
+    private final AtomicLong mSkippedCount = new AtomicLong();
+
+    /**
+     * @param format one of the FORMAT constants, or any format ImageIO can write
+     * @param quality compression quality from 0 to 100, for formats that support it
+     */
+    ScreenshotSaver(int threads, String format, int quality) {
+        mFormat = format.toLowerCase(Locale.US);
+        mQuality = Math.max(0, Math.min(100, quality)) / 100f;
+        final AtomicInteger count = new AtomicInteger();
+        mExecutor = new ThreadPoolExecutor(threads, threads, 0, TimeUnit.MILLISECONDS,
+                new ArrayBlockingQueue<Runnable>(threads * QUEUE_PER_THREAD), new ThreadFactory() {
+                    @Override
+                    public Thread newThread(Runnable runnable) {
+                        Thread thread = new Thread(runnable, "ars-screenshot-" + count.incrementAndGet());
+                        thread.setDaemon(true);
+                        // The live view comes first
+                        thread.setPriority(Thread.MIN_PRIORITY);
+                        return thread;
+                    }
+                });
+    }
+
+    String getFormat() {
+        return mFormat;
+    }
+
+    long getSavedCount() {
+        return mSavedCount.get();
+    }
+
+    long getSkippedCount() {
+        return mSkippedCount.get();
+    }
+
+    /**
+     * Queues a frame to be written to a file, without blocking. The saver takes ownership of the frame.
+     *
+     * @param callback notified once done, may be null
+     * @return false if the queue is full, the frame is then released and skipped
+     */
+    boolean save(final Frame frame, final File file, final Callback callback) {
+        try {
+            mExecutor.execute(new Runnable() {
+                @Override
+                public void run() {
+                    boolean success = false;
+                    try {
+                        success = write(frame.image, file);
+                    } catch (IOException e) {
+                        Logger.e("Unable to save %s: %s", file.getName(), e.getMessage());
+                    } finally {
+                        frame.release();
+                    }
+                    if (success) {
+                        mSavedCount.incrementAndGet();
+                    }
+                    if (callback != null) {
+                        callback.onSaved(file, success);
+                    }
+                }
+            });
+            return true;
+        } catch (RejectedExecutionException e) {
+            frame.release();
+            mSkippedCount.incrementAndGet();
+            return false;
+        }
+    }
+
+    /**
+     * Appends the format extension to a file name lacking it.
+     */
+    File withExtension(File file) {
+        String name = file.getName().toLowerCase(Locale.US);
+        if (name.endsWith("." + mFormat) || mFormat.equals(FORMAT_JPEG) && name.endsWith(".jpeg")) {
+            return file;
+        }
+        return new File(file.getPath() + "." + mFormat);
+    }
+
+    private boolean write(BufferedImage image, File file) throws IOException {
+        Iterator<ImageWriter> writers = ImageIO.getImageWritersByFormatName(mFormat);
+        if (!writers.hasNext()) {
+            throw new IOException("No writer for " + mFormat);
+        }
+        ImageWriter writer = writers.next();
+        if (!mFormat.equals(FORMAT_PNG)) {
+            // Frames are ARGB, which JPEG and BMP writers reject
+            image = toRgb(image);
+        }
+
+        ImageWriteParam param = writer.getDefaultWriteParam();
+        if (param.canWriteCompressed()) {
+            param.setCompressionMode(ImageWriteParam.MODE_EXPLICIT);
+            if (param.getCompressionType() == null) {
+                param.setCompressionType(param.getCompressionTypes()[0]);
+            }
+            param.setCompressionQuality(mQuality);
+        }
+
+        file.delete();
+        ImageOutputStream output = ImageIO.createImageOutputStream(file);
+        if (output == null) {
+            throw new IOException("Unable to create " + file.getName());
+        }
+        try {
+            writer.setOutput(output);
+            writer.write(null, new IIOImage(image, null, null), param);
+            return true;
+        } finally {
+            writer.dispose();
+            output.close();
+        }
+    }
+
+    static BufferedImage toRgb(BufferedImage image) {
+        BufferedImage rgb = new BufferedImage(image.getWidth(), image.getHeight(), BufferedImage.TYPE_INT_RGB);
+        Graphics2D graphics = rgb.createGraphics();
+        graphics.drawImage(image, 0, 0, null);
+        graphics.dispose();
+        return rgb;
+    }
+
+    /**
+     * Stops the encoder threads once queued frames are written.
+     */
+    void shutdown() {
+        mExecutor.shutdown();
+    }
+}
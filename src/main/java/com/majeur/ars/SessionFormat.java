@@ -0,0 +1,166 @@
+package com.majeur.ars;
+
+import java.io.DataInput;
+import java.io.DataOutput;
+import java.io.IOException;
+
+/**
+ * Layout of session recordings, written by {@link SessionRecorder} and read by {@link SessionPlayer}.
+ * <p>
+ * A recording starts with {@link #MAGIC} and the format version, followed by records made of a type
+ * byte, a timestamp in milliseconds since the start of the recording, the payload length and the
+ * payload. Keyframes hold the whole frame, deltas only the tiles that changed since the previous
+ * frame, XORed with it so that unchanged pixels become runs of zeros. Frame payloads are run length
+ * encoded then deflated. Input records hold the command sent to the device.
+ * <p>
+ * Closing the recording appends the seek index: the number of keyframes, their timestamps and
+ * offsets, and the timestamp of the last record. The file ends with the index offset and
+ * {@link #INDEX_MAGIC}. A recording cut short has no index, it is rebuilt by scanning the records.
+ */
+final class SessionFormat {
+
+    static final byte[] MAGIC = { 'A', 'R', 'S', 'R', 'E', 'C', '0', '1' };
+    static final byte[] INDEX_MAGIC = { 'A', 'R', 'S', 'I', 'D', 'X', '0', '1' };
+    static final int VERSION = 1;
+
+    static final byte KEYFRAME = 'K';
+    static final byte DELTA = 'D';
+    static final byte INPUT = 'I';
+
+    static final int TILE_SIZE = DirtyRegionTracker.TILE_SIZE;
+    static final int HEADER_SIZE = MAGIC.length + 4;
+    /** Type, timestamp and payload length. */
+    static final int RECORD_HEADER_SIZE = 1 + 8 + 4;
+    /** Index offset and magic. */
+    static final int TRAILER_SIZE = 8 + INDEX_MAGIC.length;
+
+    private SessionFormat() {
+    }
+
+    /**
+     * Writes {@code count} values as runs: a varint {@code n << 1} followed by a value repeated n times,
+     * or {@code n << 1 | 1} followed by n literal values.
+     */
+    static void writeRuns(DataOutput out, int[] values, int count) throws IOException {
+        int literalStart = 0;
+        int i = 0;
+        while (i < count) {
+            int value = values[i];
+            int end = i + 1;
+            while (end < count && values[end] == value) {
+                end++;
+            }
+            // Short repeats are cheaper as literals
+            if (end - i >= 3) {
+                writeLiterals(out, values, literalStart, i);
+                writeVarInt(out, (end - i) << 1);
+                out.writeInt(value);
+                literalStart = end;
+            }
+            i = end;
+        }
+        writeLiterals(out, values, literalStart, count);
+    }
+
+    private static void writeLiterals(DataOutput out, int[] values, int from, int to) throws IOException {
+        if (from >= to) {
+            return;
+        }
+        writeVarInt(out, (to - from) << 1 | 1);
+        for (int i = from; i < to; i++) {
+            out.writeInt(values[i]);
+        }
+    }
+
+    /**
+     * Reads {@code count} values written by {@link #writeRuns(DataOutput, int[], int)}.
+     */
+    static void readRuns(DataInput in, int[] values, int count) throws IOException {
+        int i = 0;
+        while (i < count) {
+            int header = readVarInt(in);
+            int length = header >>> 1;
+            if (length > count - i) {
+                throw new IOException("Corrupted run of " + length + " values");
+            }
+            if ((header & 1) == 0) {
+                int value = in.readInt();
+                for (int end = i + length; i < end; i++) {
+                    values[i] = value;
+                }
+            } else {
+                for (int end = i + length; i < end; i++) {
+                    values[i] = in.readInt();
+                }
+            }
+        }
+    }
+
+    static void writeVarInt(DataOutput out, int value) throws IOException {
+        while ((value & ~0x7F) != 0) {
+            out.writeByte((value & 0x7F) | 0x80);
+            value >>>= 7;
+        }
+        out.writeByte(value);
+    }
+
+    static int readVarInt(DataInput in) throws IOException {
+        int value = 0;
+        for (int shift = 0; shift < 32; shift += 7) {
+            int b = in.readUnsignedByte();
+            value |= (b & 0x7F) << shift;
+            if ((b & 0x80) == 0) {
+                return value;
+            }
+        }
+        throw new IOException("Corrupted varint");
+    }
+
+    static int getColumns(int width) {
+        return (width + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    static int getRows(int height) {
+        return (height + TILE_SIZE - 1) / TILE_SIZE;
+    }
+
+    static int getTileSize(int width, int height, int tile) {
+        int columns = getColumns(width);
+        int left = tile % columns * TILE_SIZE, top = tile / columns * TILE_SIZE;
+        return (Math.min(left + TILE_SIZE, width) - left) * (Math.min(top + TILE_SIZE, height) - top);
+    }
+
+    /**
+     * Copies the pixels of a tile to {@code dst} at {@code offset}, XORed with {@code previous} when
+     * not null, and returns the number of pixels copied.
+     */
+    static int copyTile(int[] pixels, int[] previous, int width, int height, int tile, int[] dst, int offset) {
+        int columns = getColumns(width);
+        int left = tile % columns * TILE_SIZE, top = tile / columns * TILE_SIZE;
+        int right = Math.min(left + TILE_SIZE, width), bottom = Math.min(top + TILE_SIZE, height);
+        int d = offset;
+        for (int y = top; y < bottom; y++) {
+            for (int i = y * width + left, end = y * width + right; i < end; i++) {
+                dst[d++] = previous != null ? pixels[i] ^ previous[i] : pixels[i];
+            }
+        }
+        return d - offset;
+    }
+
+    /**
+     * XORs the pixels of a tile read from {@code src} at {@code offset} into {@code pixels}, and
+     * returns the number of pixels read.
+     */
+    static int applyTile(int[] src, int offset, int[] pixels, int width, int height, int tile) {
+        int columns = getColumns(width);
+        int left = tile % columns * TILE_SIZE, top = tile / columns * TILE_SIZE;
+        int right = Math.min(left + TILE_SIZE, width), bottom = Math.min(top + TILE_SIZE, height);
+        int s = offset;
+        for (int y = top; y < bottom; y++) {
+            for (int i = y * width + left, end = y * width + right; i < end; i++) {
+                pixels[i] ^= src[s++];
+            }
+        }
+        return s - offset;
+    }
+}
@@ -0,0 +1,354 @@
+package com.majeur.ars;
+
+import java.awt.image.BufferedImage;
+import java.awt.image.DataBufferInt;
+import java.io.ByteArrayInputStream;
+import java.io.Closeable;
+import java.io.DataInputStream;
+import java.io.EOFException;
+import java.io.File;
+import java.io.IOException;
+import java.io.RandomAccessFile;
+import java.nio.ByteBuffer;
+import java.nio.channels.FileChannel;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.Arrays;
+import java.util.List;
+import java.util.zip.Inflater;
+import java.util.zip.InflaterInputStream;
+
+/**
+ * Plays back a {@link SessionFormat} recording. Records are read with positional reads at long
+ * offsets, so recordings may exceed 2 GB. Seeking decodes the keyframe preceding the requested time,
+ * found through the seek index, and the deltas up to it. Frames are decoded into a single image,
+ * reused while the frame size doesn't change.
+ */
+class SessionPlayer implements Closeable {
+
+    static class Input {
+        final long timestamp;
+        final String command;
+
+        Input(long timestamp, String command) {
+            this.timestamp = timestamp;
+            this.command = command;
+        }
+    }
+
+    private final RandomAccessFile mFile;
+    private final FileChannel mChannel;
+    private final long mSize;
+    /** End of the records, where the index starts. */
+    private final long mEnd;
+    private final long[] mKeyframeTimestamps;
+    private final long[] mKeyframeOffsets;
+    private final long mDuration;
+    private final Inflater mInflater = new Inflater();
+    /** Header of the last record read by {@link #readRecordHeader(long, long)}. */
+    private final ByteBuffer mRecordHeader = ByteBuffer.allocate(SessionFormat.RECORD_HEADER_SIZE);
+
+    private BufferedImage mImage;
+    private int[] mPixels;
+    private int[] mTileValues;
+    /** Offset of the record following the current frame. */
+    private long mNext = -1;
+    private long mPosition;
+
+    SessionPlayer(File file) throws IOException {
+        mFile = new RandomAccessFile(file, "r");
+        try {
+            mChannel = mFile.getChannel();
+            mSize = mChannel.size();
+            ByteBuffer header = read(0, SessionFormat.HEADER_SIZE);
+            byte[] magic = new byte[SessionFormat.MAGIC.length];
+            header.get(magic);
+            if (!Arrays.equals(magic, SessionFormat.MAGIC) || header.getInt() != SessionFormat.VERSION) {
+                throw new IOException("Not a session recording: " + file.getName());
+            }
+
+            List<long[]> keyframes = new ArrayList<>();
+            long[] index = readIndex(keyframes);
+            if (index != null) {
+                mEnd = index[0];
+                mDuration = index[1];
+            } else {
+                Logger.i("Recording %s has no index, scanning it", file.getName());
+                keyframes.clear();
+                long[] scan = scan(keyframes);
+                mEnd = scan[0];
+                mDuration = scan[1];
+            }
+            mKeyframeTimestamps = new long[keyframes.size()];
+            mKeyframeOffsets = new long[keyframes.size()];
+            for (int i = 0; i < keyframes.size(); i++) {
+                mKeyframeTimestamps[i] = keyframes.get(i)[0];
+                mKeyframeOffsets[i] = keyframes.get(i)[1];
+            }
+        } catch (IOException | RuntimeException e) {
+            mFile.close();
+            throw e;
+        }
+    }
+
+    /**
+     * Reads {@code length} bytes at {@code offset} of the file.
+     */
+    private ByteBuffer read(long offset, int length) throws IOException {
+        ByteBuffer buffer = ByteBuffer.allocate(length);
+        read(offset, buffer);
+        return buffer;
+    }
+
+    private void read(long offset, ByteBuffer buffer) throws IOException {
+        buffer.clear();
+        while (buffer.hasRemaining()) {
+            if (mChannel.read(buffer, offset + buffer.position()) < 0) {
+                throw new EOFException("Truncated recording");
+            }
+        }
+        buffer.flip();
+    }
+
+    /**
+     * Reads the header of the record at {@code offset} into {@link #mRecordHeader}.
+     *
+     * @return false if no complete record header fits before {@code end}
+     */
+    private boolean readRecordHeader(long offset, long end) throws IOException {
+        if (offset + SessionFormat.RECORD_HEADER_SIZE > end) {
+            return false;
+        }
+        read(offset, mRecordHeader);
+        return true;
+    }
+
+    private byte getRecordType() {
+        return mRecordHeader.get(0);
+    }
+
+    private long getRecordTimestamp() {
+        return mRecordHeader.getLong(1);
+    }
+
+    private int getRecordLength() {
+        return mRecordHeader.getInt(9);
+    }
+
+    /**
+     * Reads the trailing index into {@code keyframes} and returns its offset and the duration, or null
+     * when there is none.
+     */
+    private long[] readIndex(List<long[]> keyframes) throws IOException {
+        if (mSize < SessionFormat.HEADER_SIZE + SessionFormat.TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer trailer = read(mSize - SessionFormat.TRAILER_SIZE, SessionFormat.TRAILER_SIZE);
+        long indexOffset = trailer.getLong();
+        byte[] magic = new byte[SessionFormat.INDEX_MAGIC.length];
+        trailer.get(magic);
+        if (!Arrays.equals(magic, SessionFormat.INDEX_MAGIC) || indexOffset < SessionFormat.HEADER_SIZE
+                || indexOffset > mSize - SessionFormat.TRAILER_SIZE - 4 - 8) {
+            return null;
+        }
+        int count = read(indexOffset, 4).getInt();
+        if (count < 0 || indexOffset + 4 + count * 16L + 8 > mSize - SessionFormat.TRAILER_SIZE) {
+            return null;
+        }
+        ByteBuffer index = read(indexOffset + 4, count * 16 + 8);
+        for (int i = 0; i < count; i++) {
+            keyframes.add(new long[] { index.getLong(), index.getLong() });
+        }
+        return new long[] { indexOffset, index.getLong() };
+    }
+
+    /**
+     * Rebuilds the index of a recording cut short, returning where its complete records end and the
+     * timestamp of the last one.
+     */
+    private long[] scan(List<long[]> keyframes) throws IOException {
+        long offset = SessionFormat.HEADER_SIZE;
+        long timestamp = 0;
+        while (readRecordHeader(offset, mSize)) {
+            int length = getRecordLength();
+            long next = offset + SessionFormat.RECORD_HEADER_SIZE + length;
+            if (length < 0 || next > mSize) {
+                break;
+            }
+            if (getRecordType() == SessionFormat.KEYFRAME) {
+                keyframes.add(new long[] { getRecordTimestamp(), offset });
+            }
+            timestamp = getRecordTimestamp();
+            offset = next;
+        }
+        return new long[] { offset, timestamp };
+    }
+
+    /**
+     * Length of the recording in milliseconds.
+     */
+    long getDuration() {
+        return mDuration;
+    }
+
+    /**
+     * Time of the current frame in milliseconds from the start of the recording.
+     */
+    long getPosition() {
+        return mPosition;
+    }
+
+    /**
+     * Current frame, null before the first seek. The image is overwritten by the next decoded frame.
+     */
+    BufferedImage getImage() {
+        return mImage;
+    }
+
+    /**
+     * Decodes the last frame recorded at or before {@code timestamp}, or the first one if it is later.
+     *
+     * @return the frame, or null if the recording holds no frame
+     */
+    BufferedImage seek(long timestamp) throws IOException {
+        int index = Arrays.binarySearch(mKeyframeTimestamps, timestamp);
+        if (index < 0) {
+            index = Math.max(0, -index - 2);
+        } else {
+            // Keyframes may share a timestamp, start from the last one
+            while (index + 1 < mKeyframeTimestamps.length && mKeyframeTimestamps[index + 1] == timestamp) {
+                index++;
+            }
+        }
+        if (mKeyframeOffsets.length == 0) {
+            return null;
+        }
+
+        // Going forward from the current frame avoids decoding the keyframe again
+        long offset = mKeyframeOffsets[index];
+        if (mImage == null || mPosition > timestamp || mNext < offset) {
+            mNext = offset;
+            if (!next()) {
+                return null;
+            }
+        }
+        while (mNext < mEnd && peekFrameTimestamp() <= timestamp) {
+            if (!next()) {
+                break;
+            }
+        }
+        return mImage;
+    }
+
+    /**
+     * Decodes the frame following the current one.
+     *
+     * @return false at the end of the recording
+     */
+    boolean next() throws IOException {
+        if (mNext < 0) {
+            mNext = SessionFormat.HEADER_SIZE;
+        }
+        while (readRecordHeader(mNext, mEnd)) {
+            long offset = mNext;
+            byte type = getRecordType();
+            long timestamp = getRecordTimestamp();
+            int length = getRecordLength();
+            mNext = offset + SessionFormat.RECORD_HEADER_SIZE + length;
+            if (type == SessionFormat.KEYFRAME || type == SessionFormat.DELTA && mImage != null) {
+                decode(type, offset + SessionFormat.RECORD_HEADER_SIZE, length);
+                mPosition = timestamp;
+                return true;
+            }
+        }
+        return false;
+    }
+
+    /**
+     * Timestamp of the next frame record, or {@link Long#MAX_VALUE} if there is none.
+     */
+    private long peekFrameTimestamp() throws IOException {
+        long offset = mNext;
+        while (readRecordHeader(offset, mEnd)) {
+            byte type = getRecordType();
+            if (type == SessionFormat.KEYFRAME || type == SessionFormat.DELTA) {
+                return getRecordTimestamp();
+            }
+            offset += SessionFormat.RECORD_HEADER_SIZE + getRecordLength();
+        }
+        return Long.MAX_VALUE;
+    }
+
+    /**
+     * Returns the input sent between {@code from}, inclusive, and {@code to}, exclusive.
+     */
+    List<Input> getInputs(long from, long to) throws IOException {
+        // Start from the last keyframe strictly before, input sharing its timestamp may precede it
+        int index = Arrays.binarySearch(mKeyframeTimestamps, from);
+        if (index < 0) {
+            index = -index - 1;
+        }
+        while (index > 0 && mKeyframeTimestamps[index - 1] >= from) {
+            index--;
+        }
+        long offset = index > 0 ? mKeyframeOffsets[index - 1] : SessionFormat.HEADER_SIZE;
+        List<Input> inputs = new ArrayList<>();
+        while (readRecordHeader(offset, mEnd)) {
+            long timestamp = getRecordTimestamp();
+            int length = getRecordLength();
+            if (timestamp >= to) {
+                break;
+            }
+            if (getRecordType() == SessionFormat.INPUT && timestamp >= from) {
+                ByteBuffer command = read(offset + SessionFormat.RECORD_HEADER_SIZE, length);
+                inputs.add(new Input(timestamp, new String(command.array(), StandardCharsets.UTF_8)));
+            }
+            offset += SessionFormat.RECORD_HEADER_SIZE + length;
+        }
+        return inputs;
+    }
+
+    private void decode(byte type, long offset, int length) throws IOException {
+        if (length < 0 || offset + length > mEnd) {
+            throw new IOException("Truncated record");
+        }
+        byte[] payload = read(offset, length).array();
+        mInflater.reset();
+        DataInputStream in = new DataInputStream(new InflaterInputStream(new ByteArrayInputStream(payload), mInflater,
+                1 << 16));
+
+        if (type == SessionFormat.KEYFRAME) {
+            int width = in.readInt(), height = in.readInt();
+            if (mImage == null || mImage.getWidth() != width || mImage.getHeight() != height) {
+                mImage = new BufferedImage(width, height, BufferedImage.TYPE_INT_ARGB);
+                mPixels = ((DataBufferInt) mImage.getRaster().getDataBuffer()).getData();
+                mTileValues = new int[width * height];
+            }
+            SessionFormat.readRuns(in, mPixels, width * height);
+            return;
+        }
+
+        int width = mImage.getWidth(), height = mImage.getHeight();
+        int tileCount = SessionFormat.getColumns(width) * SessionFormat.getRows(height);
+        int[] tiles = new int[SessionFormat.readVarInt(in)];
+        int count = 0;
+        for (int i = 0; i < tiles.length; i++) {
+            tiles[i] = SessionFormat.readVarInt(in);
+            if (tiles[i] >= tileCount) {
+                throw new IOException("Corrupted tile " + tiles[i]);
+            }
+            count += SessionFormat.getTileSize(width, height, tiles[i]);
+        }
+        SessionFormat.readRuns(in, mTileValues, count);
+        int position = 0;
+        for (int tile : tiles) {
+            position += SessionFormat.applyTile(mTileValues, position, mPixels, width, height, tile);
+        }
+    }
+
+    @Override
+    public void close() throws IOException {
+        mInflater.end();
+        mFile.close();
+    }
+}
@@ -0,0 +1,267 @@
+package com.majeur.ars;
+
+import java.awt.Rectangle;
+import java.io.BufferedOutputStream;
+import java.io.ByteArrayOutputStream;
+import java.io.DataOutputStream;
+import java.io.File;
+import java.io.FileOutputStream;
+import java.io.IOException;
+import java.nio.charset.StandardCharsets;
+import java.util.ArrayList;
+import java.util.List;
+import java.util.concurrent.BlockingQueue;
+import java.util.concurrent.LinkedBlockingQueue;
+import java.util.concurrent.atomic.AtomicInteger;
+import java.util.zip.Deflater;
+import java.util.zip.DeflaterOutputStream;
+
+/**
+ * Records the frames leaving the capture pipeline and the input sent to the device into a
+ * {@link SessionFormat} file. Frames are retained and handed to a writer thread, which encodes
+ * keyframes at regular intervals and tile deltas in between. The capture is never held back: frames
+ * arriving while the writer is busy are skipped, the next delta covering what they changed.
+ */
+class SessionRecorder implements FrameObserver, AdbHelper.OnInputListener {
+
+    /** Time between keyframes, bounding the work done when seeking. */
+    private static final long KEYFRAME_INTERVAL = 5000;
+    /** Frames waiting for the writer before new ones are skipped. */
+    private static final int MAX_PENDING_FRAMES = 2;
+
+    private static final Object END = new Object();
+
+    private final File mFile;
+    private final BlockingQueue<Object> mQueue = new LinkedBlockingQueue<>();
+    private final AtomicInteger mPendingFrames = new AtomicInteger();
+    private final Thread mThread;
+    private final long mStartTime = System.currentTimeMillis();
+    private volatile boolean mStopped;
+    private volatile long mRecordedFrames, mSkippedFrames, mBytesWritten;
+
+    // Writer thread only
+    private DataOutputStream mOutput;
+    private final ByteArrayOutputStream mPayload = new ByteArrayOutputStream(1 << 16);
+    private final Deflater mDeflater = new Deflater(Deflater.BEST_SPEED);
+    private final List<Long> mKeyframeTimestamps = new ArrayList<>();
+    private final List<Long> mKeyframeOffsets = new ArrayList<>();
+    private int[] mPrevious;
+    private int mWidth, mHeight;
+    private int[] mTileValues;
+    private long mLastKeyframe;
+    private long mLastTimestamp;
+
+    private static class Input {
+        final long timestamp;
+        final String command;
+
+        Input(long timestamp, String command) {
+            this.timestamp = timestamp;
+            this.command = command;
+        }
+    }
+
+    /**
+     * Creates the recording file and starts the writer thread, frames and input are then fed as an
+     * observer of the capture and a listener of the input.
+     */
+    SessionRecorder(File file) throws IOException {
+        mFile = file;
+        mOutput = new DataOutputStream(new BufferedOutputStream(new FileOutputStream(file), 1 << 20));
+        mOutput.write(SessionFormat.MAGIC);
+        mOutput.writeInt(SessionFormat.VERSION);
+        mBytesWritten = SessionFormat.HEADER_SIZE;
+
+        mThread = new Thread(new Runnable() {
+            @Override
+            public void run() {
+                write();
+            }
+        }, "ars-session-recorder");
+        mThread.setDaemon(true);
+        mThread.start();
+    }
+
+    @Override
+    public void onFrame(Frame frame, List<Rectangle> dirtyRegions) {
+        if (mStopped || dirtyRegions.isEmpty() && mRecordedFrames > 0) {
+            return;
+        }
+        if (mPendingFrames.incrementAndGet() > MAX_PENDING_FRAMES) {
+            mPendingFrames.decrementAndGet();
+            mSkippedFrames++;
+            return;
+        }
+        mQueue.add(frame.retain());
+    }
+
+    @Override
+    public void onInput(String command) {
+        if (!mStopped) {
+            mQueue.add(new Input(System.currentTimeMillis(), command));
+        }
+    }
+
+    /**
+     * Writes what is still queued followed by the seek index, and closes the file.
+     */
+    void stop() {
+        if (mStopped) {
+            return;
+        }
+        mStopped = true;
+        mQueue.add(END);
+        try {
+            mThread.join();
+        } catch (InterruptedException e) {
+            Thread.currentThread().interrupt();
+        }
+        Logger.i("Recorded %d frames to %s, %d skipped, %d KB", mRecordedFrames, mFile.getName(), mSkippedFrames,
+                mBytesWritten / 1024);
+    }
+
+    long getRecordedFrameCount() {
+        return mRecordedFrames;
+    }
+
+    long getBytesWritten() {
+        return mBytesWritten;
+    }
+
+    private void write() {
+        boolean failed = false;
+        while (true) {
+            Object item;
+            try {
+                item = mQueue.take();
+            } catch (InterruptedException e) {
+                break;
+            }
+            if (item == END) {
+                break;
+            }
+            if (item instanceof Frame) {
+                Frame frame = (Frame) item;
+                try {
+                    if (!failed) {
+                        writeFrame(frame);
+                    }
+                } catch (IOException e) {
+                    Logger.e("Unable to record frame: %s", e.getMessage());
+                    failed = true;
+                } finally {
+                    mPendingFrames.decrementAndGet();
+                    frame.release();
+                }
+            } else if (!failed) {
+                Input input = (Input) item;
+                try {
+                    byte[] command = input.command.getBytes(StandardCharsets.UTF_8);
+                    writeRecord(SessionFormat.INPUT, input.timestamp, command, command.length);
+                } catch (IOException e) {
+                    Logger.e("Unable to record input: %s", e.getMessage());
+                    failed = true;
+                }
+            }
+        }
+
+        try {
+            if (!failed) {
+                writeIndex();
+            }
+            mOutput.close();
+        } catch (IOException e) {
+            Logger.e("Unable to close recording: %s", e.getMessage());
+        }
+        mDeflater.end();
+    }
+
+    private void writeFrame(Frame frame) throws IOException {
+        int width = frame.width, height = frame.height;
+        long timestamp = frame.timestamp;
+        boolean keyframe = mPrevious == null || width != mWidth || height != mHeight
+                || timestamp - mLastKeyframe >= KEYFRAME_INTERVAL;
+        if (mPrevious == null || width != mWidth || height != mHeight) {
+            mWidth = width;
+            mHeight = height;
+            mPrevious = new int[width * height];
+            mTileValues = new int[width * height];
+        }
+
+        mPayload.reset();
+        mDeflater.reset();
+        DataOutputStream payload = new DataOutputStream(new BufferedOutputStream(
+                new DeflaterOutputStream(mPayload, mDeflater, 1 << 16), 1 << 16));
+        if (keyframe) {
+            payload.writeInt(width);
+            payload.writeInt(height);
+            SessionFormat.writeRuns(payload, frame.pixels, width * height);
+        } else {
+            // Compared against the last recorded frame rather than the pipeline dirty regions, which
+            // don't account for skipped frames
+            int tiles = SessionFormat.getColumns(width) * SessionFormat.getRows(height);
+            List<Integer> changed = new ArrayList<>();
+            int count = 0;
+            for (int tile = 0; tile < tiles; tile++) {
+                int copied = SessionFormat.copyTile(frame.pixels, mPrevious, width, height, tile, mTileValues, count);
+                if (!isZero(mTileValues, count, copied)) {
+                    changed.add(tile);
+                    count += copied;
+                }
+            }
+            if (changed.isEmpty()) {
+                return;
+            }
+            SessionFormat.writeVarInt(payload, changed.size());
+            for (int tile : changed) {
+                SessionFormat.writeVarInt(payload, tile);
+            }
+            SessionFormat.writeRuns(payload, mTileValues, count);
+        }
+        payload.close();
+
+        long offset = mBytesWritten;
+        writeRecord(keyframe ? SessionFormat.KEYFRAME : SessionFormat.DELTA, timestamp,
+                mPayload.toByteArray(), mPayload.size());
+        if (keyframe) {
+            mLastKeyframe = timestamp;
+            mKeyframeTimestamps.add(mLastTimestamp);
+            mKeyframeOffsets.add(offset);
+        }
+        System.arraycopy(frame.pixels, 0, mPrevious, 0, width * height);
+        mRecordedFrames++;
+    }
+
+    private static boolean isZero(int[] values, int offset, int count) {
+        for (int i = offset, end = offset + count; i < end; i++) {
+            if (values[i] != 0) {
+                return false;
+            }
+        }
+        return true;
+    }
+
+    private void writeRecord(byte type, long timestamp, byte[] payload, int length) throws IOException {
+        // Input can be sent before the first frame, recordings never go back in time
+        long time = Math.max(mLastTimestamp, timestamp - mStartTime);
+        mLastTimestamp = time;
+        mOutput.writeByte(type);
+        mOutput.writeLong(time);
+        mOutput.writeInt(length);
+        mOutput.write(payload, 0, length);
+        mBytesWritten += SessionFormat.RECORD_HEADER_SIZE + length;
+    }
+
+    private void writeIndex() throws IOException {
+        long indexOffset = mBytesWritten;
+        mOutput.writeInt(mKeyframeOffsets.size());
+        for (int i = 0; i < mKeyframeOffsets.size(); i++) {
+            mOutput.writeLong(mKeyframeTimestamps.get(i));
+            mOutput.writeLong(mKeyframeOffsets.get(i));
+        }
+        mOutput.writeLong(mLastTimestamp);
+        mOutput.writeLong(indexOffset);
+        mOutput.write(SessionFormat.INDEX_MAGIC);
+        mBytesWritten += 4 + mKeyframeOffsets.size() * 16 + 8 + SessionFormat.TRAILER_SIZE;
+    }
+}
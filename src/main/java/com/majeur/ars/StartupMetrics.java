@@ -0,0 +1,45 @@
+package com.majeur.ars;
+
+import java.lang.management.ManagementFactory;
+import java.util.LinkedHashMap;
+import java.util.Map;
+
+/**
+ * Startup milestones, timed from the launch of the JVM and logged the first time each is reached.
+ * With {@code -Dars.startupBenchmark=true} the application prints them all and exits once the first
+ * frame is painted, so that startup can be measured repeatedly, e.g. against the fake adb server of
+ * the harness source set.
+ */
+final class StartupMetrics {
+
+    static final String WINDOW_SHOWN = "window shown";
+    static final String BRIDGE_READY = "adb bridge ready";
+    static final String DEVICES_LISTED = "devices listed";
+    static final String FIRST_FRAME = "first frame";
+
+    private static final boolean BENCHMARK = Boolean.getBoolean("ars.startupBenchmark");
+    private static final long START_TIME = ManagementFactory.getRuntimeMXBean().getStartTime();
+    /** Time at which each milestone was reached, in order. */
+    private static final Map<String, Long> sReached = new LinkedHashMap<>();
+
+    private StartupMetrics() {
+    }
+
+    static synchronized void reached(String milestone) {
+        if (sReached.containsKey(milestone)) {
+            return;
+        }
+        long elapsed = System.currentTimeMillis() - START_TIME;
+        sReached.put(milestone, elapsed);
+        Logger.i("Startup: %s after %d ms", milestone, elapsed);
+
+        if (BENCHMARK && FIRST_FRAME.equals(milestone)) {
+            StringBuilder summary = new StringBuilder("Startup benchmark:");
+            for (Map.Entry<String, Long> entry : sReached.entrySet()) {
+                summary.append(' ').append(entry.getKey()).append(' ').append(entry.getValue()).append(" ms,");
+            }
+            System.out.println(summary.substring(0, summary.length() - 1));
+            System.exit(0);
+        }
+    }
+}
@@ -0,0 +1,93 @@
+package com.majeur.ars;
+
+import java.util.ArrayList;
+import java.util.List;
+
+/**
+ * Splits arbitrary text into as few shell commands as possible: runs of characters the device
+ * virtual keyboard can type become quoted {@code input text} commands, line breaks and tabs become
+ * key events. Other characters, which {@code input text} may refuse as part of a longer string, are
+ * typed one per command so that a refused one doesn't drop its neighbours. Control characters and
+ * broken surrogate pairs can't be typed at all, they are skipped and reported by
+ * {@link #getSkipped()}.
+ */
+final class TextInput {
+
+    /** Characters per {@code input text}, long ones are known to lose characters on some devices. */
+    private static final int MAX_CHUNK_LENGTH = 256;
+
+    private final List<String> mCommands = new ArrayList<>();
+    private final List<Integer> mSkipped = new ArrayList<>();
+    private final StringBuilder mChunk = new StringBuilder();
+
+    TextInput(String text) {
+        for (int i = 0; i < text.length(); i += Character.charCount(text.codePointAt(i))) {
+            int c = text.codePointAt(i);
+            if (c >= 0x20 && c < 0x7F) {
+                mChunk.append((char) c);
+                // The input command turns %s into a space, keep them in separate commands
+                if (c == '%' && i + 1 < text.length() && text.charAt(i + 1) == 's'
+                        || mChunk.length() >= MAX_CHUNK_LENGTH) {
+                    flush();
+                }
+                continue;
+            }
+
+            flush();
+            if (c == '\n') {
+                mCommands.add(String.format(Constants.Adb.CMD_KEY, AndroidKey.ENTER.getCode()));
+            } else if (c == '\t') {
+                mCommands.add(String.format(Constants.Adb.CMD_KEY, AndroidKey.TAB.getCode()));
+            } else if (c == '\r') {
+                continue;
+            } else if (Character.isISOControl(c) || Character.getType(c) == Character.SURROGATE) {
+                mSkipped.add(c);
+            } else {
+                mChunk.appendCodePoint(c);
+                flush();
+            }
+        }
+        flush();
+
+        if (!mSkipped.isEmpty()) {
+            Logger.e("%d characters can't be typed through adb and were skipped: %s", mSkipped.size(),
+                    getSkipped());
+        }
+    }
+
+    private void flush() {
+        if (mChunk.length() > 0) {
+            mCommands.add(String.format(Constants.Adb.CMD_TEXT, quote(mChunk.toString())));
+            mChunk.setLength(0);
+        }
+    }
+
+    /**
+     * Returns the commands typing the text, in order.
+     */
+    List<String> getCommands() {
+        return mCommands;
+    }
+
+    /**
+     * Returns the code points of the characters that can't be typed, as U+XXXX separated by spaces,
+     * or an empty string if there are none.
+     */
+    String getSkipped() {
+        StringBuilder builder = new StringBuilder();
+        for (int c : mSkipped) {
+            if (builder.length() > 0) {
+                builder.append(' ');
+            }
+            builder.append(String.format("U+%04X", c));
+        }
+        return builder.toString();
+    }
+
+    /**
+     * Quotes a string for the device shell.
+     */
+    static String quote(String text) {
+        return "'" + text.replace("'", "'\\''") + "'";
+    }
+}
@@ -0,0 +1,203 @@
+package com.majeur.ars;
+
+import java.util.Locale;
+import java.util.regex.Matcher;
+import java.util.regex.Pattern;
+
+/**
+ * Turns pointer down, move and up events into device shell commands. Depending on what the device
+ * supports, gestures are streamed live with {@code input motionevent}, written to the touchscreen
+ * with {@code sendevent}, or replayed on release as a tap or swipe.
+ */
+abstract class TouchInjector {
+
+    enum Action {
+        DOWN, MOVE, UP
+    }
+
+    static final String MODE_AUTO = "auto";
+    static final String MODE_MOTION_EVENT = "motionevent";
+    static final String MODE_SEND_EVENT = "sendevent";
+    static final String MODE_SWIPE = "swipe";
+
+    /** First release whose input command knows motionevent. */
+    static final int MOTION_EVENT_API_LEVEL = 29;
+
+    static final String CMD_PROBE_TOUCHSCREEN = "getevent -p";
+
+    /** Moves shorter than this, in device pixels, are taps when gestures are replayed on release. */
+    private static final double TAP_SLOP = 8;
+
+    private static final Pattern DEVICE_PATTERN = Pattern.compile("add device \\d+: (\\S+)");
+    private static final Pattern ABS_X_PATTERN = Pattern.compile("0035\\s*:.*?min (-?\\d+), max (-?\\d+)");
+    private static final Pattern ABS_Y_PATTERN = Pattern.compile("0036\\s*:.*?min (-?\\d+), max (-?\\d+)");
+
+    /**
+     * Returns the shell command for a pointer event at display coordinates, or null if nothing has to
+     * be sent yet. The display size and orientation are those the coordinates refer to.
+     */
+    abstract String onTouch(Action action, double x, double y, int displayWidth, int displayHeight,
+            int orientation);
+
+    abstract String getName();
+
+    /**
+     * Picks the injector for a device given the configured mode, its API level and the output of
+     * {@link #CMD_PROBE_TOUCHSCREEN}, which may be null if it hasn't been run.
+     */
+    static TouchInjector create(String mode, int apiLevel, String probeOutput) {
+        if (MODE_SWIPE.equals(mode)) {
+            return new SwipeInjector();
+        }
+        if (MODE_MOTION_EVENT.equals(mode) || MODE_AUTO.equals(mode) && apiLevel >= MOTION_EVENT_API_LEVEL) {
+            return new MotionEventInjector();
+        }
+        SendEventInjector injector = probeOutput != null ? SendEventInjector.parse(probeOutput) : null;
+        if (injector == null) {
+            if (MODE_SEND_EVENT.equals(mode)) {
+                Logger.e("No touchscreen found, replaying gestures on release");
+            }
+            return new SwipeInjector();
+        }
+        return injector;
+    }
+
+    private static String format(String format, Object... args) {
+        return String.format(Locale.US, format, args);
+    }
+
+    /** Streams gestures through {@code input motionevent}. */
+    private static final class MotionEventInjector extends TouchInjector {
+
+        @Override
+        String onTouch(Action action, double x, double y, int displayWidth, int displayHeight, int orientation) {
+            return format("input motionevent %s %.0f %.0f", action.name(), x, y);
+        }
+
+        @Override
+        String getName() {
+            return MODE_MOTION_EVENT;
+        }
+    }
+
+    /**
+     * Writes multi touch protocol B events straight to the touchscreen device, which is much cheaper
+     * for the device than starting the input command. Touchscreen axes follow the natural display
+     * orientation, coordinates are rotated and scaled to them.
+     */
+    private static final class SendEventInjector extends TouchInjector {
+
+        private static final int EV_SYN = 0, EV_KEY = 1, EV_ABS = 3;
+        private static final int SYN_REPORT = 0, BTN_TOUCH = 0x14a;
+        private static final int ABS_MT_POSITION_X = 0x35, ABS_MT_POSITION_Y = 0x36, ABS_MT_TRACKING_ID = 0x39;
+
+        private final String mDevice;
+        private final int mMinX, mMaxX, mMinY, mMaxY;
+        private int mTrackingId;
+
+        SendEventInjector(String device, int minX, int maxX, int minY, int maxY) {
+            mDevice = device;
+            mMinX = minX;
+            mMaxX = maxX;
+            mMinY = minY;
+            mMaxY = maxY;
+        }
+
+        /**
+         * Finds the first device reporting multi touch positions in {@code getevent -p} output.
+         */
+        static SendEventInjector parse(String output) {
+            String[] devices = output.split("(?=add device )");
+            for (String device : devices) {
+                Matcher path = DEVICE_PATTERN.matcher(device);
+                Matcher x = ABS_X_PATTERN.matcher(device);
+                Matcher y = ABS_Y_PATTERN.matcher(device);
+                if (path.find() && x.find() && y.find()) {
+                    return new SendEventInjector(path.group(1), Integer.parseInt(x.group(1)),
+                            Integer.parseInt(x.group(2)), Integer.parseInt(y.group(1)), Integer.parseInt(y.group(2)));
+                }
+            }
+            return null;
+        }
+
+        @Override
+        String onTouch(Action action, double x, double y, int displayWidth, int displayHeight, int orientation) {
+            // Back to the natural orientation, display rotations are counter clockwise
+            boolean quarterTurn = orientation == 1 || orientation == 3;
+            double naturalWidth = quarterTurn ? displayHeight : displayWidth;
+            double naturalHeight = quarterTurn ? displayWidth : displayHeight;
+            double nx = x, ny = y;
+            if (orientation == 1) {
+                nx = naturalWidth - y;
+                ny = x;
+            } else if (orientation == 2) {
+                nx = naturalWidth - x;
+                ny = naturalHeight - y;
+            } else if (orientation == 3) {
+                nx = y;
+                ny = naturalHeight - x;
+            }
+            long ax = Math.round(mMinX + nx / naturalWidth * (mMaxX - mMinX));
+            long ay = Math.round(mMinY + ny / naturalHeight * (mMaxY - mMinY));
+
+            StringBuilder command = new StringBuilder();
+            if (action == Action.DOWN) {
+                mTrackingId = (mTrackingId + 1) & 0xFFFF;
+                event(command, EV_ABS, ABS_MT_TRACKING_ID, mTrackingId);
+                event(command, EV_KEY, BTN_TOUCH, 1);
+            }
+            event(command, EV_ABS, ABS_MT_POSITION_X, ax);
+            event(command, EV_ABS, ABS_MT_POSITION_Y, ay);
+            if (action == Action.UP) {
+                event(command, EV_SYN, SYN_REPORT, 0);
+                event(command, EV_ABS, ABS_MT_TRACKING_ID, -1);
+                event(command, EV_KEY, BTN_TOUCH, 0);
+            }
+            event(command, EV_SYN, SYN_REPORT, 0);
+            return command.toString();
+        }
+
+        private void event(StringBuilder command, int type, int code, long value) {
+            if (command.length() > 0) {
+                command.append("; ");
+            }
+            command.append("sendevent ").append(mDevice).append(' ').append(type).append(' ').append(code)
+                    .append(' ').append(value);
+        }
+
+        @Override
+        String getName() {
+            return MODE_SEND_EVENT + " " + mDevice;
+        }
+    }
+
+    /** Replays the whole gesture on release, as a tap or a swipe lasting as long as the drag. */
+    private static final class SwipeInjector extends TouchInjector {
+
+        private double mDownX, mDownY;
+        private long mDownTime;
+
+        @Override
+        String onTouch(Action action, double x, double y, int displayWidth, int displayHeight, int orientation) {
+            switch (action) {
+            case DOWN:
+                mDownX = x;
+                mDownY = y;
+                mDownTime = System.currentTimeMillis();
+                return null;
+            case UP:
+                if (Math.hypot(x - mDownX, y - mDownY) < TAP_SLOP) {
+                    return format(Constants.Adb.CMD_TAP, mDownX, mDownY);
+                }
+                return format(Constants.Adb.CMD_SWIPE, mDownX, mDownY, x, y, System.currentTimeMillis() - mDownTime);
+            default:
+                return null;
+            }
+        }
+
+        @Override
+        String getName() {
+            return MODE_SWIPE;
+        }
+    }
+}
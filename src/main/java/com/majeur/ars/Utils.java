@@ -1,7 +1,14 @@
 package com.majeur.ars;
 
+import java.awt.Component;
+import java.awt.Toolkit;
+import java.awt.datatransfer.DataFlavor;
+import java.awt.datatransfer.UnsupportedFlavorException;
+import java.io.IOException;
 import java.net.URISyntaxException;
 
+import javax.swing.JOptionPane;
+
 public class Utils {
 
     static String getRunningJarPath() {
@@ -18,7 +25,31 @@ public class Utils {
         try {
             Thread.sleep(t);
         } catch (InterruptedException e) {
-            e.printStackTrace();
+            // Keep the flag so that loops checking Thread.interrupted() stop
+            Thread.currentThread().interrupt();
+        }
+    }
+
+    /**
+     * Returns the text held by the system clipboard, or null if there is none.
+     */
+    static String getClipboardText() {
+        try {
+            return (String) Toolkit.getDefaultToolkit().getSystemClipboard().getData(DataFlavor.stringFlavor);
+        } catch (UnsupportedFlavorException | IOException | IllegalStateException e) {
+            Logger.e("No text in clipboard: %s", e.getMessage());
+            return null;
+        }
+    }
+
+    /**
+     * Tells the user which characters of typed text were skipped, see
+     * {@link AdbHelper#performInputText(String)}. Does nothing if there are none.
+     */
+    static void showSkippedCharacters(Component parent, String skipped) {
+        if (!skipped.isEmpty()) {
+            JOptionPane.showMessageDialog(parent, String.format(Constants.Strings.MESSAGE_SKIPPED_CHARACTERS, skipped),
+                    Constants.Strings.TITLE_SKIPPED_CHARACTERS, JOptionPane.WARNING_MESSAGE);
         }
     }
 }
@@ -0,0 +1,49 @@
+package com.majeur.ars;
+
+import java.util.concurrent.ScheduledFuture;
+import java.util.concurrent.ScheduledThreadPoolExecutor;
+import java.util.concurrent.ThreadFactory;
+import java.util.concurrent.TimeUnit;
+
+/**
+ * Bounds blocking I/O that has no timeout of its own, such as socket channel reads or process
+ * streams, by running an action, typically closing the stream, once a deadline passes.
+ */
+final class Watchdog {
+
+    private static final ScheduledThreadPoolExecutor sExecutor = new ScheduledThreadPoolExecutor(1,
+            new ThreadFactory() {
+                @Override
+                public Thread newThread(Runnable runnable) {
+                    Thread thread = new Thread(runnable, "ars-watchdog");
+                    thread.setDaemon(true);
+                    return thread;
+                }
+            });
+
+    static {
+        // Deadlines are armed and cancelled for every frame, don't let them pile up in the queue
+        sExecutor.setRemoveOnCancelPolicy(true);
+    }
+
+    private Watchdog() {
+    }
+
+    /**
+     * Runs {@code action} after {@code timeoutMillis} unless the returned future is cancelled first.
+     *
+     * @return null if {@code timeoutMillis} is not positive, meaning no deadline
+     */
+    static ScheduledFuture<?> arm(Runnable action, long timeoutMillis) {
+        if (timeoutMillis <= 0) {
+            return null;
+        }
+        return sExecutor.schedule(action, timeoutMillis, TimeUnit.MILLISECONDS);
+    }
+
+    static void disarm(ScheduledFuture<?> deadline) {
+        if (deadline != null) {
+            deadline.cancel(false);
+        }
+    }
+}